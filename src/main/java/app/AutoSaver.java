@@ -0,0 +1,220 @@
+package app;
+
+import app.model.ModelCodec;
+import app.model.UserList;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Saves user data in the background while the application runs. Every change recorded by the
+ * {@link ChangeJournal} marks its user dirty and schedules a save a few seconds later, so a
+ * burst of edits is written in one go. Only the journals of dirty users are appended to.
+ * <p>
+ * Journal records are already encoded when they are buffered, so appending them never touches
+ * the model and runs on a background thread. Compaction snapshots do read the model, so they
+ * are encoded on the model thread and then written in the background.</p>
+ * @author Reuben Thomas, Ryan Zaken
+ */
+public class AutoSaver {
+
+  /**
+   * The default number of seconds between a change and the save that writes it.
+   */
+  public static final long DEFAULT_DELAY_SECONDS = 5;
+
+  /**
+   * The store the data is saved to.
+   */
+  private final UserStore userStore;
+
+  /**
+   * The user list being saved.
+   */
+  private final UserList userList;
+
+  /**
+   * Runs tasks on the thread that mutates the model, such as the JavaFX application thread.
+   */
+  private final Executor modelThread;
+
+  /**
+   * The number of seconds between a change and the save that writes it.
+   */
+  private final long delaySeconds;
+
+  /**
+   * The single background thread on which all saves are written, in order.
+   */
+  private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+    Thread thread = new Thread(runnable, "autosave");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  /**
+   * The save scheduled but not yet started, or null if none is.
+   */
+  private ScheduledFuture<?> pendingSave;
+
+  /**
+   * Whether compaction snapshots are being encoded or written, so no more are requested meanwhile.
+   */
+  private volatile boolean compacting;
+
+  /**
+   * The duration of the last background save in milliseconds, or -1 if none has run yet.
+   */
+  private volatile long lastSaveMillis = -1;
+
+  /**
+   * Constructs an AutoSaver for the specified store and user list.
+   *
+   * @param userStore    the store the data is saved to
+   * @param userList     the user list being saved
+   * @param modelThread  runs tasks on the thread that mutates the model
+   * @param delaySeconds the number of seconds between a change and the save that writes it
+   */
+  public AutoSaver(UserStore userStore, UserList userList, Executor modelThread, long delaySeconds) {
+    this.userStore = userStore;
+    this.userList = userList;
+    this.modelThread = modelThread;
+    this.delaySeconds = delaySeconds;
+  }
+
+  /**
+   * Starts scheduling saves whenever the journal records a change.
+   */
+  public void start() {
+    userStore.getJournal().setRecordListener(this::scheduleSave);
+  }
+
+  /**
+   * Schedules a save after the delay, unless one is already scheduled.
+   */
+  public synchronized void scheduleSave() {
+    if (pendingSave == null && !executor.isShutdown()) {
+      pendingSave = executor.schedule(this::runSave, delaySeconds, TimeUnit.SECONDS);
+    }
+  }
+
+  /**
+   * Saves as soon as possible instead of waiting for the delay, such as at logout.
+   */
+  public synchronized void saveNow() {
+    if (executor.isShutdown()) return;
+    if (pendingSave != null) pendingSave.cancel(false);
+    pendingSave = executor.schedule(this::runSave, 0, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Stops saving in the background and waits for a save in progress to finish. The caller
+   * is expected to save whatever is still buffered itself.
+   */
+  public void shutdown() {
+    userStore.getJournal().setRecordListener(null);
+    synchronized (this) {
+      if (pendingSave != null) pendingSave.cancel(false);
+      pendingSave = null;
+      executor.shutdown();
+    }
+    try {
+      executor.awaitTermination(10, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Gets the duration of the last background save.
+   *
+   * @return the duration in milliseconds, or -1 if no save has run yet
+   */
+  public long getLastSaveMillis() {
+    return lastSaveMillis;
+  }
+
+  /**
+   * Appends the buffered changes to the journals and requests compaction snapshots where
+   * needed. Runs on the background thread.
+   */
+  private void runSave() {
+    synchronized (this) {
+      // Changes made from now on need another save
+      pendingSave = null;
+    }
+    long start = System.nanoTime();
+    try {
+      int records = userStore.appendJournals();
+      lastSaveMillis = (System.nanoTime() - start) / 1_000_000;
+      System.out.println("Autosaved " + records + " journal records in " + lastSaveMillis + " ms");
+    } catch (IOException e) {
+      System.out.println("Autosave failed: " + e.getMessage());
+      return;
+    }
+    List<String> dueUsers = userStore.getUsersDueForCompaction();
+    boolean directoryDue = userStore.isDirectoryDueForCompaction();
+    if (!compacting && (!dueUsers.isEmpty() || directoryDue)) {
+      compacting = true;
+      modelThread.execute(() -> encodeSnapshots(dueUsers, directoryDue));
+    }
+  }
+
+  /**
+   * Encodes snapshots of the users and directory due for compaction and hands them to the
+   * background thread to be written. Runs on the model thread, so the model does not change
+   * while it is encoded; the records buffered up to this point are contained in the snapshots
+   * and are discarded.
+   *
+   * @param usernames the users due for compaction
+   * @param directory whether the directory is due for compaction
+   */
+  private void encodeSnapshots(List<String> usernames, boolean directory) {
+    ChangeJournal journal = userStore.getJournal();
+    Map<String, byte[]> userSnapshots = new LinkedHashMap<>();
+    for (String username : usernames) {
+      if (userList.isLoaded(username)) {
+        userSnapshots.put(username, ModelCodec.encodeUser(userList.getUser(username)));
+        journal.discardUserRecords(username);
+      }
+    }
+    byte[] directorySnapshot = null;
+    if (directory) {
+      directorySnapshot = ModelCodec.encodeUsernames(userList.getAllUsernames());
+      journal.discardDirectoryRecords();
+    }
+    byte[] finalDirectorySnapshot = directorySnapshot;
+    Runnable write = () -> writeSnapshots(userSnapshots, finalDirectorySnapshot);
+    try {
+      executor.execute(write);
+    } catch (RejectedExecutionException e) {
+      // Shutting down; the discarded records exist only in these snapshots, so write them here
+      write.run();
+    }
+  }
+
+  /**
+   * Writes encoded compaction snapshots.
+   *
+   * @param userSnapshots     the encoded users, keyed by username
+   * @param directorySnapshot the encoded directory, or null if it is not being compacted
+   */
+  private void writeSnapshots(Map<String, byte[]> userSnapshots, byte[] directorySnapshot) {
+    long start = System.nanoTime();
+    try {
+      for (Map.Entry<String, byte[]> entry : userSnapshots.entrySet()) {
+        userStore.writeUserSnapshot(entry.getKey(), entry.getValue());
+      }
+      if (directorySnapshot != null) {
+        userStore.writeDirectorySnapshot(directorySnapshot);
+      }
+      System.out.println("Compacted " + userSnapshots.size() + " users" + (directorySnapshot != null ? " and the directory" : "")
+              + " in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+    } catch (IOException e) {
+      System.out.println("Compaction failed: " + e.getMessage());
+    } finally {
+      compacting = false;
+    }
+  }
+}
@@ -0,0 +1,214 @@
+package app;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Computes a value from each of many files on a pool of threads, caching the values by path
+ * together with the size and last-modified time of the file they were computed from. The
+ * cache is saved to disk, so only new or changed files are read again.
+ * <p>
+ * Subclasses say how a value is computed and how it is written to the cache file.</p>
+ *
+ * @param <T> the type of the values
+ * @author Reuben Thomas, Ryan Zaken
+ */
+public abstract class CachedFileHasher<T> implements Closeable {
+
+  /**
+   * The value computed from a file and the version of the file it was computed from.
+   *
+   * @param fileSize     the size of the file
+   * @param lastModified the last-modified time of the file
+   * @param value        the value
+   * @param <T>          the type of the value
+   */
+  private record Entry<T>(long fileSize, long lastModified, T value) {
+  }
+
+  /**
+   * The file the cache is saved to.
+   */
+  private final File cacheFile;
+
+  /**
+   * The bytes the cache file starts with.
+   */
+  private final int cacheMagic;
+
+  /**
+   * The current cache format version.
+   */
+  private final int cacheVersion;
+
+  /**
+   * The cached value of each path.
+   */
+  private final Map<String, Entry<T>> cache = new ConcurrentHashMap<>();
+
+  /**
+   * The pool computing values in parallel.
+   */
+  private final ExecutorService executor;
+
+  /**
+   * Whether the cache has changed since it was loaded or saved.
+   */
+  private volatile boolean dirty;
+
+  /**
+   * Constructs a CachedFileHasher, loading the cache if it exists.
+   *
+   * @param cacheFile    the file the cache is saved to
+   * @param cacheMagic   the bytes the cache file starts with
+   * @param cacheVersion the current cache format version
+   * @param threadName   the name of the hashing threads
+   * @param threads      the number of hashing threads
+   */
+  protected CachedFileHasher(File cacheFile, int cacheMagic, int cacheVersion, String threadName, int threads) {
+    this.cacheFile = cacheFile;
+    this.cacheMagic = cacheMagic;
+    this.cacheVersion = cacheVersion;
+    this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+      Thread thread = new Thread(runnable, threadName);
+      thread.setDaemon(true);
+      return thread;
+    });
+    try {
+      loadCache();
+    } catch (IOException e) {
+      // A damaged cache only costs rehashing
+      System.out.println("Ignoring unreadable cache " + cacheFile + ": " + e.getMessage());
+      cache.clear();
+    }
+  }
+
+  /**
+   * Gets the value of a file, from the cache if the file has not changed since it was read.
+   *
+   * @param file the file
+   * @return the value
+   * @throws IOException if the file cannot be read
+   */
+  public T hash(File file) throws IOException {
+    String path = file.getPath();
+    // Read the version before hashing, so a file changed meanwhile is hashed again next time
+    long fileSize = file.length();
+    long lastModified = file.lastModified();
+    Entry<T> entry = cache.get(path);
+    if (entry != null && entry.fileSize() == fileSize && entry.lastModified() == lastModified) {
+      return entry.value();
+    }
+    T value = compute(file);
+    cache.put(path, new Entry<>(fileSize, lastModified, value));
+    dirty = true;
+    return value;
+  }
+
+  /**
+   * Gets the values of several files, computing them in parallel. Blocks until all are done.
+   *
+   * @param paths the file paths
+   * @return the value of each readable file, by path
+   * @throws InterruptedException if the calling thread is interrupted while waiting
+   */
+  public Map<String, T> hashAll(Collection<String> paths) throws InterruptedException {
+    Map<String, Future<T>> futures = new LinkedHashMap<>();
+    for (String path : paths) {
+      futures.put(path, executor.submit(() -> hash(new File(path))));
+    }
+    Map<String, T> values = new LinkedHashMap<>();
+    for (Map.Entry<String, Future<T>> entry : futures.entrySet()) {
+      try {
+        values.put(entry.getKey(), entry.getValue().get());
+      } catch (ExecutionException e) {
+        // A missing or unreadable file simply has no value
+      }
+    }
+    return values;
+  }
+
+  /**
+   * Saves the cache if it has changed, replacing the cache file atomically.
+   *
+   * @throws IOException if the cache cannot be written
+   */
+  public synchronized void save() throws IOException {
+    if (!dirty) return;
+    dirty = false;
+    File temp = new File(cacheFile.getPath() + ".tmp");
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+      out.writeInt(cacheMagic);
+      out.writeInt(cacheVersion);
+      Map<String, Entry<T>> snapshot = new HashMap<>(cache);
+      out.writeInt(snapshot.size());
+      for (Map.Entry<String, Entry<T>> entry : snapshot.entrySet()) {
+        out.writeUTF(entry.getKey());
+        out.writeLong(entry.getValue().fileSize());
+        out.writeLong(entry.getValue().lastModified());
+        writeValue(out, entry.getValue().value());
+      }
+    }
+    Files.move(temp.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Stops the hashing threads and saves the cache.
+   *
+   * @throws IOException if the cache cannot be written
+   */
+  @Override
+  public void close() throws IOException {
+    executor.shutdownNow();
+    save();
+  }
+
+  /**
+   * Computes the value of a file. Runs on a hashing thread or the caller's thread.
+   *
+   * @param file the file
+   * @return the value
+   * @throws IOException if the file cannot be read
+   */
+  protected abstract T compute(File file) throws IOException;
+
+  /**
+   * Writes a value to the cache file.
+   *
+   * @param out   the cache file
+   * @param value the value
+   * @throws IOException if the value cannot be written
+   */
+  protected abstract void writeValue(DataOutputStream out, T value) throws IOException;
+
+  /**
+   * Reads a value from the cache file.
+   *
+   * @param in the cache file
+   * @return the value
+   * @throws IOException if the value cannot be read
+   */
+  protected abstract T readValue(DataInputStream in) throws IOException;
+
+  /**
+   * Loads the cache file, if there is one.
+   *
+   * @throws IOException if the cache file is damaged
+   */
+  private void loadCache() throws IOException {
+    if (!cacheFile.exists()) return;
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)))) {
+      if (in.readInt() != cacheMagic || in.readInt() != cacheVersion) {
+        throw new IOException("Not a cache of this version");
+      }
+      int count = in.readInt();
+      for (int i = 0; i < count; i++) {
+        String path = in.readUTF();
+        cache.put(path, new Entry<>(in.readLong(), in.readLong(), readValue(in)));
+      }
+    }
+  }
+}
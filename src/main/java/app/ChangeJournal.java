@@ -0,0 +1,607 @@
+package app;
+
+import app.model.*;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.*;
+
+/**
+ * Write-ahead journal of model mutations. Each mutation reported through
+ * {@link ModelChangeListener} is encoded as a small record and buffered until the next save,
+ * when the buffered records are appended to the journal of the affected user (or to the
+ * directory journal for added and deleted users). Loading a user replays its journal on top
+ * of its last snapshot, so a save costs time proportional to the number of changes.
+ * @author Reuben Thomas, Ryan Zaken
+ */
+public class ChangeJournal implements ModelChangeListener {
+
+  /** Record type for a user added to the user list. */
+  private static final byte USER_ADDED = 1;
+  /** Record type for a user deleted from the user list. */
+  private static final byte USER_DELETED = 2;
+  /** Record type for an album added to a user. */
+  private static final byte ALBUM_ADDED = 3;
+  /** Record type for an album renamed. */
+  private static final byte ALBUM_RENAMED = 4;
+  /** Record type for an album deleted. */
+  private static final byte ALBUM_DELETED = 5;
+  /** Record type for a tag type added to a user. */
+  private static final byte TAG_TYPE_ADDED = 6;
+  /** Record type for a tag type removed from a user. */
+  private static final byte TAG_TYPE_REMOVED = 7;
+  /** Record type for a photo added to an album. */
+  private static final byte PHOTO_ADDED = 8;
+  /** Record type for a photo removed from an album. */
+  private static final byte PHOTO_REMOVED = 9;
+  /** Record type for a caption change. */
+  private static final byte CAPTION_CHANGED = 10;
+  /** Record type for a tag added to a photo. */
+  private static final byte TAG_ADDED = 11;
+  /** Record type for a tag removed from a photo. */
+  private static final byte TAG_REMOVED = 12;
+  /** Record type for a change to the date a photo was taken. */
+  private static final byte DATE_TAKEN_CHANGED = 13;
+
+  /**
+   * A batch of encoded records waiting to be appended to a journal file.
+   *
+   * @param bytes   the encoded records
+   * @param records the number of records in the batch
+   */
+  public record Batch(byte[] bytes, int records) {
+  }
+
+  /**
+   * The records buffered for each user since the last save, keyed by username.
+   */
+  private final Map<String, RecordBuffer> pendingUserRecords = new HashMap<>();
+
+  /**
+   * The records buffered for the directory journal since the last save.
+   */
+  private RecordBuffer pendingDirectoryRecords = new RecordBuffer();
+
+  /**
+   * The users deleted since the last save, whose shard and journal must be removed.
+   */
+  private final Set<String> deletedUsers = new LinkedHashSet<>();
+
+  /**
+   * Called after each record is buffered, or null if nobody needs to know.
+   */
+  private Runnable recordListener;
+
+  /**
+   * Sets the callback run after each record is buffered, such as a request for a
+   * background save. The callback runs on the thread that mutated the model.
+   *
+   * @param recordListener the callback, or null to remove it
+   */
+  public synchronized void setRecordListener(Runnable recordListener) {
+    this.recordListener = recordListener;
+  }
+
+  @Override
+  public synchronized void userAdded(User user) {
+    pendingDirectoryRecords.write(USER_ADDED, out -> writeString(out, user.getUsername()));
+    recorded();
+  }
+
+  @Override
+  public synchronized void userDeleted(String username) {
+    pendingDirectoryRecords.write(USER_DELETED, out -> writeString(out, username));
+    pendingUserRecords.remove(username);
+    deletedUsers.add(username);
+    recorded();
+  }
+
+  @Override
+  public synchronized void albumAdded(User user, Album album) {
+    bufferFor(user).write(ALBUM_ADDED, out -> writeString(out, album.getName()));
+    recorded();
+  }
+
+  @Override
+  public synchronized void albumRenamed(User user, String oldName, String newName) {
+    bufferFor(user).write(ALBUM_RENAMED, out -> {
+      writeString(out, oldName);
+      writeString(out, newName);
+    });
+    recorded();
+  }
+
+  @Override
+  public synchronized void albumDeleted(User user, String name) {
+    bufferFor(user).write(ALBUM_DELETED, out -> writeString(out, name));
+    recorded();
+  }
+
+  @Override
+  public synchronized void tagTypeAdded(User user, TagType tagType) {
+    bufferFor(user).write(TAG_TYPE_ADDED, out -> {
+      writeString(out, tagType.getName());
+      out.writeBoolean(tagType.isMultiValue());
+    });
+    recorded();
+  }
+
+  @Override
+  public synchronized void tagTypeRemoved(User user, String name) {
+    bufferFor(user).write(TAG_TYPE_REMOVED, out -> writeString(out, name));
+    recorded();
+  }
+
+  @Override
+  public synchronized void photoAdded(User user, Album album, Photo photo) {
+    bufferFor(user).write(PHOTO_ADDED, out -> {
+      writeString(out, album.getName());
+      writeString(out, photo.getPath());
+      out.writeLong(photo.getDateTaken().toEpochSecond(ZoneOffset.UTC));
+      out.writeInt(photo.getDateTaken().getNano());
+      writeString(out, photo.getCaption());
+      out.writeInt(photo.getTags().size());
+      for (Tag tag : photo.getTags()) {
+        writeTag(out, tag);
+      }
+    });
+    recorded();
+  }
+
+  @Override
+  public synchronized void photoRemoved(User user, Album album, Photo photo) {
+    bufferFor(user).write(PHOTO_REMOVED, out -> {
+      writeString(out, album.getName());
+      writeString(out, photo.getPath());
+    });
+    recorded();
+  }
+
+  @Override
+  public synchronized void captionChanged(User user, Photo photo) {
+    bufferFor(user).write(CAPTION_CHANGED, out -> {
+      writeString(out, photo.getPath());
+      writeString(out, photo.getCaption());
+    });
+    recorded();
+  }
+
+  @Override
+  public synchronized void dateTakenChanged(User user, Photo photo) {
+    bufferFor(user).write(DATE_TAKEN_CHANGED, out -> {
+      writeString(out, photo.getPath());
+      out.writeLong(photo.getDateTaken().toEpochSecond(ZoneOffset.UTC));
+      out.writeInt(photo.getDateTaken().getNano());
+    });
+    recorded();
+  }
+
+  @Override
+  public synchronized void tagAdded(User user, Photo photo, Tag tag) {
+    bufferFor(user).write(TAG_ADDED, out -> {
+      writeString(out, photo.getPath());
+      writeTag(out, tag);
+    });
+    recorded();
+  }
+
+  @Override
+  public synchronized void tagRemoved(User user, Photo photo, Tag tag) {
+    bufferFor(user).write(TAG_REMOVED, out -> {
+      writeString(out, photo.getPath());
+      writeTag(out, tag);
+    });
+    recorded();
+  }
+
+  /**
+   * Removes and returns the records buffered for the directory journal.
+   *
+   * @return the buffered batch, or null if nothing is buffered
+   */
+  public synchronized Batch drainDirectoryRecords() {
+    Batch batch = pendingDirectoryRecords.toBatch();
+    pendingDirectoryRecords = new RecordBuffer();
+    return batch;
+  }
+
+  /**
+   * Removes and returns the records buffered for each user.
+   *
+   * @return the buffered batches keyed by username
+   */
+  public synchronized Map<String, Batch> drainUserRecords() {
+    Map<String, Batch> batches = new LinkedHashMap<>();
+    pendingUserRecords.forEach((username, buffer) -> batches.put(username, buffer.toBatch()));
+    pendingUserRecords.clear();
+    return batches;
+  }
+
+  /**
+   * Removes and returns the usernames deleted since the last drain.
+   *
+   * @return the deleted usernames
+   */
+  public synchronized Set<String> drainDeletedUsers() {
+    Set<String> deleted = new LinkedHashSet<>(deletedUsers);
+    deletedUsers.clear();
+    return deleted;
+  }
+
+  /**
+   * Discards the records buffered for a single user, for use when a snapshot of that user
+   * has just been taken and already contains their effect.
+   *
+   * @param username the username whose records are discarded
+   */
+  public synchronized void discardUserRecords(String username) {
+    pendingUserRecords.remove(username);
+  }
+
+  /**
+   * Discards the records buffered for the directory journal, for use when a snapshot of the
+   * user directory has just been taken and already contains their effect.
+   */
+  public synchronized void discardDirectoryRecords() {
+    pendingDirectoryRecords = new RecordBuffer();
+  }
+
+  /**
+   * Discards everything buffered, for use after a full snapshot has been written.
+   */
+  public synchronized void clear() {
+    pendingUserRecords.clear();
+    pendingDirectoryRecords = new RecordBuffer();
+    deletedUsers.clear();
+  }
+
+  /**
+   * Appends a batch of records to a journal file.
+   *
+   * @param journalFile the journal file
+   * @param batch       the batch to append
+   * @throws IOException if the journal cannot be written
+   */
+  public static void append(File journalFile, Batch batch) throws IOException {
+    try (FileOutputStream out = new FileOutputStream(journalFile, true)) {
+      out.write(batch.bytes());
+      out.getFD().sync();
+    }
+  }
+
+  /**
+   * Replays the directory journal onto a user list, registering added users as unloaded.
+   * A record cut short by a crash is cut off the end of the journal.
+   *
+   * @param journalFile the directory journal
+   * @param userList    the user list to update
+   * @return the number of records replayed
+   * @throws IOException if the journal cannot be read
+   */
+  public static int replayDirectory(File journalFile, UserList userList) throws IOException {
+    if (!journalFile.exists()) return 0;
+    int records = 0;
+    long complete = 0;
+    try (CountingInputStream counter = new CountingInputStream(journalFile);
+         DataInputStream in = new DataInputStream(counter)) {
+      int type;
+      while ((type = in.read()) != -1) {
+        String username = readString(in);
+        if (type == USER_ADDED) {
+          userList.addUnloadedUser(username);
+        } else if (type == USER_DELETED) {
+          userList.deleteUser(username);
+        }
+        records++;
+        complete = counter.getCount();
+      }
+    } catch (EOFException e) {
+      // A record cut short by a crash; everything before it has been applied
+      truncate(journalFile, complete);
+    }
+    return records;
+  }
+
+  /**
+   * Replays a user's journal onto the user loaded from its last snapshot. Records whose
+   * effect is already present in the snapshot are skipped, and a record cut short by a crash
+   * is cut off the end of the journal.
+   *
+   * @param journalFile the user's journal
+   * @param user        the user to update
+   * @return the number of records replayed
+   * @throws IOException if the journal cannot be read
+   */
+  public static int replayUser(File journalFile, User user) throws IOException {
+    if (!journalFile.exists()) return 0;
+    int records = 0;
+    long complete = 0;
+    Album.setInitializingStock(true);
+    try (CountingInputStream counter = new CountingInputStream(journalFile);
+         DataInputStream in = new DataInputStream(counter)) {
+      int type;
+      while ((type = in.read()) != -1) {
+        applyUserRecord(user, (byte) type, in);
+        records++;
+        complete = counter.getCount();
+      }
+    } catch (EOFException e) {
+      // A record cut short by a crash; everything before it has been applied
+      truncate(journalFile, complete);
+    } finally {
+      Album.setInitializingStock(false);
+    }
+    return records;
+  }
+
+  /**
+   * Reads one user record and applies it to the user.
+   *
+   * @param user the user to update
+   * @param type the record type
+   * @param in   the stream positioned after the record type
+   * @throws IOException if the record cannot be read
+   */
+  private static void applyUserRecord(User user, byte type, DataInputStream in) throws IOException {
+    switch (type) {
+      case ALBUM_ADDED -> user.addAlbum(readString(in));
+      case ALBUM_RENAMED -> user.renameAlbum(readString(in), readString(in));
+      case ALBUM_DELETED -> user.deleteAlbum(readString(in));
+      case TAG_TYPE_ADDED -> user.addTagType(readString(in), in.readBoolean());
+      case TAG_TYPE_REMOVED -> user.removeTagType(readString(in));
+      case PHOTO_ADDED -> {
+        Album album = user.getAlbum(readString(in));
+        String path = readString(in);
+        LocalDateTime dateTaken = LocalDateTime.ofEpochSecond(in.readLong(), in.readInt(), ZoneOffset.UTC);
+        String caption = readString(in);
+        int tagCount = in.readInt();
+        List<Tag> tags = new ArrayList<>();
+        for (int i = 0; i < tagCount; i++) {
+          tags.add(readTag(in, user));
+        }
+        Photo photo = user.getPhoto(path);
+        if (photo == null) {
+          photo = new Photo(path, dateTaken);
+          photo.setCaption(caption);
+          photo.getTags().addAll(tags);
+        }
+        if (album != null && !album.hasPhoto(photo)) album.addPhoto(photo);
+      }
+      case PHOTO_REMOVED -> {
+        Album album = user.getAlbum(readString(in));
+        Photo photo = album != null ? album.getPhoto(readString(in)) : null;
+        if (photo != null) album.removePhoto(photo);
+      }
+      case CAPTION_CHANGED -> {
+        Photo photo = user.getPhoto(readString(in));
+        String caption = readString(in);
+        if (photo != null) photo.setCaption(caption);
+      }
+      case DATE_TAKEN_CHANGED -> {
+        Photo photo = user.getPhoto(readString(in));
+        LocalDateTime dateTaken = LocalDateTime.ofEpochSecond(in.readLong(), in.readInt(), ZoneOffset.UTC);
+        if (photo != null) photo.setDateTaken(dateTaken);
+      }
+      case TAG_ADDED -> {
+        Photo photo = user.getPhoto(readString(in));
+        Tag tag = readTag(in, user);
+        if (photo != null && !photo.hasTag(tag)) photo.addTag(tag);
+      }
+      case TAG_REMOVED -> {
+        Photo photo = user.getPhoto(readString(in));
+        Tag tag = readTag(in, user);
+        if (photo != null) photo.removeTag(tag);
+      }
+      default -> throw new IOException("Unknown journal record type " + type);
+    }
+  }
+
+  /**
+   * Cuts a journal file down to its complete records, so that records appended later are not
+   * lost behind the remains of a record cut short by a crash.
+   *
+   * @param journalFile the journal file
+   * @param length      the length of the complete records
+   * @throws IOException if the journal cannot be truncated
+   */
+  private static void truncate(File journalFile, long length) throws IOException {
+    try (RandomAccessFile file = new RandomAccessFile(journalFile, "rw")) {
+      file.setLength(length);
+      file.getFD().sync();
+    }
+  }
+
+  /**
+   * Writes a string as its length in UTF-8 bytes followed by the bytes. Unlike
+   * {@link DataOutputStream#writeUTF(String)}, strings of any length can be written.
+   *
+   * @param out the stream to write to
+   * @param s   the string to write
+   * @throws IOException if the string cannot be written
+   */
+  private static void writeString(DataOutputStream out, String s) throws IOException {
+    byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  /**
+   * Reads a string written by {@link #writeString(DataOutputStream, String)}.
+   *
+   * @param in the stream to read from
+   * @return the string
+   * @throws IOException if the string cannot be read
+   * @throws EOFException if the journal ends before the string does
+   */
+  private static String readString(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    if (length < 0) throw new IOException("Invalid string length " + length + " in journal");
+    // A length past the end of the file is a record cut short, not a string to allocate
+    if (length > in.available()) throw new EOFException();
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Writes a tag as its type name, multi-value flag and values.
+   *
+   * @param out the stream to write to
+   * @param tag the tag to write
+   * @throws IOException if the tag cannot be written
+   */
+  private static void writeTag(DataOutputStream out, Tag tag) throws IOException {
+    writeString(out, tag.getName());
+    out.writeBoolean(tag.getType().isMultiValue());
+    out.writeInt(tag.getValues().size());
+    for (String value : tag.getValues()) {
+      writeString(out, value);
+    }
+  }
+
+  /**
+   * Reads a tag written by {@link #writeTag(DataOutputStream, Tag)}, reusing the user's
+   * tag type of the same name when one is defined.
+   *
+   * @param in   the stream to read from
+   * @param user the user owning the tag
+   * @return the tag
+   * @throws IOException if the tag cannot be read
+   */
+  private static Tag readTag(DataInputStream in, User user) throws IOException {
+    String name = readString(in);
+    boolean multiValue = in.readBoolean();
+    int valueCount = in.readInt();
+    TagType type = user.getTagType(name);
+    if (type == null) type = new TagType(name, multiValue);
+    Tag tag = null;
+    for (int i = 0; i < valueCount; i++) {
+      String value = readString(in);
+      if (tag == null) {
+        tag = new Tag(type, value);
+      } else {
+        tag.getValues().add(value);
+      }
+    }
+    return tag;
+  }
+
+  /**
+   * Tells the record listener, if any, that a record has been buffered.
+   */
+  private void recorded() {
+    if (recordListener != null) recordListener.run();
+  }
+
+  /**
+   * Gets the record buffer of a user, creating it if needed.
+   *
+   * @param user the user
+   * @return the record buffer of the user
+   */
+  private RecordBuffer bufferFor(User user) {
+    return pendingUserRecords.computeIfAbsent(user.getUsername(), username -> new RecordBuffer());
+  }
+
+  /**
+   * Writes the fields of a single record.
+   */
+  private interface RecordWriter {
+    /**
+     * Writes the fields of a record.
+     *
+     * @param out the stream to write to
+     * @throws IOException if the record cannot be written
+     */
+    void write(DataOutputStream out) throws IOException;
+  }
+
+  /**
+   * An in-memory buffer of encoded records.
+   */
+  private static class RecordBuffer {
+    /** The encoded records. */
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    /** The number of records in the buffer. */
+    private int records;
+
+    /**
+     * Encodes a record into the buffer. The record is encoded on its own first, so a field
+     * that cannot be written leaves no partial record behind.
+     *
+     * @param type   the record type
+     * @param writer writes the fields of the record
+     */
+    void write(byte type, RecordWriter writer) {
+      ByteArrayOutputStream record = new ByteArrayOutputStream();
+      try (DataOutputStream out = new DataOutputStream(record)) {
+        out.writeByte(type);
+        writer.write(out);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      bytes.writeBytes(record.toByteArray());
+      records++;
+    }
+
+    /**
+     * Gets the buffered records as a batch.
+     *
+     * @return the batch, or null if the buffer is empty
+     */
+    Batch toBatch() {
+      return records == 0 ? null : new Batch(bytes.toByteArray(), records);
+    }
+  }
+
+  /**
+   * A buffered stream over a journal file that counts the bytes read, so that replay knows
+   * where the last complete record ends.
+   */
+  private static class CountingInputStream extends FilterInputStream {
+    /** The number of bytes read so far. */
+    private long count;
+
+    /**
+     * Opens a journal file for reading.
+     *
+     * @param journalFile the journal file
+     * @throws FileNotFoundException if the journal cannot be opened
+     */
+    CountingInputStream(File journalFile) throws FileNotFoundException {
+      super(new BufferedInputStream(new FileInputStream(journalFile)));
+    }
+
+    /**
+     * Gets the number of bytes read so far.
+     *
+     * @return the number of bytes read
+     */
+    long getCount() {
+      return count;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b != -1) count++;
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int n = super.read(b, off, len);
+      if (n > 0) count += n;
+      return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long skipped = super.skip(n);
+      count += skipped;
+      return skipped;
+    }
+  }
+}
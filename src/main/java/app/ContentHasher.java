@@ -0,0 +1,107 @@
+package app;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+/**
+ * Computes SHA-256 digests of photo files, so the same image stored under two paths can be
+ * recognised. Files are read through memory maps and hashed on a pool of threads.
+ * <p>
+ * Digests are cached by path, together with the size and last-modified time of the file they
+ * were computed from, and the cache is saved to disk, so hashing a library again only reads
+ * the files that have changed.</p>
+ * @author Reuben Thomas, Ryan Zaken
+ */
+public class ContentHasher extends CachedFileHasher<String> {
+
+  /**
+   * The bytes the cache file starts with.
+   */
+  private static final int CACHE_MAGIC = 0x50484153; // "PHAS"
+
+  /**
+   * The current cache format version.
+   */
+  private static final int CACHE_VERSION = 1;
+
+  /**
+   * The number of bytes of a file mapped at a time, which keeps huge files from exhausting
+   * the address space.
+   */
+  private static final long MAP_WINDOW_BYTES = 64L * 1024 * 1024;
+
+  /**
+   * Constructs a ContentHasher, loading the cache if it exists.
+   *
+   * @param cacheFile the file the cache is saved to
+   * @param threads   the number of hashing threads
+   */
+  public ContentHasher(File cacheFile, int threads) {
+    super(cacheFile, CACHE_MAGIC, CACHE_VERSION, "content-hasher", threads);
+  }
+
+  /**
+   * Hashes the content of a file.
+   *
+   * @param file the file
+   * @return the hexadecimal SHA-256 digest of the file's content
+   * @throws IOException if the file cannot be read
+   */
+  @Override
+  protected String compute(File file) throws IOException {
+    return computeDigest(file.toPath());
+  }
+
+  /**
+   * Writes a digest to the cache file.
+   *
+   * @param out    the cache file
+   * @param digest the hexadecimal digest
+   * @throws IOException if the digest cannot be written
+   */
+  @Override
+  protected void writeValue(DataOutputStream out, String digest) throws IOException {
+    out.writeUTF(digest);
+  }
+
+  /**
+   * Reads a digest from the cache file.
+   *
+   * @param in the cache file
+   * @return the hexadecimal digest
+   * @throws IOException if the digest cannot be read
+   */
+  @Override
+  protected String readValue(DataInputStream in) throws IOException {
+    return in.readUTF();
+  }
+
+  /**
+   * Hashes the content of a file through memory maps.
+   *
+   * @param path the file
+   * @return the hexadecimal SHA-256 digest
+   * @throws IOException if the file cannot be read
+   */
+  private static String computeDigest(Path path) throws IOException {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is not available", e);
+    }
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      long size = channel.size();
+      for (long position = 0; position < size; position += MAP_WINDOW_BYTES) {
+        MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_WINDOW_BYTES, size - position));
+        digest.update(window);
+      }
+    }
+    return HexFormat.of().formatHex(digest.digest());
+  }
+}
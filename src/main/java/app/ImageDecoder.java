@@ -0,0 +1,200 @@
+package app;
+
+import app.model.Exif;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+/**
+ * Decodes image files at a requested size. Large images are subsampled by the reader while
+ * they are decoded, so the full-resolution pixels of a photo are never held in memory just to
+ * show a small version of it.
+ * @author Reuben Thomas, Ryan Zaken
+ */
+public final class ImageDecoder {
+
+  /**
+   * Prevents instantiation; all methods are static.
+   */
+  private ImageDecoder() {
+  }
+
+  /**
+   * The largest relative difference between the aspect ratios of a photo and its embedded
+   * thumbnail for the thumbnail to be used. Some cameras pad the thumbnail with black bars
+   * instead of matching the photo.
+   */
+  private static final double MAX_ASPECT_DIFFERENCE = 0.02;
+
+  /**
+   * Decodes an image file scaled down to fit within the requested size, preserving its aspect
+   * ratio. Images already smaller than the requested size are not scaled up. Transparent areas
+   * are filled with white. If the file embeds an EXIF thumbnail at least as large as the
+   * result, the thumbnail is scaled instead and the image itself is not decoded at all.
+   *
+   * @param file   the image file
+   * @param width  the maximum width
+   * @param height the maximum height
+   * @return the scaled image, or null if the file is not a readable image
+   * @throws IOException if the file cannot be read
+   */
+  public static BufferedImage decode(File file, int width, int height) throws IOException {
+    if (width <= 0 || height <= 0) {
+      throw new IllegalArgumentException("The requested size must be positive!");
+    }
+    BufferedImage embedded = decodeEmbeddedThumbnail(file, width, height);
+    if (embedded != null) {
+      return scale(embedded, width, height);
+    }
+    BufferedImage source;
+    try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+      if (in == null) return null;
+      Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+      if (!readers.hasNext()) return null;
+      ImageReader reader = readers.next();
+      try {
+        reader.setInput(in, true, true);
+        ImageReadParam param = reader.getDefaultReadParam();
+        int subsampling = subsampling(reader.getWidth(0), reader.getHeight(0), width, height);
+        param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+        source = reader.read(0, param);
+      } finally {
+        reader.dispose();
+      }
+    }
+    return scale(source, width, height);
+  }
+
+  /**
+   * Decodes the EXIF thumbnail of a JPEG file if it can stand in for the image at the
+   * requested size.
+   *
+   * @param file   the image file
+   * @param width  the maximum width
+   * @param height the maximum height
+   * @return the thumbnail, or null if there is none or it is too small or the wrong shape
+   * @throws IOException if the file cannot be read
+   */
+  private static BufferedImage decodeEmbeddedThumbnail(File file, int width, int height) throws IOException {
+    Exif exif = Exif.read(file);
+    if (exif == null || exif.getThumbnail() == null || exif.getWidth() == 0 || exif.getHeight() == 0) {
+      return null;
+    }
+    double factor = Math.min(1.0, Math.min((double) width / exif.getWidth(), (double) height / exif.getHeight()));
+    BufferedImage thumbnail = ImageIO.read(new ByteArrayInputStream(exif.getThumbnail()));
+    if (thumbnail == null
+            || thumbnail.getWidth() < Math.round(exif.getWidth() * factor)
+            || thumbnail.getHeight() < Math.round(exif.getHeight() * factor)) {
+      return null;
+    }
+    double aspect = (double) exif.getWidth() / exif.getHeight();
+    double thumbnailAspect = (double) thumbnail.getWidth() / thumbnail.getHeight();
+    return Math.abs(thumbnailAspect - aspect) / aspect <= MAX_ASPECT_DIFFERENCE ? thumbnail : null;
+  }
+
+  /**
+   * Reads the size of an image from its header, without decoding its pixels.
+   *
+   * @param file the image file
+   * @return the width and height of the image, or null if the file is not a readable image
+   * @throws IOException if the file cannot be read
+   */
+  public static Dimension readSize(File file) throws IOException {
+    try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+      if (in == null) return null;
+      Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+      if (!readers.hasNext()) return null;
+      ImageReader reader = readers.next();
+      try {
+        reader.setInput(in, true, true);
+        return new Dimension(reader.getWidth(0), reader.getHeight(0));
+      } finally {
+        reader.dispose();
+      }
+    }
+  }
+
+  /**
+   * Decodes a region of an image file, keeping every {@code subsampling}-th pixel of it in
+   * each direction. Only the pixels of the region are held in memory, so a small part of a
+   * very large image can be shown in detail.
+   *
+   * @param file        the image file
+   * @param region      the region to decode, in pixels of the original
+   * @param subsampling the step between decoded pixels, at least 1
+   * @return the decoded region, or null if the file is not a readable image
+   * @throws IOException if the file cannot be read
+   */
+  public static BufferedImage decodeRegion(File file, Rectangle region, int subsampling) throws IOException {
+    if (subsampling < 1) {
+      throw new IllegalArgumentException("The subsampling step must be at least 1!");
+    }
+    try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+      if (in == null) return null;
+      Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+      if (!readers.hasNext()) return null;
+      ImageReader reader = readers.next();
+      try {
+        reader.setInput(in, true, true);
+        ImageReadParam param = reader.getDefaultReadParam();
+        param.setSourceRegion(region.intersection(new Rectangle(reader.getWidth(0), reader.getHeight(0))));
+        param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+        return reader.read(0, param);
+      } finally {
+        reader.dispose();
+      }
+    }
+  }
+
+  /**
+   * Chooses the subsampling step for decoding an image for display at the requested size.
+   * At least twice the requested size is kept so the final scaling can smooth the result.
+   *
+   * @param sourceWidth  the width of the image
+   * @param sourceHeight the height of the image
+   * @param width        the maximum width
+   * @param height       the maximum height
+   * @return the step between decoded pixels, at least 1
+   */
+  static int subsampling(int sourceWidth, int sourceHeight, int width, int height) {
+    return Math.max(1, Math.min(sourceWidth / (width * 2), sourceHeight / (height * 2)));
+  }
+
+  /**
+   * Scales an image down to fit within the requested size, preserving its aspect ratio.
+   *
+   * @param source the image
+   * @param width  the maximum width
+   * @param height the maximum height
+   * @return a new opaque RGB image
+   */
+  private static BufferedImage scale(BufferedImage source, int width, int height) {
+    double factor = Math.min(1.0, Math.min((double) width / source.getWidth(), (double) height / source.getHeight()));
+    int scaledWidth = Math.max(1, (int) Math.round(source.getWidth() * factor));
+    int scaledHeight = Math.max(1, (int) Math.round(source.getHeight() * factor));
+    BufferedImage scaled = new BufferedImage(scaledWidth, scaledHeight, BufferedImage.TYPE_INT_RGB);
+    Graphics2D g = scaled.createGraphics();
+    try {
+      g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+      g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+      g.setColor(Color.WHITE);
+      g.fillRect(0, 0, scaledWidth, scaledHeight);
+      g.drawImage(source, 0, 0, scaledWidth, scaledHeight, null);
+    } finally {
+      g.dispose();
+    }
+    return scaled;
+  }
+}
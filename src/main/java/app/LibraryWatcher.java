@@ -0,0 +1,315 @@
+package app;
+
+import app.model.Photo;
+import app.model.User;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+/**
+ * Keeps the photos of a user in step with their files while the user is logged in. The
+ * directories holding the user's photos are watched with a {@link WatchService}, so only the
+ * files that actually change are looked at, never the whole library.
+ * <p>
+ * Events are coalesced: after the first event the watcher waits briefly for the rest of the
+ * burst, such as a folder being copied, and then handles each changed file once. A photo whose
+ * file has gone is flagged missing, and unflagged if the file comes back. The persistent
+ * thumbnail of a changed or deleted file is dropped, the photo's content and perceptual hashes
+ * are cleared so they are computed again, and the listener is told which photos changed so
+ * views can refresh, drop their cached images and rehash. The date taken of an edited file is
+ * then read again off the model thread, and the listener is told again of photos whose date
+ * moved.</p>
+ * @author Reuben Thomas, Ryan Zaken
+ */
+public class LibraryWatcher implements Closeable {
+
+  /**
+   * The time to wait for more events after the first event of a burst, in milliseconds.
+   */
+  private static final long COALESCE_MILLIS = 300;
+
+  /**
+   * The interval at which the watched directories are brought in line with the user's photos,
+   * in seconds, so that directories of newly added photos are picked up.
+   */
+  private static final long RESYNC_SECONDS = 30;
+
+  /**
+   * The user whose photos are watched.
+   */
+  private final User user;
+
+  /**
+   * Runs tasks on the thread that mutates the model, such as the JavaFX application thread.
+   */
+  private final Executor modelThread;
+
+  /**
+   * The store whose thumbnails of changed files are dropped, or null if there is none.
+   */
+  private final ThumbnailStore thumbnailStore;
+
+  /**
+   * Receives the paths of the changed photos on the model thread.
+   */
+  private final Consumer<Set<String>> listener;
+
+  /**
+   * The service delivering file events.
+   */
+  private final WatchService watchService;
+
+  /**
+   * The registration of each watched directory.
+   */
+  private final Map<Path, WatchKey> watchedDirectories = new ConcurrentHashMap<>();
+
+  /**
+   * The thread taking file events from the service.
+   */
+  private final Thread eventThread;
+
+  /**
+   * The thread periodically bringing the watched directories in line with the user's photos.
+   */
+  private final ScheduledExecutorService resyncExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+    Thread thread = new Thread(runnable, "library-resync");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  /**
+   * Whether the watcher has been closed.
+   */
+  private volatile boolean closed;
+
+  /**
+   * Constructs a LibraryWatcher for a user. Call {@link #start()} to begin watching.
+   *
+   * @param user           the user whose photos are watched
+   * @param modelThread    runs tasks on the thread that mutates the model
+   * @param thumbnailStore the store whose thumbnails of changed files are dropped, or null
+   * @param listener       receives the paths of the changed photos on the model thread
+   * @throws IOException if the watch service cannot be created
+   */
+  public LibraryWatcher(User user, Executor modelThread, ThumbnailStore thumbnailStore,
+                        Consumer<Set<String>> listener) throws IOException {
+    this.user = user;
+    this.modelThread = modelThread;
+    this.thumbnailStore = thumbnailStore;
+    this.listener = listener;
+    this.watchService = FileSystems.getDefault().newWatchService();
+    this.eventThread = new Thread(this::processEvents, "library-watcher");
+    this.eventThread.setDaemon(true);
+  }
+
+  /**
+   * Gets the user whose photos are watched.
+   *
+   * @return the user
+   */
+  public User getUser() {
+    return user;
+  }
+
+  /**
+   * Starts watching the directories of the user's photos, and keeps the set of directories up
+   * to date as photos are added and removed.
+   */
+  public void start() {
+    eventThread.start();
+    resyncExecutor.scheduleWithFixedDelay(() -> modelThread.execute(this::resync), 0, RESYNC_SECONDS, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Stops watching. Events not yet handled are dropped.
+   *
+   * @throws IOException if the watch service cannot be closed
+   */
+  @Override
+  public void close() throws IOException {
+    closed = true;
+    resyncExecutor.shutdownNow();
+    eventThread.interrupt();
+    watchService.close();
+  }
+
+  /**
+   * Watches the directories of the user's photos and stops watching those no photo is in any
+   * more. Photos in newly watched directories are checked at once, since they may have changed
+   * while unwatched. Runs on the model thread.
+   */
+  private void resync() {
+    if (closed) return;
+    Map<Path, List<Photo>> photosByDirectory = new HashMap<>();
+    for (Photo photo : user.getAllPhotos()) {
+      Path directory = Paths.get(photo.getPath()).getParent();
+      if (directory != null) {
+        photosByDirectory.computeIfAbsent(directory, d -> new ArrayList<>()).add(photo);
+      }
+    }
+    watchedDirectories.entrySet().removeIf(entry -> {
+      if (photosByDirectory.containsKey(entry.getKey())) return false;
+      entry.getValue().cancel();
+      return true;
+    });
+    Set<String> changed = new HashSet<>();
+    for (Map.Entry<Path, List<Photo>> entry : photosByDirectory.entrySet()) {
+      if (watchedDirectories.containsKey(entry.getKey())) continue;
+      try {
+        watchedDirectories.put(entry.getKey(), entry.getKey().register(watchService,
+                StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE,
+                StandardWatchEventKinds.ENTRY_MODIFY));
+      } catch (IOException | ClosedWatchServiceException e) {
+        // A directory that has gone is not watched, but its photos are still checked
+      }
+      for (Photo photo : entry.getValue()) {
+        if (updateMissing(photo)) changed.add(photo.getPath());
+      }
+    }
+    if (!changed.isEmpty()) {
+      listener.accept(changed);
+    }
+  }
+
+  /**
+   * Takes file events from the service, coalescing each burst into one set of changed paths.
+   * Runs on the event thread until the watcher is closed.
+   */
+  private void processEvents() {
+    try {
+      while (!closed) {
+        Set<Path> changed = new HashSet<>();
+        collectEvents(watchService.take(), changed);
+        // Gather the rest of the burst before handling it
+        long deadline = System.currentTimeMillis() + COALESCE_MILLIS;
+        long remaining;
+        while ((remaining = deadline - System.currentTimeMillis()) > 0) {
+          WatchKey key = watchService.poll(remaining, TimeUnit.MILLISECONDS);
+          if (key == null) break;
+          collectEvents(key, changed);
+        }
+        handleChanges(changed);
+      }
+    } catch (InterruptedException | ClosedWatchServiceException e) {
+      // The watcher has been closed
+    }
+  }
+
+  /**
+   * Adds the paths of the events of a key to the set of changed paths and re-arms the key.
+   * After an overflow, every photo of the directory is treated as changed.
+   *
+   * @param key     the signalled key
+   * @param changed the changed paths collected so far
+   */
+  private void collectEvents(WatchKey key, Set<Path> changed) {
+    Path directory = (Path) key.watchable();
+    for (WatchEvent<?> event : key.pollEvents()) {
+      if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+        changed.add(directory);
+      } else {
+        changed.add(directory.resolve((Path) event.context()));
+      }
+    }
+    key.reset();
+  }
+
+  /**
+   * Drops the persistent thumbnails of the changed files and updates their photos on the model
+   * thread. Runs on the event thread.
+   *
+   * @param changed the changed paths, or directories whose events overflowed
+   */
+  private void handleChanges(Set<Path> changed) {
+    if (thumbnailStore != null) {
+      for (Path path : changed) {
+        try {
+          thumbnailStore.remove(path.toString());
+        } catch (IOException e) {
+          System.out.println("Could not drop thumbnail of " + path + ": " + e.getMessage());
+        }
+      }
+    }
+    modelThread.execute(() -> {
+      if (closed) return;
+      List<Photo> changedPhotos = new ArrayList<>();
+      for (Path path : changed) {
+        if (watchedDirectories.containsKey(path)) {
+          // Events were lost, so check every photo of the directory
+          for (Photo photo : user.getAllPhotos()) {
+            if (path.equals(Paths.get(photo.getPath()).getParent())) changedPhotos.add(photo);
+          }
+          continue;
+        }
+        Photo photo = user.getPhoto(path.toString());
+        if (photo != null) changedPhotos.add(photo);
+      }
+      if (changedPhotos.isEmpty()) return;
+      Set<String> changedPaths = new HashSet<>();
+      List<Photo> presentPhotos = new ArrayList<>();
+      for (Photo photo : changedPhotos) {
+        updateMissing(photo);
+        // The file may have been rewritten, so what was computed from it is stale
+        photo.setContentHash(null);
+        photo.setPerceptualHash(null);
+        changedPaths.add(photo.getPath());
+        if (!photo.isMissing()) presentPhotos.add(photo);
+      }
+      listener.accept(changedPaths);
+      if (!presentPhotos.isEmpty()) {
+        try {
+          resyncExecutor.execute(() -> rereadDates(presentPhotos));
+        } catch (RejectedExecutionException e) {
+          // The watcher has been closed
+        }
+      }
+    });
+  }
+
+  /**
+   * Reads the date taken of changed files again and updates their photos on the model thread,
+   * so the date index follows an edited capture date. Runs off the model thread, since every
+   * file is read.
+   *
+   * @param photos the photos whose files changed
+   */
+  private void rereadDates(List<Photo> photos) {
+    Map<Photo, LocalDateTime> dates = new HashMap<>();
+    for (Photo photo : photos) {
+      File file = new File(photo.getPath());
+      if (file.isFile()) dates.put(photo, Photo.readDateTaken(file));
+    }
+    modelThread.execute(() -> {
+      if (closed) return;
+      Set<String> redated = new HashSet<>();
+      dates.forEach((photo, dateTaken) -> {
+        if (dateTaken.equals(photo.getDateTaken())) return;
+        photo.setDateTaken(dateTaken);
+        redated.add(photo.getPath());
+      });
+      if (!redated.isEmpty()) {
+        listener.accept(redated);
+      }
+    });
+  }
+
+  /**
+   * Flags a photo missing if its file no longer exists, and unflags it if the file is back.
+   *
+   * @param photo the photo to check
+   * @return true if the flag changed, false otherwise
+   */
+  private static boolean updateMissing(Photo photo) {
+    boolean missing = !new File(photo.getPath()).isFile();
+    if (missing == photo.isMissing()) return false;
+    photo.setMissing(missing);
+    return true;
+  }
+}
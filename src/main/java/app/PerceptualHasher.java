@@ -0,0 +1,163 @@
+package app;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.*;
+
+/**
+ * Computes perceptual hashes of photos, so resized copies, re-encodes and near-identical shots
+ * of one scene can be recognised. The hash is a 64-bit difference hash of the photo's
+ * thumbnail: the thumbnail is reduced to 9 by 8 grey cells, and each bit records whether a
+ * cell is brighter than its right neighbour. Similar images have hashes a small Hamming
+ * distance apart.
+ * <p>
+ * Hashes are computed from the persistent thumbnails, never from the originals, on a pool of
+ * threads. They are cached by path with the size and last-modified time of the file, and the
+ * cache is saved to disk, so only new or changed photos are hashed again.</p>
+ * @author Reuben Thomas, Ryan Zaken
+ */
+public class PerceptualHasher extends CachedFileHasher<Long> {
+
+  /**
+   * The bytes the cache file starts with.
+   */
+  private static final int CACHE_MAGIC = 0x50504853; // "PPHS"
+
+  /**
+   * The current cache format version.
+   */
+  private static final int CACHE_VERSION = 1;
+
+  /**
+   * The number of columns of grey cells compared, one more than the bits of each row.
+   */
+  private static final int GRID_COLUMNS = 9;
+
+  /**
+   * The number of rows of grey cells compared.
+   */
+  private static final int GRID_ROWS = 8;
+
+  /**
+   * The store of the thumbnails hashed, or null to decode small versions of the originals.
+   */
+  private final ThumbnailStore thumbnailStore;
+
+  /**
+   * Constructs a PerceptualHasher, loading the cache if it exists.
+   *
+   * @param cacheFile      the file the cache is saved to
+   * @param thumbnailStore the store of the thumbnails hashed, or null to decode the originals
+   * @param threads        the number of hashing threads
+   */
+  public PerceptualHasher(File cacheFile, ThumbnailStore thumbnailStore, int threads) {
+    super(cacheFile, CACHE_MAGIC, CACHE_VERSION, "perceptual-hasher", threads);
+    this.thumbnailStore = thumbnailStore;
+  }
+
+  /**
+   * Computes the perceptual hash of a photo from its thumbnail.
+   *
+   * @param file the photo file
+   * @return the hash
+   * @throws IOException if the file is not a readable image
+   */
+  @Override
+  protected Long compute(File file) throws IOException {
+    BufferedImage thumbnail = readThumbnail(file);
+    if (thumbnail == null) {
+      throw new IOException("Not a readable image: " + file.getPath());
+    }
+    return differenceHash(thumbnail);
+  }
+
+  /**
+   * Computes the difference hash of an image. Each grey cell is the mean luminance of its
+   * area of the image, which keeps the hash stable under the small shifts resampling causes.
+   *
+   * @param image the image, normally a thumbnail
+   * @return the hash, bit 63 comparing the first two cells of the top row
+   */
+  static long differenceHash(BufferedImage image) {
+    int width = image.getWidth();
+    int height = image.getHeight();
+    int[] pixels = image.getRGB(0, 0, width, height, null, 0, width);
+    long hash = 0;
+    for (int row = 0; row < GRID_ROWS; row++) {
+      int top = row * height / GRID_ROWS;
+      int bottom = Math.max(top + 1, (row + 1) * height / GRID_ROWS);
+      double previous = 0;
+      for (int column = 0; column < GRID_COLUMNS; column++) {
+        int left = column * width / GRID_COLUMNS;
+        int right = Math.max(left + 1, (column + 1) * width / GRID_COLUMNS);
+        double luminance = meanLuminance(pixels, width, left, top, Math.min(right, width), Math.min(bottom, height));
+        if (column > 0) {
+          hash = (hash << 1) | (previous > luminance ? 1 : 0);
+        }
+        previous = luminance;
+      }
+    }
+    return hash;
+  }
+
+  /**
+   * Writes a hash to the cache file.
+   *
+   * @param out  the cache file
+   * @param hash the hash
+   * @throws IOException if the hash cannot be written
+   */
+  @Override
+  protected void writeValue(DataOutputStream out, Long hash) throws IOException {
+    out.writeLong(hash);
+  }
+
+  /**
+   * Reads a hash from the cache file.
+   *
+   * @param in the cache file
+   * @return the hash
+   * @throws IOException if the hash cannot be read
+   */
+  @Override
+  protected Long readValue(DataInputStream in) throws IOException {
+    return in.readLong();
+  }
+
+  /**
+   * Reads the thumbnail of a photo, from the store if there is one.
+   *
+   * @param file the photo file
+   * @return the thumbnail, or null if the file is not a readable image
+   * @throws IOException if the file or the store cannot be read
+   */
+  private BufferedImage readThumbnail(File file) throws IOException {
+    if (thumbnailStore == null) {
+      return ImageDecoder.decode(file, GRID_COLUMNS * 8, GRID_ROWS * 8);
+    }
+    byte[] encoded = thumbnailStore.getOrCreate(file);
+    return encoded == null ? null : ImageIO.read(new ByteArrayInputStream(encoded));
+  }
+
+  /**
+   * Computes the mean luminance of a rectangle of pixels.
+   *
+   * @param pixels the packed RGB pixels of the image
+   * @param width  the width of the image
+   * @param left   the left edge of the rectangle, inclusive
+   * @param top    the top edge of the rectangle, inclusive
+   * @param right  the right edge of the rectangle, exclusive
+   * @param bottom the bottom edge of the rectangle, exclusive
+   * @return the mean luminance, from 0 to 255
+   */
+  private static double meanLuminance(int[] pixels, int width, int left, int top, int right, int bottom) {
+    double sum = 0;
+    for (int y = top; y < bottom; y++) {
+      for (int x = left; x < right; x++) {
+        int rgb = pixels[y * width + x];
+        sum += 0.299 * ((rgb >> 16) & 0xFF) + 0.587 * ((rgb >> 8) & 0xFF) + 0.114 * (rgb & 0xFF);
+      }
+    }
+    return sum / ((right - left) * (bottom - top));
+  }
+}
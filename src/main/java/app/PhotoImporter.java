@@ -0,0 +1,412 @@
+package app;
+
+import app.model.Album;
+import app.model.Exif;
+import app.model.Photo;
+import app.model.User;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Imports every photo in a directory tree into an album. The tree is walked on the calling
+ * thread while a pool of workers reads the EXIF capture date of each file and generates its
+ * thumbnail, so the import is bound by the disk rather than by parsing on one thread.
+ * <p>
+ * The model is only touched on the model thread, where the photos are obtained through the
+ * user's registry and added to the album in batches, so the view is refreshed and the change
+ * journal written once per batch rather than once per file.</p>
+ * <p>
+ * With a {@link ContentHasher}, every imported file is hashed as well, and a file with the
+ * same content as a photo the user already has can be skipped or replaced by that photo.
+ * With a {@link PerceptualHasher}, each thumbnail is hashed as soon as it is generated, so the
+ * photos enter the user's similarity index as they are added.</p>
+ * @author Reuben Thomas, Ryan Zaken
+ */
+public class PhotoImporter {
+
+  /**
+   * The number of photos added to the album at a time.
+   */
+  public static final int BATCH_SIZE = 500;
+
+  /**
+   * The default number of worker threads.
+   */
+  public static final int DEFAULT_THREADS = Runtime.getRuntime().availableProcessors();
+
+  /**
+   * The file extensions of the images that are imported, in lower case.
+   */
+  private static final Set<String> EXTENSIONS = Set.of("png", "jpg", "jpeg", "gif");
+
+  /**
+   * The number of files each worker may have queued, which bounds the memory of a large import.
+   */
+  private static final int QUEUED_FILES_PER_THREAD = 64;
+
+  /**
+   * What to do with a file whose content is the same as that of a photo the user already has,
+   * or of another file of the same import.
+   */
+  public enum DuplicatePolicy {
+    /** Import the file as a photo of its own. */
+    IMPORT,
+    /** Leave the file out. */
+    SKIP,
+    /** Add the existing photo with the same content to the album instead of the file. */
+    MERGE
+  }
+
+  /**
+   * The state of an import, reported after every batch and at the end.
+   *
+   * @param found         the number of image files found so far
+   * @param processed     the number of image files read so far
+   * @param added         the number of photos added to the album so far
+   * @param duplicates    the number of files found to duplicate another photo so far
+   * @param elapsedMillis the time since the import started, in milliseconds
+   * @param done          whether the import has finished
+   */
+  public record Progress(int found, int processed, int added, int duplicates, long elapsedMillis, boolean done) {
+
+    /**
+     * Gets the import throughput.
+     *
+     * @return the number of files read per second
+     */
+    public double getFilesPerSecond() {
+      return elapsedMillis == 0 ? 0 : processed * 1000.0 / elapsedMillis;
+    }
+  }
+
+  /**
+   * An image file whose metadata has been read, ready to be added to the model.
+   *
+   * @param path           the absolute path of the file
+   * @param dateTaken      the date and time the photo was taken
+   * @param contentHash    the digest of the file's content, or null if it was not hashed
+   * @param perceptualHash the perceptual hash of the file's thumbnail, or null if it was not hashed
+   */
+  private record ScannedFile(String path, LocalDateTime dateTaken, String contentHash, Long perceptualHash) {
+  }
+
+  /**
+   * The store thumbnails are generated into, or null to skip thumbnail generation.
+   */
+  private final ThumbnailStore thumbnailStore;
+
+  /**
+   * The hasher imported files are hashed with, or null to skip hashing.
+   */
+  private final ContentHasher contentHasher;
+
+  /**
+   * The hasher the thumbnails of imported files are hashed with, or null to skip it.
+   */
+  private final PerceptualHasher perceptualHasher;
+
+  /**
+   * Runs tasks on the thread that mutates the model, such as the JavaFX application thread.
+   */
+  private final Executor modelThread;
+
+  /**
+   * The number of worker threads.
+   */
+  private final int threads;
+
+  /**
+   * Constructs a PhotoImporter.
+   *
+   * @param thumbnailStore   the store thumbnails are generated into, or null to skip them
+   * @param contentHasher    the hasher imported files are hashed with, or null to skip hashing
+   * @param perceptualHasher the hasher the thumbnails are hashed with, or null to skip it
+   * @param modelThread      runs tasks on the thread that mutates the model
+   * @param threads          the number of worker threads
+   */
+  public PhotoImporter(ThumbnailStore thumbnailStore, ContentHasher contentHasher, PerceptualHasher perceptualHasher,
+                       Executor modelThread, int threads) {
+    if (threads < 1) {
+      throw new IllegalArgumentException("An importer needs at least one thread!");
+    }
+    this.thumbnailStore = thumbnailStore;
+    this.contentHasher = contentHasher;
+    this.perceptualHasher = perceptualHasher;
+    this.modelThread = modelThread;
+    this.threads = threads;
+  }
+
+  /**
+   * Imports every image in a directory tree into an album. Photos the album already contains
+   * are skipped. This method blocks until the import is finished, so it must not be called on
+   * the model thread.
+   *
+   * @param root     the directory to import
+   * @param user     the user owning the album
+   * @param album    the album to add the photos to
+   * @param policy   what to do with files duplicating another photo of the user
+   * @param listener receives the progress on the model thread after every batch, and at the end
+   * @return the final progress
+   * @throws IOException if the directory cannot be walked
+   * @throws IllegalStateException if duplicates are to be skipped or merged without a content hasher
+   */
+  public Progress importFolder(Path root, User user, Album album, DuplicatePolicy policy,
+                               Consumer<Progress> listener) throws IOException {
+    if (policy != DuplicatePolicy.IMPORT && contentHasher == null) {
+      throw new IllegalStateException("Duplicates cannot be detected without a content hasher");
+    }
+    ImportRun run = new ImportRun(user, album, policy, listener);
+    Semaphore queuedFiles = new Semaphore(threads * QUEUED_FILES_PER_THREAD);
+    ExecutorService workers = Executors.newFixedThreadPool(threads, runnable -> {
+      Thread thread = new Thread(runnable, "photo-importer");
+      thread.setDaemon(true);
+      return thread;
+    });
+    try {
+      if (policy != DuplicatePolicy.IMPORT) {
+        run.hashExistingPhotos();
+      }
+      Files.walkFileTree(root, new SimpleFileVisitor<>() {
+        @Override
+        public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+          if (!attributes.isRegularFile() || !isImage(file)) return FileVisitResult.CONTINUE;
+          run.found.incrementAndGet();
+          try {
+            queuedFiles.acquire();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Import interrupted");
+          }
+          workers.execute(() -> {
+            try {
+              run.scanned.add(scan(file.toAbsolutePath(), attributes));
+            } catch (RuntimeException e) {
+              // A malformed file should not be lost from the progress counts
+              System.out.println("Skipping " + file + ": " + e);
+            } finally {
+              run.processed.incrementAndGet();
+              queuedFiles.release();
+            }
+          });
+          if (run.scanned.size() >= BATCH_SIZE) {
+            run.commitBatch();
+          }
+          return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitFileFailed(Path file, IOException e) {
+          // An unreadable file or directory should not abort the rest of the import
+          System.out.println("Skipping " + file + ": " + e.getMessage());
+          return FileVisitResult.CONTINUE;
+        }
+      });
+      workers.shutdown();
+      while (!workers.awaitTermination(100, TimeUnit.MILLISECONDS)) {
+        if (run.scanned.size() >= BATCH_SIZE) {
+          run.commitBatch();
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Import interrupted");
+    } finally {
+      workers.shutdownNow();
+    }
+    // The model thread runs tasks in order, so once the last batch is in every batch is
+    CompletableFuture.runAsync(run::addScannedFiles, modelThread).join();
+    Progress progress = run.progress(true);
+    modelThread.execute(() -> listener.accept(progress));
+    System.out.printf("Imported %d of %d photos from %s in %d ms (%.0f files/s, %d duplicates)%n", progress.added(),
+            progress.found(), root, progress.elapsedMillis(), progress.getFilesPerSecond(), progress.duplicates());
+    return progress;
+  }
+
+  /**
+   * Checks if a file is an image by its extension.
+   *
+   * @param file the file
+   * @return true if the file has an image extension, false otherwise
+   */
+  private static boolean isImage(Path file) {
+    String name = file.getFileName().toString();
+    int dot = name.lastIndexOf('.');
+    return dot >= 0 && EXTENSIONS.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+  }
+
+  /**
+   * Reads the metadata of an image file, hashes it and generates and hashes its thumbnail.
+   * Runs on a worker thread.
+   *
+   * @param file       the absolute path of the file
+   * @param attributes the attributes read while walking the tree
+   * @return the scanned file
+   */
+  private ScannedFile scan(Path file, BasicFileAttributes attributes) {
+    Exif exif = Exif.readQuietly(file.toFile());
+    LocalDateTime dateTaken = exif != null && exif.getDateTimeOriginal() != null ? exif.getDateTimeOriginal()
+            : LocalDateTime.ofInstant(attributes.lastModifiedTime().toInstant(), ZoneId.systemDefault());
+    String contentHash = null;
+    if (contentHasher != null) {
+      try {
+        contentHash = contentHasher.hash(file.toFile());
+      } catch (IOException e) {
+        System.out.println("Could not hash " + file + ": " + e.getMessage());
+      }
+    }
+    if (thumbnailStore != null) {
+      try {
+        thumbnailStore.getOrCreate(file.toFile());
+      } catch (IOException e) {
+        System.out.println("Could not create thumbnail for " + file + ": " + e.getMessage());
+      }
+    }
+    Long perceptualHash = null;
+    if (perceptualHasher != null) {
+      // Hashed right after the thumbnail is made, so only the small thumbnail is decoded again
+      try {
+        perceptualHash = perceptualHasher.hash(file.toFile());
+      } catch (IOException e) {
+        System.out.println("Could not compare " + file + ": " + e.getMessage());
+      }
+    }
+    return new ScannedFile(file.toString(), dateTaken, contentHash, perceptualHash);
+  }
+
+  /**
+   * The state of one import.
+   */
+  private class ImportRun {
+    /** The user owning the album. */
+    private final User user;
+    /** The album the photos are added to. */
+    private final Album album;
+    /** What to do with duplicate files. */
+    private final DuplicatePolicy policy;
+    /** Receives the progress on the model thread. */
+    private final Consumer<Progress> listener;
+    /** The time the import started. */
+    private final long start = System.currentTimeMillis();
+    /** The number of image files found. */
+    private final AtomicInteger found = new AtomicInteger();
+    /** The number of image files read. */
+    private final AtomicInteger processed = new AtomicInteger();
+    /** The number of photos added, updated on the model thread. */
+    private final AtomicInteger added = new AtomicInteger();
+    /** The number of duplicate files, updated on the model thread. */
+    private final AtomicInteger duplicates = new AtomicInteger();
+    /** The scanned files not yet added. */
+    private final BlockingQueue<ScannedFile> scanned = new LinkedBlockingQueue<>();
+    /** Whether a batch has been handed to the model thread and not yet added. */
+    private final AtomicBoolean batchPending = new AtomicBoolean();
+    /** The first photo of the user with each content hash. Only accessed on the model thread. */
+    private final Map<String, Photo> photosByHash = new HashMap<>();
+
+    /**
+     * Constructs the state of an import.
+     *
+     * @param user     the user owning the album
+     * @param album    the album the photos are added to
+     * @param policy   what to do with duplicate files
+     * @param listener receives the progress on the model thread
+     */
+    ImportRun(User user, Album album, DuplicatePolicy policy, Consumer<Progress> listener) {
+      this.user = user;
+      this.album = album;
+      this.policy = policy;
+      this.listener = listener;
+    }
+
+    /**
+     * Hashes the photos the user already has, so imported files can be compared with them.
+     * Hashes cached from earlier runs make this cheap. Runs on the importing thread.
+     *
+     * @throws InterruptedException if the importing thread is interrupted
+     */
+    void hashExistingPhotos() throws InterruptedException {
+      List<Photo> existing = CompletableFuture.supplyAsync(user::getAllPhotos, modelThread).join();
+      List<String> paths = new ArrayList<>(existing.size());
+      for (Photo photo : existing) {
+        paths.add(photo.getPath());
+      }
+      Map<String, String> digests = contentHasher.hashAll(paths);
+      CompletableFuture.runAsync(() -> {
+        for (Photo photo : existing) {
+          String digest = digests.get(photo.getPath());
+          if (digest == null) continue;
+          photo.setContentHash(digest);
+          photosByHash.putIfAbsent(digest, photo);
+        }
+      }, modelThread).join();
+    }
+
+    /**
+     * Hands the scanned files collected so far to the model thread, to be added to the album.
+     * Does nothing while an earlier batch is still waiting there, since that batch takes
+     * whatever has been scanned by the time it runs.
+     */
+    void commitBatch() {
+      if (!batchPending.compareAndSet(false, true)) return;
+      modelThread.execute(() -> {
+        try {
+          try {
+            addScannedFiles();
+          } finally {
+            batchPending.set(false);
+          }
+          listener.accept(progress(false));
+        } catch (RuntimeException e) {
+          System.out.println("Could not add a batch of photos: " + e.getMessage());
+        }
+      });
+    }
+
+    /**
+     * Adds the scanned files collected so far to the album, applying the duplicate policy.
+     * Runs on the model thread.
+     */
+    void addScannedFiles() {
+      List<ScannedFile> batch = new ArrayList<>(BATCH_SIZE);
+      scanned.drainTo(batch);
+      List<Photo> photos = new ArrayList<>(batch.size());
+      for (ScannedFile file : batch) {
+        Photo photo = user.getOrCreatePhoto(file.path(), file.dateTaken());
+        if (file.perceptualHash() != null) {
+          photo.setPerceptualHash(file.perceptualHash());
+        }
+        if (file.contentHash() != null) {
+          photo.setContentHash(file.contentHash());
+          Photo original = photosByHash.putIfAbsent(file.contentHash(), photo);
+          if (original != null && original != photo && policy != DuplicatePolicy.IMPORT) {
+            duplicates.incrementAndGet();
+            if (policy == DuplicatePolicy.SKIP) continue;
+            photo = original;
+          }
+        }
+        photos.add(photo);
+      }
+      added.addAndGet(album.addPhotos(photos));
+    }
+
+    /**
+     * Takes a snapshot of the progress counters.
+     *
+     * @param done whether the import has finished
+     * @return the progress
+     */
+    Progress progress(boolean done) {
+      return new Progress(found.get(), processed.get(), added.get(), duplicates.get(),
+              System.currentTimeMillis() - start, done);
+    }
+  }
+}
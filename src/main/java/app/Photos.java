@@ -5,6 +5,7 @@ import app.model.Photo;
 import app.model.User;
 import app.model.UserList;
 import javafx.application.Application;
+import javafx.application.Platform;
 import javafx.fxml.FXMLLoader;
 import javafx.scene.Scene;
 import javafx.scene.control.Alert;
@@ -12,8 +13,12 @@ import javafx.stage.Stage;
 import view.LoginController;
 import view.UserHomeController;
 import view.AdminHomeController;
+import view.ThumbnailCache;
 
 import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 
 /**
  * The main application class for the Photos application.
@@ -22,6 +27,27 @@ import java.io.*;
  */
 public class Photos extends Application {
 
+  /**
+   * The name of the folder holding the thumbnail store, next to the user data.
+   */
+  private static final String THUMBNAIL_FOLDER_NAME = "photos_thumbnails";
+
+  /**
+   * The name of the file caching the content hashes of photo files, next to the user data.
+   */
+  private static final String HASH_CACHE_FILE_NAME = "photos_hashes.dat";
+
+  /**
+   * The name of the file caching the perceptual hashes of photos, next to the user data.
+   */
+  private static final String PERCEPTUAL_HASH_CACHE_FILE_NAME = "photos_phashes.dat";
+
+  /**
+   * Whether the files of the logged-in user's photos are watched for changes. Can be turned
+   * off with the {@code photos.watchLibrary} system property.
+   */
+  private static final boolean WATCH_LIBRARY = Boolean.parseBoolean(System.getProperty("photos.watchLibrary", "true"));
+
   /**
    * The list of users in the application.
    */
@@ -33,28 +59,54 @@ public class Photos extends Application {
   private Scene loginScene;
 
   /**
-   * The file path for storing user data.
+   * The on-disk store holding the user directory and one shard per user.
+   */
+  private UserStore userStore;
+
+  /**
+   * Saves changes to user data in the background while the application runs.
+   */
+  private AutoSaver autoSaver;
+
+  /**
+   * The persistent store of photo thumbnails, or null if it could not be opened.
+   */
+  private ThumbnailStore thumbnailStore;
+
+  /**
+   * Hashes photo files so duplicates can be found.
+   */
+  private ContentHasher contentHasher;
+
+  /**
+   * Hashes photo thumbnails so similar photos can be found.
    */
-  private static String userListFilePath = null;
+  private PerceptualHasher perceptualHasher;
+
+  /**
+   * The watcher of the logged-in user's photo files, or null if none is running.
+   */
+  private LibraryWatcher libraryWatcher;
+
+  /**
+   * Run when watched photo files change, so the current view can refresh, or null.
+   */
+  private Runnable libraryChangeHandler;
 
   @Override
   public void start(Stage stage) throws IOException {
-    /* INITIALIZE USERS.DAT */
-
-    // Get the resource URL for users.dat
-    java.net.URL resourceUrl = getClass().getResource("/photos_app_data.dat");
-    if (resourceUrl == null) {
-      // File doesn't exist in resources, create it
-      File resourcesDir = new File(getClass().getResource("/").getPath());
-      File usersFile = new File(resourcesDir, "photos_app_data.dat");
-      usersFile.createNewFile();
-      userListFilePath = usersFile.getPath();
-      userList = new UserList();
-    } else {
-      // File exists, set the path and load user list
-      userListFilePath = resourceUrl.getPath();
-      userList = loadAllUserData();
-    }
+    /* INITIALIZE USER STORE */
+
+    // User data is kept next to the application resources
+    File dataDir = new File(getClass().getResource("/").getPath());
+    userStore = new UserStore(dataDir);
+    userList = loadAllUserData();
+    userList.setUserLoader(this::loadUserData);
+    userList.setChangeListener(userStore.getJournal());
+    openThumbnailStore(new File(dataDir, THUMBNAIL_FOLDER_NAME));
+    contentHasher = new ContentHasher(new File(dataDir, HASH_CACHE_FILE_NAME), Runtime.getRuntime().availableProcessors());
+    perceptualHasher = new PerceptualHasher(new File(dataDir, PERCEPTUAL_HASH_CACHE_FILE_NAME), thumbnailStore,
+            Runtime.getRuntime().availableProcessors());
 
     /* INITIALIZE STOCK USER */
     if (!userList.hasUser("stock")) {
@@ -62,6 +114,10 @@ public class Photos extends Application {
       // print that stock user has been initialized
     }
 
+    /* START AUTOSAVE */
+    autoSaver = new AutoSaver(userStore, userList, Platform::runLater, AutoSaver.DEFAULT_DELAY_SECONDS);
+    autoSaver.start();
+
 
     /*LOAD LOGIN VIEW*/
     FXMLLoader fxmlLoader = new FXMLLoader(Photos.class.getResource("/view/login-view.fxml"));
@@ -105,6 +161,70 @@ public class Photos extends Application {
     return userList;
   }
 
+  /**
+   * Gets the persistent store of thumbnails.
+   *
+   * @return the thumbnail store, or null if it could not be opened
+   */
+  public ThumbnailStore getThumbnailStore() {
+    return thumbnailStore;
+  }
+
+  /**
+   * Gets the hasher of photo files.
+   *
+   * @return the content hasher
+   */
+  public ContentHasher getContentHasher() {
+    return contentHasher;
+  }
+
+  /**
+   * Gets the hasher of photo thumbnails.
+   *
+   * @return the perceptual hasher
+   */
+  public PerceptualHasher getPerceptualHasher() {
+    return perceptualHasher;
+  }
+
+  /**
+   * Loads the perceptual hashes of photos into their user's similarity index, in the
+   * background. Hashes of files unchanged since they were last hashed come from the hasher's
+   * cache, so only new or changed photos have their thumbnails decoded.
+   *
+   * @param photos the photos
+   */
+  public void loadPerceptualHashes(List<Photo> photos) {
+    List<String> paths = photos.stream().filter(photo -> photo.getPerceptualHash() == null).map(Photo::getPath).toList();
+    if (paths.isEmpty()) return;
+    Thread hashThread = new Thread(() -> {
+      try {
+        Map<String, Long> hashes = perceptualHasher.hashAll(paths);
+        Platform.runLater(() -> {
+          for (Photo photo : photos) {
+            Long hash = hashes.get(photo.getPath());
+            if (hash != null) photo.setPerceptualHash(hash);
+          }
+        });
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }, "similarity-loader");
+    hashThread.setDaemon(true);
+    hashThread.start();
+  }
+
+  /**
+   * Sets the action run on the JavaFX application thread when the files of the logged-in
+   * user's photos change, such as refreshing the photos shown.
+   *
+   * @param handler the action, or null for none
+   */
+  public void setOnLibraryChanged(Runnable handler) {
+    this.libraryChangeHandler = handler;
+  }
+
   /**
    * Switches to the user home view for the specified user.
    *
@@ -113,11 +233,19 @@ public class Photos extends Application {
    * @throws IOException if the view cannot be loaded
    */
   public void switchToUserHomeView(Stage stage, String username) throws IOException {
+    User user = userList.getUser(username);
+    if (user == null) {
+      return;
+    }
+    if (libraryWatcher == null || libraryWatcher.getUser() != user) {
+      startWatching(user);
+      loadPerceptualHashes(user.getAllPhotos());
+    }
     try {
         FXMLLoader userHomeLoader = new FXMLLoader(getClass().getResource("/view/user-home-view.fxml"));
         Scene userHomeScene = new Scene(userHomeLoader.load(), 640, 650);
         UserHomeController userHomeController = userHomeLoader.getController();
-        userHomeController.init(this, userList.getUser(username));
+        userHomeController.init(this, user);
         stage.setScene(userHomeScene);
         stage.setTitle("Photo Album " + "(User: " + username + ")"); // Set the title to the username
     } catch (IOException e) {
@@ -146,11 +274,13 @@ public class Photos extends Application {
   }
 
   /**
-   * Switches to the login view.
+   * Switches to the login view, saving the changes of the session in the background.
    *
    * @param stage the stage to display the view
    */
   public void switchToLoginView(Stage stage) {
+   autoSaver.saveNow();
+   stopWatching();
    try {
         stage.setScene(loginScene);
     } catch (Exception e) {
@@ -160,37 +290,116 @@ public class Photos extends Application {
 
   @Override
   public void stop() throws IOException {
+    stopWatching();
+    autoSaver.shutdown();
     saveAllUserData();
+    System.out.println(ThumbnailCache.getShared());
+    contentHasher.close();
+    perceptualHasher.close();
+    if (thumbnailStore != null) {
+      ThumbnailCache.getShared().setStore(null);
+      thumbnailStore.close();
+    }
   }
 
   /**
-   * Saves all user data to the file.
+   * Saves the changes made to user data since the last save.
    */
   private void saveAllUserData() {
-    try (ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(userListFilePath))) {
-      out.writeObject(userList);
-    }catch (Exception e) {
+    try {
+      userStore.save(userList);
+    } catch (Exception e) {
       // Handle the exception
       showError("Failed to save user data: " + e.getMessage());
     }
   }
 
   /**
-   * Loads all user data from the file.
+   * Loads the user directory. Individual users are loaded on demand by {@link #loadUserData(String)}.
    *
-   * @return the loaded user list, or null if an error occurs
+   * @return the loaded user list, or an empty user list if an error occurs
    */
   private UserList loadAllUserData() {
-    try (ObjectInputStream in = new ObjectInputStream(new FileInputStream(userListFilePath))) {
-      userList = (UserList) in.readObject();
-      return userList;
+    try {
+      return userStore.loadUserList();
     } catch (IOException | ClassNotFoundException e) {
       // Handle the exception
       showError("Failed to load user data: " + e.getMessage());
+      return new UserList();
+    }
+  }
+
+  /**
+   * Loads the data of a single user from its shard.
+   *
+   * @param username the username of the user to load
+   * @return the loaded user, or null if an error occurs
+   */
+  private User loadUserData(String username) {
+    try {
+      return userStore.loadUser(username);
+    } catch (IOException | ClassNotFoundException e) {
+      // Handle the exception
+      showError("Failed to load data for user '" + username + "': " + e.getMessage());
       return null;
     }
   }
 
+  /**
+   * Opens the persistent thumbnail store and attaches it to the shared thumbnail cache.
+   * Thumbnails are decoded from the originals if the store cannot be opened.
+   *
+   * @param dir the folder holding the thumbnail store
+   */
+  private void openThumbnailStore(File dir) {
+    try {
+      thumbnailStore = new ThumbnailStore(dir, ThumbnailCache.THUMBNAIL_SIZE);
+      ThumbnailCache.getShared().setStore(thumbnailStore);
+    } catch (IOException e) {
+      System.out.println("Could not open thumbnail store: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Starts watching the files of a user's photos, stopping any earlier watcher. A changed file
+   * has its cached images dropped and the current view is refreshed.
+   *
+   * @param user the user whose photos are watched
+   */
+  private void startWatching(User user) {
+    stopWatching();
+    if (!WATCH_LIBRARY) return;
+    try {
+      libraryWatcher = new LibraryWatcher(user, Platform::runLater, thumbnailStore, paths -> {
+        paths.forEach(ThumbnailCache.getShared()::invalidate);
+        List<Photo> changed = new ArrayList<>();
+        for (String path : paths) {
+          Photo photo = user.getPhoto(path);
+          if (photo != null && !photo.isMissing()) changed.add(photo);
+        }
+        // The watcher cleared the hashes of the changed files, so they are rehashed
+        loadPerceptualHashes(changed);
+        if (libraryChangeHandler != null) libraryChangeHandler.run();
+      });
+      libraryWatcher.start();
+    } catch (IOException e) {
+      System.out.println("Could not watch photo files: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Stops watching photo files, if a watcher is running.
+   */
+  private void stopWatching() {
+    if (libraryWatcher == null) return;
+    try {
+      libraryWatcher.close();
+    } catch (IOException e) {
+      System.out.println("Could not stop watching photo files: " + e.getMessage());
+    }
+    libraryWatcher = null;
+  }
+
   /**
    * Displays an error message in a dialog.
    *
@@ -0,0 +1,501 @@
+package app;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Persistent store of pre-scaled thumbnails, so that opening an album does not decode every
+ * original again. Encoded thumbnails are appended to a single pack file, which is read through
+ * memory maps of fixed-size windows, and an index file maps each photo path to the offset of
+ * its thumbnail.
+ * <p>
+ * Each entry remembers the size and last-modified time of the original it was made from; an
+ * entry whose original has changed is stale and is regenerated the next time it is requested.
+ * The index is append-only, the last entry for a path winning, and the pack is compacted when
+ * it holds more stale bytes than live ones.</p>
+ * <p>
+ * The index names the generation of the pack it describes, and compaction writes a pack of
+ * the next generation beside the old one, so replacing the index is the only step that
+ * switches packs: a crash at any point leaves an index and a pack that belong together, and no
+ * file that may still be mapped is ever overwritten. Packs of other generations are deleted
+ * when the store is opened.</p>
+ * @author Reuben Thomas, Ryan Zaken
+ */
+public class ThumbnailStore implements Closeable {
+
+  /**
+   * The start of the names of the pack files, which end with their generation and
+   * {@link #PACK_FILE_SUFFIX}.
+   */
+  private static final String PACK_FILE_PREFIX = "thumbnails";
+
+  /**
+   * The end of the names of the pack files.
+   */
+  private static final String PACK_FILE_SUFFIX = ".pack";
+
+  /**
+   * The name of the index file.
+   */
+  private static final String INDEX_FILE_NAME = "thumbnails.idx";
+
+  /**
+   * The bytes the index file starts with.
+   */
+  private static final int INDEX_MAGIC = 0x50544849; // "PTHI"
+
+  /**
+   * The current index format version.
+   */
+  private static final int INDEX_VERSION = 2;
+
+  /**
+   * The default size of the windows the pack is mapped in. A single map cannot exceed 2 GB,
+   * and smaller windows keep the address space used by a large pack in proportion to the
+   * parts of it that are read.
+   */
+  private static final int DEFAULT_WINDOW_SIZE = 64 * 1024 * 1024;
+
+  /**
+   * The number of stale bytes below which the pack is never compacted.
+   */
+  private static final long MIN_COMPACTION_BYTES = 1024 * 1024;
+
+  /**
+   * The location of a thumbnail in the pack and the version of the original it was made from.
+   *
+   * @param fileSize     the size of the original file
+   * @param lastModified the last-modified time of the original file
+   * @param offset       the offset of the encoded thumbnail in the pack
+   * @param length       the length of the encoded thumbnail
+   */
+  private record Entry(long fileSize, long lastModified, long offset, int length) {
+  }
+
+  /**
+   * The folder holding the pack and index files.
+   */
+  private final File dir;
+
+  /**
+   * The maximum width and height of a thumbnail.
+   */
+  private final int size;
+
+  /**
+   * The entry of each photo path.
+   */
+  private final Map<String, Entry> entries = new HashMap<>();
+
+  /**
+   * The size of the windows the pack is mapped in.
+   */
+  private final int windowSize;
+
+  /**
+   * The generation of the current pack, named by the index.
+   */
+  private long generation;
+
+  /**
+   * The pack file, open for reading and appending.
+   */
+  private FileChannel pack;
+
+  /**
+   * The read-only maps of the windows of the pack read so far, null for windows never read.
+   * The last window is remapped when thumbnails appended past its end are read.
+   */
+  private final List<MappedByteBuffer> windows = new ArrayList<>();
+
+  /**
+   * The index file, open for appending.
+   */
+  private DataOutputStream index;
+
+  /**
+   * The total length of the thumbnails referenced by the index.
+   */
+  private long liveBytes;
+
+  /**
+   * Opens the store in the specified folder, creating it if needed.
+   *
+   * @param dir  the folder holding the pack and index files
+   * @param size the maximum width and height of a thumbnail
+   * @throws IOException if the store cannot be opened
+   */
+  public ThumbnailStore(File dir, int size) throws IOException {
+    this(dir, size, DEFAULT_WINDOW_SIZE);
+  }
+
+  /**
+   * Opens the store in the specified folder with a given map window size.
+   *
+   * @param dir        the folder holding the pack and index files
+   * @param size       the maximum width and height of a thumbnail
+   * @param windowSize the size of the windows the pack is mapped in
+   * @throws IOException if the store cannot be opened
+   */
+  ThumbnailStore(File dir, int size, int windowSize) throws IOException {
+    this.dir = dir;
+    this.size = size;
+    this.windowSize = windowSize;
+    if (!dir.exists() && !dir.mkdirs()) {
+      throw new IOException("Could not create folder " + dir);
+    }
+    open();
+    long staleBytes = pack.size() - liveBytes;
+    if (staleBytes > liveBytes && staleBytes > MIN_COMPACTION_BYTES) {
+      compact();
+    }
+  }
+
+  /**
+   * Gets the maximum width and height of a thumbnail.
+   *
+   * @return the thumbnail size in pixels
+   */
+  public int getSize() {
+    return size;
+  }
+
+  /**
+   * Gets the stored thumbnail of a photo if it is up to date with the original file.
+   *
+   * @param file the original photo file
+   * @return the encoded thumbnail, or null if none is stored or the original has changed
+   * @throws IOException if the pack cannot be read
+   */
+  public synchronized byte[] get(File file) throws IOException {
+    Entry entry = entries.get(file.getPath());
+    if (entry == null || entry.fileSize() != file.length() || entry.lastModified() != file.lastModified()) {
+      return null;
+    }
+    return read(entry.offset(), entry.length());
+  }
+
+  /**
+   * Reads bytes of the pack through the maps of the windows holding them.
+   *
+   * @param offset the offset of the first byte in the pack
+   * @param length the number of bytes to read
+   * @return the bytes read
+   * @throws IOException if the pack cannot be mapped
+   */
+  private byte[] read(long offset, int length) throws IOException {
+    byte[] bytes = new byte[length];
+    int done = 0;
+    while (done < length) {
+      long position = offset + done;
+      int windowNumber = (int) (position / windowSize);
+      int inWindow = (int) (position % windowSize);
+      int needed = (int) Math.min(windowSize, (long) inWindow + (length - done));
+      MappedByteBuffer window = getWindow(windowNumber, needed);
+      int count = Math.min(length - done, window.capacity() - inWindow);
+      window.get(inWindow, bytes, done, count);
+      done += count;
+    }
+    return bytes;
+  }
+
+  /**
+   * Gets the map of a window of the pack, mapping it if it is not mapped or too short.
+   *
+   * @param windowNumber the number of the window, counting from the start of the pack
+   * @param needed       the number of bytes from the start of the window that must be mapped
+   * @return the map of the window
+   * @throws IOException if the pack cannot be mapped
+   */
+  private MappedByteBuffer getWindow(int windowNumber, int needed) throws IOException {
+    while (windows.size() <= windowNumber) {
+      windows.add(null);
+    }
+    MappedByteBuffer window = windows.get(windowNumber);
+    if (window == null || window.capacity() < needed) {
+      long start = (long) windowNumber * windowSize;
+      window = pack.map(FileChannel.MapMode.READ_ONLY, start, Math.min(windowSize, pack.size() - start));
+      windows.set(windowNumber, window);
+    }
+    return window;
+  }
+
+  /**
+   * Gets the thumbnail of a photo, generating and storing it if it is missing or stale.
+   * Generation decodes the original on the calling thread.
+   *
+   * @param file the original photo file
+   * @return the encoded thumbnail, or null if the original cannot be decoded
+   * @throws IOException if the store cannot be read or written
+   */
+  public byte[] getOrCreate(File file) throws IOException {
+    byte[] encoded = get(file);
+    if (encoded != null) return encoded;
+    // Read the version before decoding, so a file changed meanwhile is regenerated next time
+    long fileSize = file.length();
+    long lastModified = file.lastModified();
+    encoded = createThumbnail(file, size);
+    if (encoded != null) {
+      put(file.getPath(), fileSize, lastModified, encoded);
+    }
+    return encoded;
+  }
+
+  /**
+   * Stores the thumbnail of a photo, replacing any earlier one.
+   *
+   * @param path         the path of the original photo file
+   * @param fileSize     the size of the original file
+   * @param lastModified the last-modified time of the original file
+   * @param encoded      the encoded thumbnail
+   * @throws IOException if the store cannot be written
+   */
+  public synchronized void put(String path, long fileSize, long lastModified, byte[] encoded) throws IOException {
+    long offset = pack.size();
+    ByteBuffer buffer = ByteBuffer.wrap(encoded);
+    while (buffer.hasRemaining()) {
+      pack.write(buffer, offset + buffer.position());
+    }
+    // The pack is written first, so the index never points past its end
+    Entry entry = new Entry(fileSize, lastModified, offset, encoded.length);
+    writeEntry(index, path, entry);
+    index.flush();
+    Entry previous = entries.put(path, entry);
+    if (previous != null) liveBytes -= previous.length();
+    liveBytes += entry.length();
+  }
+
+  /**
+   * Removes the thumbnail of a photo, such as when its original no longer exists.
+   *
+   * @param path the path of the original photo file
+   * @throws IOException if the index cannot be written
+   */
+  public synchronized void remove(String path) throws IOException {
+    Entry previous = entries.remove(path);
+    if (previous == null) return;
+    liveBytes -= previous.length();
+    // An entry of length -1 marks the path as removed
+    writeEntry(index, path, new Entry(0, 0, 0, -1));
+    index.flush();
+  }
+
+  /**
+   * Closes the pack and index files.
+   *
+   * @throws IOException if the files cannot be closed
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    index.close();
+    pack.close();
+  }
+
+  /**
+   * Decodes an image file scaled down to fit within a square, preserving its aspect ratio.
+   *
+   * @param file the image file
+   * @param size the maximum width and height
+   * @return the thumbnail encoded as JPEG, or null if the file is not a readable image
+   * @throws IOException if the file cannot be read
+   */
+  public static byte[] createThumbnail(File file, int size) throws IOException {
+    BufferedImage thumbnail = ImageDecoder.decode(file, size, size);
+    if (thumbnail == null) return null;
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ImageIO.write(thumbnail, "jpg", out);
+    return out.toByteArray();
+  }
+
+
+  /**
+   * Opens the pack and index files, reads the index and deletes packs of other generations.
+   *
+   * @throws IOException if the files cannot be opened or read
+   */
+  private void open() throws IOException {
+    File indexFile = new File(dir, INDEX_FILE_NAME);
+    entries.clear();
+    liveBytes = 0;
+    windows.clear();
+    boolean indexRead = readIndex(indexFile);
+    if (!indexRead) {
+      // A missing or unreadable index makes every pack unreachable, so start a new one that
+      // no index written earlier can name
+      entries.clear();
+      generation = getLatestPackGeneration() + 1;
+      writeIndexHeader(indexFile, generation);
+    }
+    File packFile = getPackFile(generation);
+    pack = FileChannel.open(packFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    if (!indexRead) pack.truncate(0);
+    // Entries written just before a crash may point past the part of the pack that reached the disk
+    long packSize = pack.size();
+    entries.values().removeIf(entry -> entry.offset() + entry.length() > packSize);
+    for (Entry entry : entries.values()) {
+      liveBytes += entry.length();
+    }
+    index = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile, true)));
+    deleteOtherPacks(packFile);
+  }
+
+  /**
+   * Reads the index file into {@link #generation} and {@link #entries}. A last entry cut short
+   * by a crash is ignored and cut off the file, so that entries appended later follow the last
+   * complete one.
+   *
+   * @param indexFile the index file
+   * @return true if the index was read, false if it is missing or not a valid index
+   * @throws IOException if the index cannot be read
+   */
+  private boolean readIndex(File indexFile) throws IOException {
+    if (!indexFile.exists()) return false;
+    byte[] bytes = Files.readAllBytes(indexFile.toPath());
+    ByteArrayInputStream buffer = new ByteArrayInputStream(bytes);
+    DataInputStream in = new DataInputStream(buffer);
+    long complete = 0;
+    try {
+      if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION) return false;
+      generation = in.readLong();
+      complete = bytes.length - buffer.available();
+      while (buffer.available() > 0) {
+        String path = in.readUTF();
+        Entry entry = new Entry(in.readLong(), in.readLong(), in.readLong(), in.readInt());
+        if (entry.length() < 0) {
+          entries.remove(path);
+        } else {
+          entries.put(path, entry);
+        }
+        complete = bytes.length - buffer.available();
+      }
+    } catch (EOFException e) {
+      // An entry written during a crash, or a header that never reached the disk
+      if (complete == 0) return false;
+      try (RandomAccessFile file = new RandomAccessFile(indexFile, "rw")) {
+        file.setLength(complete);
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Writes a new index file holding only its header.
+   *
+   * @param indexFile  the index file
+   * @param generation the generation of the pack the index describes
+   * @throws IOException if the index cannot be written
+   */
+  private static void writeIndexHeader(File indexFile, long generation) throws IOException {
+    try (DataOutputStream out = new DataOutputStream(new FileOutputStream(indexFile))) {
+      out.writeInt(INDEX_MAGIC);
+      out.writeInt(INDEX_VERSION);
+      out.writeLong(generation);
+    }
+  }
+
+  /**
+   * Gets the pack file of a generation.
+   *
+   * @param generation the generation
+   * @return the pack file
+   */
+  private File getPackFile(long generation) {
+    return new File(dir, PACK_FILE_PREFIX + "." + generation + PACK_FILE_SUFFIX);
+  }
+
+  /**
+   * Gets the highest generation of the packs in the store folder.
+   *
+   * @return the highest generation, or 0 if there are no packs
+   */
+  private long getLatestPackGeneration() {
+    long latest = 0;
+    File[] files = dir.listFiles((d, name) -> name.startsWith(PACK_FILE_PREFIX + ".") && name.endsWith(PACK_FILE_SUFFIX));
+    if (files == null) return latest;
+    for (File file : files) {
+      String name = file.getName();
+      try {
+        latest = Math.max(latest, Long.parseLong(name.substring(PACK_FILE_PREFIX.length() + 1, name.length() - PACK_FILE_SUFFIX.length())));
+      } catch (NumberFormatException e) {
+        // Not a pack of this format, such as the single pack of the first index version
+      }
+    }
+    return latest;
+  }
+
+  /**
+   * Deletes the packs left by earlier generations or by a compaction cut short by a crash.
+   * A pack that cannot be deleted yet, such as one still mapped on Windows, is deleted the
+   * next time the store is opened.
+   *
+   * @param packFile the current pack, which is kept
+   */
+  private void deleteOtherPacks(File packFile) {
+    File[] files = dir.listFiles((d, name) -> name.startsWith(PACK_FILE_PREFIX) && name.endsWith(PACK_FILE_SUFFIX));
+    if (files == null) return;
+    for (File file : files) {
+      if (!file.getName().equals(packFile.getName())) file.delete();
+    }
+  }
+
+  /**
+   * Writes one index entry.
+   *
+   * @param out   the stream to write to
+   * @param path  the path of the original photo file
+   * @param entry the entry to write
+   * @throws IOException if the entry cannot be written
+   */
+  private static void writeEntry(DataOutputStream out, String path, Entry entry) throws IOException {
+    out.writeUTF(path);
+    out.writeLong(entry.fileSize());
+    out.writeLong(entry.lastModified());
+    out.writeLong(entry.offset());
+    out.writeInt(entry.length());
+  }
+
+  /**
+   * Writes the live thumbnails to a pack of the next generation and a matching index, then
+   * switches to them by replacing the index and reopens the store.
+   *
+   * @throws IOException if the store cannot be rewritten
+   */
+  private void compact() throws IOException {
+    long newGeneration = generation + 1;
+    File indexTemp = new File(dir, INDEX_FILE_NAME + ".tmp");
+    try (FileOutputStream indexTempOut = new FileOutputStream(indexTemp);
+         FileChannel newPack = FileChannel.open(getPackFile(newGeneration).toPath(), StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+         DataOutputStream newIndex = new DataOutputStream(new BufferedOutputStream(indexTempOut))) {
+      newIndex.writeInt(INDEX_MAGIC);
+      newIndex.writeInt(INDEX_VERSION);
+      newIndex.writeLong(newGeneration);
+      long offset = 0;
+      for (Map.Entry<String, Entry> e : entries.entrySet()) {
+        Entry entry = e.getValue();
+        newPack.transferFrom(pack.position(entry.offset()), offset, entry.length());
+        writeEntry(newIndex, e.getKey(), new Entry(entry.fileSize(), entry.lastModified(), offset, entry.length()));
+        offset += entry.length();
+      }
+      newPack.force(true);
+      newIndex.flush();
+      indexTempOut.getFD().sync();
+    }
+    close();
+    windows.clear();
+    // The new pack is complete on disk, so replacing the index is the single switch-over point
+    Path indexPath = new File(dir, INDEX_FILE_NAME).toPath();
+    try {
+      Files.move(indexTemp.toPath(), indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (AtomicMoveNotSupportedException e) {
+      Files.move(indexTemp.toPath(), indexPath, StandardCopyOption.REPLACE_EXISTING);
+    }
+    open();
+  }
+}
@@ -0,0 +1,437 @@
+package app;
+
+import app.model.ModelCodec;
+import app.model.User;
+import app.model.UserList;
+
+import java.io.*;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Stores user data on disk as one shard per {@link User} plus a small user directory.
+ * The directory only holds the usernames, so startup reads it alone and each user's
+ * shard is loaded the first time that user is needed.
+ * <p>
+ * Shards and the directory are snapshots. Changes made since a snapshot are recorded by a
+ * {@link ChangeJournal} and appended to a journal file next to it on save; a journal that
+ * grows past {@link #COMPACTION_THRESHOLD} records is compacted into a new snapshot.</p>
+ * <p>
+ * Snapshots are written with {@link ModelCodec}. Snapshots written by Java serialization in
+ * earlier versions are still read, and are replaced by the compact format on their next save.
+ * Snapshots are written to a temporary file and renamed into place.</p>
+ * <p>
+ * Methods are synchronized so that an {@link AutoSaver} can write from a background thread
+ * while the application thread loads users.</p>
+ * @author Reuben Thomas, Ryan Zaken
+ */
+public class UserStore {
+
+  /**
+   * The name of the user directory file.
+   */
+  private static final String DIRECTORY_FILE_NAME = "photos_users.dat";
+
+  /**
+   * The name of the folder holding the user shards.
+   */
+  private static final String SHARD_FOLDER_NAME = "photos_users";
+
+  /**
+   * The file extension of a user shard.
+   */
+  private static final String SHARD_EXTENSION = ".dat";
+
+  /**
+   * The file extension of a journal.
+   */
+  private static final String JOURNAL_EXTENSION = ".journal";
+
+  /**
+   * The number of journal records after which a journal is compacted into its snapshot.
+   */
+  private static final int COMPACTION_THRESHOLD = 500;
+
+  /**
+   * The name of the single-file data store used before user data was sharded.
+   */
+  private static final String LEGACY_FILE_NAME = "photos_app_data.dat";
+
+  /**
+   * The folder containing the directory file, the shard folder and the legacy data file.
+   */
+  private final File dataDir;
+
+  /**
+   * The user directory file.
+   */
+  private final File directoryFile;
+
+  /**
+   * The folder holding one shard file per user.
+   */
+  private final File shardDir;
+
+  /**
+   * The journal recording changes made since the last snapshots.
+   */
+  private final ChangeJournal journal = new ChangeJournal();
+
+  /**
+   * The number of records in each user's journal file, keyed by username.
+   */
+  private final Map<String, Integer> journalLengths = new HashMap<>();
+
+  /**
+   * The number of records in the directory journal file.
+   */
+  private int directoryJournalLength;
+
+  /**
+   * Constructs a UserStore rooted at the specified folder.
+   *
+   * @param dataDir the folder in which user data is stored
+   */
+  public UserStore(File dataDir) {
+    this.dataDir = dataDir;
+    this.directoryFile = new File(dataDir, DIRECTORY_FILE_NAME);
+    this.shardDir = new File(dataDir, SHARD_FOLDER_NAME);
+  }
+
+  /**
+   * Gets the journal that records changes to the model. It must be set as the change
+   * listener of the loaded user list.
+   *
+   * @return the change journal
+   */
+  public ChangeJournal getJournal() {
+    return journal;
+  }
+
+  /**
+   * Loads the user list. Only the user directory and its journal are read; users are
+   * registered as unloaded and read from their shards on first access. If no directory
+   * exists yet but a legacy single-file store does, the legacy data is loaded and rewritten
+   * as shards.
+   *
+   * @return the loaded user list, or an empty list if no data has been stored yet
+   * @throws IOException if the data cannot be read
+   * @throws ClassNotFoundException if the stored data contains an unknown class
+   */
+  public synchronized UserList loadUserList() throws IOException, ClassNotFoundException {
+    UserList userList = new UserList();
+    if (directoryFile.exists()) {
+      for (String username : readDirectory()) {
+        userList.addUnloadedUser(username);
+      }
+    } else {
+      File legacyFile = new File(dataDir, LEGACY_FILE_NAME);
+      if (legacyFile.length() > 0) {
+        return migrateLegacyData(legacyFile);
+      }
+    }
+    directoryJournalLength = ChangeJournal.replayDirectory(getDirectoryJournalFile(), userList);
+    return userList;
+  }
+
+  /**
+   * Loads a single user from its shard and replays the changes recorded in its journal.
+   *
+   * @param username the username of the user to load
+   * @return the loaded user, or a new empty user if the user has no shard yet
+   * @throws IOException if the shard cannot be read
+   * @throws ClassNotFoundException if the shard contains an unknown class
+   */
+  public synchronized User loadUser(String username) throws IOException, ClassNotFoundException {
+    long start = System.nanoTime();
+    File shard = getShardFile(username);
+    User user;
+    if (shard.exists()) {
+      byte[] data = Files.readAllBytes(shard.toPath());
+      if (ModelCodec.isEncoded(data)) {
+        user = ModelCodec.decodeUser(data);
+      } else {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data))) {
+          user = (User) in.readObject();
+        }
+      }
+    } else {
+      user = new User(username);
+    }
+    int replayed = ChangeJournal.replayUser(getJournalFile(username), user);
+    journalLengths.put(username, replayed);
+    System.out.println("Loaded user '" + username + "' (" + replayed + " journal records) in "
+            + (System.nanoTime() - start) / 1_000_000 + " ms");
+    return user;
+  }
+
+  /**
+   * Saves the changes recorded since the last save by appending them to the journals.
+   * Shards and the directory are only rewritten when their journal needs compaction.
+   * Snapshots are encoded on the calling thread, which must be the thread that mutates the model.
+   *
+   * @param userList the user list being saved
+   * @throws IOException if the data cannot be written
+   */
+  public synchronized void save(UserList userList) throws IOException {
+    appendJournals();
+    for (String username : getUsersDueForCompaction()) {
+      if (userList.isLoaded(username)) {
+        saveUser(userList.getUser(username));
+      }
+    }
+    if (isDirectoryDueForCompaction()) {
+      saveDirectory(userList);
+    }
+  }
+
+  /**
+   * Appends the records buffered by the journal to the journal files and removes the data of
+   * deleted users. This never reads the model, so it may run on any thread.
+   *
+   * @return the number of records appended
+   * @throws IOException if a journal cannot be written
+   */
+  public synchronized int appendJournals() throws IOException {
+    int appended = 0;
+    ChangeJournal.Batch directoryBatch = journal.drainDirectoryRecords();
+    if (directoryBatch != null) {
+      ChangeJournal.append(getDirectoryJournalFile(), directoryBatch);
+      directoryJournalLength += directoryBatch.records();
+      appended += directoryBatch.records();
+    }
+    // A deleted user's data must go before anything is appended for a new user of the same name
+    for (String username : journal.drainDeletedUsers()) {
+      getShardFile(username).delete();
+      getJournalFile(username).delete();
+      journalLengths.remove(username);
+    }
+    for (Map.Entry<String, ChangeJournal.Batch> entry : journal.drainUserRecords().entrySet()) {
+      ChangeJournal.Batch batch = entry.getValue();
+      ensureShardDir();
+      ChangeJournal.append(getJournalFile(entry.getKey()), batch);
+      journalLengths.merge(entry.getKey(), batch.records(), Integer::sum);
+      appended += batch.records();
+    }
+    return appended;
+  }
+
+  /**
+   * Gets the users whose journal has grown past {@link #COMPACTION_THRESHOLD} records.
+   *
+   * @return the usernames of the users due for compaction
+   */
+  public synchronized List<String> getUsersDueForCompaction() {
+    List<String> due = new ArrayList<>();
+    journalLengths.forEach((username, length) -> {
+      if (length > COMPACTION_THRESHOLD) due.add(username);
+    });
+    return due;
+  }
+
+  /**
+   * Checks if the directory journal has grown past {@link #COMPACTION_THRESHOLD} records.
+   *
+   * @return true if the directory is due for compaction, false otherwise
+   */
+  public synchronized boolean isDirectoryDueForCompaction() {
+    return directoryJournalLength > COMPACTION_THRESHOLD;
+  }
+
+  /**
+   * Saves full snapshots of the user directory and of every loaded user, and removes the
+   * data of users that no longer exist. Users that were never loaded keep their shard and
+   * journal untouched.
+   *
+   * @param userList the user list to save
+   * @throws IOException if the data cannot be written
+   */
+  public synchronized void saveAll(UserList userList) throws IOException {
+    journal.clear();
+    saveDirectory(userList);
+    for (User user : userList.getLoadedUsers()) {
+      saveUser(user);
+    }
+    deleteOrphanedShards(userList);
+  }
+
+  /**
+   * Saves the user directory, which lists every username.
+   *
+   * @param userList the user list whose usernames are saved
+   * @throws IOException if the directory cannot be written
+   */
+  public synchronized void saveDirectory(UserList userList) throws IOException {
+    byte[] snapshot = ModelCodec.encodeUsernames(userList.getAllUsernames());
+    journal.discardDirectoryRecords();
+    writeDirectorySnapshot(snapshot);
+  }
+
+  /**
+   * Saves a snapshot of a single user to its shard, compacting away its journal.
+   *
+   * @param user the user to save
+   * @throws IOException if the shard cannot be written
+   */
+  public synchronized void saveUser(User user) throws IOException {
+    byte[] snapshot = ModelCodec.encodeUser(user);
+    journal.discardUserRecords(user.getUsername());
+    writeUserSnapshot(user.getUsername(), snapshot);
+  }
+
+  /**
+   * Writes an encoded snapshot of the user directory and deletes the directory journal.
+   * Every record buffered before the snapshot was encoded must already have been appended
+   * or discarded.
+   *
+   * @param snapshot the directory encoded by {@link ModelCodec#encodeUsernames(Collection)}
+   * @throws IOException if the directory cannot be written
+   */
+  public synchronized void writeDirectorySnapshot(byte[] snapshot) throws IOException {
+    writeAtomically(directoryFile, snapshot);
+    getDirectoryJournalFile().delete();
+    directoryJournalLength = 0;
+  }
+
+  /**
+   * Writes an encoded snapshot of a user to its shard and deletes the user's journal.
+   * Every record buffered for the user before the snapshot was encoded must already have
+   * been appended or discarded.
+   *
+   * @param username the username of the user
+   * @param snapshot the user encoded by {@link ModelCodec#encodeUser(User)}
+   * @throws IOException if the shard cannot be written
+   */
+  public synchronized void writeUserSnapshot(String username, byte[] snapshot) throws IOException {
+    ensureShardDir();
+    writeAtomically(getShardFile(username), snapshot);
+    getJournalFile(username).delete();
+    journalLengths.put(username, 0);
+  }
+
+  /**
+   * Replaces the contents of a file by writing a temporary file next to it and renaming it
+   * over the original, so a crash never leaves a half-written snapshot behind.
+   *
+   * @param file the file to write
+   * @param data the new contents of the file
+   * @throws IOException if the file cannot be written
+   */
+  private static void writeAtomically(File file, byte[] data) throws IOException {
+    Path target = file.toPath();
+    Path temp = target.resolveSibling(file.getName() + ".tmp");
+    try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING)) {
+      ByteBuffer buffer = ByteBuffer.wrap(data);
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+      channel.force(true);
+    }
+    try {
+      Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (AtomicMoveNotSupportedException e) {
+      Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  /**
+   * Creates the shard folder if it does not exist yet.
+   *
+   * @throws IOException if the folder cannot be created
+   */
+  private void ensureShardDir() throws IOException {
+    if (!shardDir.exists() && !shardDir.mkdirs()) {
+      throw new IOException("Could not create folder " + shardDir);
+    }
+  }
+
+  /**
+   * Reads the usernames from the user directory.
+   *
+   * @return the list of usernames
+   * @throws IOException if the directory cannot be read
+   * @throws ClassNotFoundException if the directory contains an unknown class
+   */
+  @SuppressWarnings("unchecked")
+  private List<String> readDirectory() throws IOException, ClassNotFoundException {
+    byte[] data = Files.readAllBytes(directoryFile.toPath());
+    if (ModelCodec.isEncoded(data)) {
+      return ModelCodec.decodeUsernames(data);
+    }
+    try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data))) {
+      return (List<String>) in.readObject();
+    }
+  }
+
+  /**
+   * Loads the legacy single-file store and rewrites it as a user directory and shards.
+   * The legacy file is left in place but is no longer read once the directory exists.
+   *
+   * @param legacyFile the legacy data file
+   * @return the fully loaded user list
+   * @throws IOException if the legacy file cannot be read or the shards cannot be written
+   * @throws ClassNotFoundException if the legacy file contains an unknown class
+   */
+  private UserList migrateLegacyData(File legacyFile) throws IOException, ClassNotFoundException {
+    UserList userList;
+    try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(legacyFile)))) {
+      userList = (UserList) in.readObject();
+    }
+    saveAll(userList);
+    System.out.println("Migrated " + userList.getAllUsernames().size() + " users from " + legacyFile.getName());
+    return userList;
+  }
+
+  /**
+   * Deletes the shards and journals of users that are no longer in the user list.
+   *
+   * @param userList the current user list
+   */
+  private void deleteOrphanedShards(UserList userList) {
+    File[] files = shardDir.listFiles((dir, name) -> name.endsWith(SHARD_EXTENSION) || name.endsWith(JOURNAL_EXTENSION));
+    if (files == null) return;
+    for (File file : files) {
+      String name = file.getName();
+      String encoded = name.substring(0, name.lastIndexOf('.'));
+      if (!userList.hasUser(URLDecoder.decode(encoded, StandardCharsets.UTF_8))) {
+        file.delete();
+      }
+    }
+  }
+
+  /**
+   * Gets the shard file of a user. The username is URL-encoded so that any username maps
+   * to a valid file name.
+   *
+   * @param username the username
+   * @return the shard file of the user
+   */
+  private File getShardFile(String username) {
+    return new File(shardDir, URLEncoder.encode(username, StandardCharsets.UTF_8) + SHARD_EXTENSION);
+  }
+
+  /**
+   * Gets the journal file of a user, stored next to its shard.
+   *
+   * @param username the username
+   * @return the journal file of the user
+   */
+  private File getJournalFile(String username) {
+    return new File(shardDir, URLEncoder.encode(username, StandardCharsets.UTF_8) + JOURNAL_EXTENSION);
+  }
+
+  /**
+   * Gets the journal file of the user directory.
+   *
+   * @return the directory journal file
+   */
+  private File getDirectoryJournalFile() {
+    return new File(dataDir, DIRECTORY_FILE_NAME.replace(SHARD_EXTENSION, JOURNAL_EXTENSION));
+  }
+}
@@ -1,6 +1,6 @@
 package app.model;
 
-import java.io.Serializable;
+import java.io.*;
 import java.time.LocalDateTime;
 import java.util.*;
 
@@ -13,6 +13,15 @@ import java.util.*;
 public class Album implements Serializable {
   private static final long serialVersionUID = 1L;
 
+  /**
+   * The serialized fields, kept as a name and a list of photos so that data written before
+   * photos were indexed by path can still be read.
+   */
+  private static final ObjectStreamField[] serialPersistentFields = {
+          new ObjectStreamField("name", String.class),
+          new ObjectStreamField("photos", List.class)
+  };
+
   /**
    * Indicates whether the stock album is being initialized.
    */
@@ -23,9 +32,30 @@ public class Album implements Serializable {
    */
   private String name;
   /**
-   * The list of photos in the album.
+   * The photos in the album keyed by file path, in the order they were added.
+   */
+  private transient LinkedHashMap<String, Photo> photos;
+
+  /**
+   * The user who owns the album. Mutations are reported to this user.
    */
-  private List<Photo> photos;
+  private transient User owner;
+
+  /**
+   * The earliest date a photo in the album was taken, valid while {@link #datesKnown} is set.
+   */
+  private transient LocalDateTime earliestDate;
+
+  /**
+   * The latest date a photo in the album was taken, valid while {@link #datesKnown} is set.
+   */
+  private transient LocalDateTime latestDate;
+
+  /**
+   * Whether {@link #earliestDate} and {@link #latestDate} are up to date. Cleared when a photo
+   * holding one of them is removed, so they are recomputed on next use.
+   */
+  private transient boolean datesKnown;
 
   /**
    * Constructs an Album with the specified name.
@@ -34,10 +64,43 @@ public class Album implements Serializable {
    */
   public Album(String name) {
     this.name = name;
-    this.photos = new ArrayList<>();
+    this.photos = new LinkedHashMap<>();
     System.out.println("Album created: " + name);
   }
 
+  /**
+   * Writes the album as its name and a list of its photos.
+   *
+   * @param out the stream to write to
+   * @throws IOException if an I/O error occurs
+   */
+  private void writeObject(ObjectOutputStream out) throws IOException {
+    ObjectOutputStream.PutField fields = out.putFields();
+    fields.put("name", name);
+    fields.put("photos", new ArrayList<>(photos.values()));
+    out.writeFields();
+  }
+
+  /**
+   * Reads an album written as its name and a list of its photos.
+   *
+   * @param in the stream to read from
+   * @throws IOException if an I/O error occurs
+   * @throws ClassNotFoundException if a serialized class cannot be found
+   */
+  @SuppressWarnings("unchecked")
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    ObjectInputStream.GetField fields = in.readFields();
+    name = (String) fields.get("name", null);
+    photos = new LinkedHashMap<>();
+    List<Photo> photoList = (List<Photo>) fields.get("photos", null);
+    if (photoList != null) {
+      for (Photo photo : photoList) {
+        photos.put(photo.getPath(), photo);
+      }
+    }
+  }
+
   /**
    * Sets whether the stock album is being initialized.
    *
@@ -47,6 +110,15 @@ public class Album implements Serializable {
     isInitializingStock = initializing;
   }
 
+  /**
+   * Sets the user who owns the album.
+   *
+   * @param owner the owning user
+   */
+  void setOwner(User owner) {
+    this.owner = owner;
+  }
+
   /**
    * Gets the name of the album.
    *
@@ -66,12 +138,12 @@ public class Album implements Serializable {
   }
 
   /**
-   * Gets the list of photos in the album.
+   * Gets the photos in the album, in the order they were added.
    *
-   * @return the list of photos
+   * @return an unmodifiable view of the photos
    */
-  public List<Photo> getPhotos() {
-    return photos;
+  public Collection<Photo> getPhotos() {
+    return Collections.unmodifiableCollection(photos.values());
   }
 
   /**
@@ -81,7 +153,7 @@ public class Album implements Serializable {
    * @return true if the photo exists in the album, false otherwise
    */
   public boolean hasPhoto(Photo photo) {
-    return photos.contains(photo);
+    return photos.containsKey(photo.getPath());
   }
 
   /**
@@ -91,12 +163,7 @@ public class Album implements Serializable {
    * @return the photo if found, or null if not found
    */
   public Photo getPhoto(String path) {
-    for (Photo photo : photos) {
-      if (photo.getPath().equals(path)) {
-        return photo;
-      }
-    }
-    return null;
+    return photos.get(path);
   }
 
   /**
@@ -107,7 +174,7 @@ public class Album implements Serializable {
    */
   public Set<Photo> getPhotosByTag(Tag tag) {
     Set<Photo> taggedPhotos = new HashSet<>();
-    for (Photo photo : photos) {
+    for (Photo photo : photos.values()) {
       if (photo.hasTag(tag)) {
         taggedPhotos.add(photo);
       }
@@ -124,7 +191,7 @@ public class Album implements Serializable {
    */
   public Set<Photo> getPhotosInDateRange(LocalDateTime start, LocalDateTime end) {
     Set<Photo> dateRangePhotos = new HashSet<>();
-    for (Photo photo : photos) {
+    for (Photo photo : photos.values()) {
       if (photo.getDateTaken().isAfter(start) && photo.getDateTaken().isBefore(end)) {
         dateRangePhotos.add(photo);
       }
@@ -143,10 +210,53 @@ public class Album implements Serializable {
     if (name.equalsIgnoreCase("stock") && !isInitializingStock) {
       throw new IllegalStateException("Cannot add photos to stock album");
     }
-    if (photos.contains(photo)) {
+    if (photos.containsKey(photo.getPath())) {
       throw new IllegalArgumentException("Photo already exists in the album!");
     }
-    photos.add(photo);
+    if (owner != null && !owner.isCanonical(photo)) {
+      throw new IllegalArgumentException("A different photo with the same path already exists!");
+    }
+    photos.put(photo.getPath(), photo);
+    if (datesKnown) includeDate(photo.getDateTaken());
+    if (owner != null) owner.photoAdded(this, photo);
+  }
+
+  /**
+   * Adds several photos to the album, skipping those it already contains.
+   *
+   * @param photosToAdd the photos to add
+   * @return the number of photos added
+   * @throws IllegalStateException if adding photos to the stock album is not allowed
+   */
+  public int addPhotos(Collection<Photo> photosToAdd) {
+    int added = 0;
+    for (Photo photo : photosToAdd) {
+      if (!hasPhoto(photo)) {
+        addPhoto(photo);
+        added++;
+      }
+    }
+    return added;
+  }
+
+  /**
+   * Replaces the photo stored under the same path with another instance, keeping its position.
+   *
+   * @param photo the photo to store instead
+   */
+  void replacePhoto(Photo photo) {
+    photos.replace(photo.getPath(), photo);
+  }
+
+  /**
+   * Adds a photo read from storage, without the stock album check or change notifications.
+   * The owner is expected to relink the album once loading is complete.
+   *
+   * @param photo the photo to add
+   */
+  void addLoadedPhoto(Photo photo) {
+    photos.putIfAbsent(photo.getPath(), photo);
+    datesKnown = false;
   }
 
   /**
@@ -159,7 +269,30 @@ public class Album implements Serializable {
     if (name.equalsIgnoreCase("stock") && !isInitializingStock) {
       throw new IllegalStateException("Cannot remove stock photos from stock album");
     }
-    photos.remove(photo);
+    if (photos.remove(photo.getPath()) == null) return;
+    LocalDateTime date = photo.getDateTaken();
+    if (datesKnown && (date.equals(earliestDate) || date.equals(latestDate))) {
+      datesKnown = false;
+    }
+    if (owner != null) owner.photoRemoved(this, photo);
+  }
+
+  /**
+   * Removes several photos from the album, ignoring those it does not contain.
+   *
+   * @param photosToRemove the photos to remove
+   * @return the number of photos removed
+   * @throws IllegalStateException if removing photos from the stock album is not allowed
+   */
+  public int removePhotos(Collection<Photo> photosToRemove) {
+    int removed = 0;
+    for (Photo photo : photosToRemove) {
+      if (hasPhoto(photo)) {
+        removePhoto(photo);
+        removed++;
+      }
+    }
+    return removed;
   }
 
   /**
@@ -189,7 +322,8 @@ public class Album implements Serializable {
    * @return the earliest date, or null if the album is empty
    */
   public LocalDateTime getEarliestDate() {
-    return photos.stream().map(Photo::getDateTaken).min(LocalDateTime::compareTo).orElse(null);
+    ensureDatesKnown();
+    return earliestDate;
   }
 
   /**
@@ -198,7 +332,31 @@ public class Album implements Serializable {
    * @return the latest date, or null if the album is empty
    */
   public LocalDateTime getLatestDate() {
-    return photos.stream().map(Photo::getDateTaken).max(LocalDateTime::compareTo).orElse(null);
+    ensureDatesKnown();
+    return latestDate;
+  }
+
+  /**
+   * Recomputes the earliest and latest dates from all photos if they are not up to date.
+   */
+  private void ensureDatesKnown() {
+    if (datesKnown) return;
+    earliestDate = null;
+    latestDate = null;
+    for (Photo photo : photos.values()) {
+      includeDate(photo.getDateTaken());
+    }
+    datesKnown = true;
+  }
+
+  /**
+   * Widens the earliest and latest dates to include a date.
+   *
+   * @param date the date of a photo in the album
+   */
+  private void includeDate(LocalDateTime date) {
+    if (earliestDate == null || date.isBefore(earliestDate)) earliestDate = date;
+    if (latestDate == null || date.isAfter(latestDate)) latestDate = date;
   }
 
   /**
@@ -0,0 +1,130 @@
+package app.model;
+
+import java.util.*;
+
+/**
+ * BK-tree over the 64-bit perceptual hashes of a user's photos, in Hamming distance. Each node
+ * holds the photos with one hash, and its children are keyed by their distance to it, so a
+ * search for hashes within a small distance of a query skips every subtree the triangle
+ * inequality rules out instead of comparing the query with every photo.
+ * <p>
+ * Removing a photo leaves its node in place, even if it no longer holds any photos, since the
+ * node still routes searches to its children.</p>
+ * @author Reuben Thomas, Ryan Zaken
+ */
+class BkTree {
+
+  /**
+   * A photo found by a search and the distance of its hash to the query.
+   *
+   * @param photo    the photo
+   * @param distance the Hamming distance between the hashes
+   */
+  record Match(Photo photo, int distance) {
+  }
+
+  /**
+   * The root node, or null if the tree is empty.
+   */
+  private Node root;
+
+  /**
+   * Adds a photo with the specified hash.
+   *
+   * @param hash  the perceptual hash of the photo
+   * @param photo the photo
+   */
+  void add(long hash, Photo photo) {
+    if (root == null) {
+      root = new Node(hash);
+      root.photos.add(photo);
+      return;
+    }
+    Node node = root;
+    while (true) {
+      int distance = Long.bitCount(node.hash ^ hash);
+      if (distance == 0) {
+        node.photos.add(photo);
+        return;
+      }
+      Node child = node.children.get(distance);
+      if (child == null) {
+        child = new Node(hash);
+        child.photos.add(photo);
+        node.children.put(distance, child);
+        return;
+      }
+      node = child;
+    }
+  }
+
+  /**
+   * Removes a photo added with the specified hash.
+   *
+   * @param hash  the hash the photo was added with
+   * @param photo the photo
+   */
+  void remove(long hash, Photo photo) {
+    Node node = root;
+    while (node != null) {
+      int distance = Long.bitCount(node.hash ^ hash);
+      if (distance == 0) {
+        node.photos.removeIf(p -> p == photo);
+        return;
+      }
+      node = node.children.get(distance);
+    }
+  }
+
+  /**
+   * Finds the photos whose hashes are within a distance of a hash.
+   *
+   * @param hash        the hash to search around
+   * @param maxDistance the largest Hamming distance to include
+   * @return the matches, nearest first
+   */
+  List<Match> search(long hash, int maxDistance) {
+    List<Match> matches = new ArrayList<>();
+    if (root == null) return matches;
+    Deque<Node> pending = new ArrayDeque<>();
+    pending.push(root);
+    while (!pending.isEmpty()) {
+      Node node = pending.pop();
+      int distance = Long.bitCount(node.hash ^ hash);
+      if (distance <= maxDistance) {
+        for (Photo photo : node.photos) {
+          matches.add(new Match(photo, distance));
+        }
+      }
+      // Only children whose distance to this node is within maxDistance of the query's can match
+      for (Map.Entry<Integer, Node> child : node.children.entrySet()) {
+        if (Math.abs(child.getKey() - distance) <= maxDistance) {
+          pending.push(child.getValue());
+        }
+      }
+    }
+    matches.sort(Comparator.comparingInt(Match::distance));
+    return matches;
+  }
+
+  /**
+   * A node of the tree.
+   */
+  private static class Node {
+    /** The hash of the node. */
+    private final long hash;
+    /** The photos with the hash, usually one. */
+    private final List<Photo> photos = new ArrayList<>(1);
+    /** The children, keyed by the distance of their hash to this node's. */
+    private final Map<Integer, Node> children = new HashMap<>();
+
+    /**
+     * Constructs a Node.
+     *
+     * @param hash the hash of the node
+     */
+    Node(long hash) {
+      this.hash = hash;
+    }
+  }
+}
@@ -0,0 +1,170 @@
+package app.model;
+
+import java.util.*;
+
+/**
+ * Full-text index of the captions of a user's photos. Each caption is split into words,
+ * folded to lower case, and every word has a posting list: the bitmap of the IDs of the photos
+ * whose captions contain it, with the positions of the word in each caption. A word is looked
+ * up without reading any caption, and a phrase is found by intersecting the bitmaps of its
+ * words, rarest first, then checking that the words follow each other in the captions left.
+ * <p>
+ * A photo is indexed while it is in at least one of the user's albums, and re-indexed when
+ * its caption changes.</p>
+ * @author Reuben Thomas, Ryan Zaken
+ */
+class CaptionIndex {
+
+  /**
+   * The postings of each word.
+   */
+  private final Map<String, Postings> postings = new HashMap<>();
+
+  /**
+   * Splits a caption into its words, in lower case. A word is a run of letters and digits, so
+   * punctuation and spacing never affect a match.
+   *
+   * @param text the caption or searched text, may be null
+   * @return the words in order, repeated as often as they occur
+   */
+  static List<String> tokenize(String text) {
+    List<String> words = new ArrayList<>();
+    if (text == null) return words;
+    int start = -1;
+    for (int i = 0; i <= text.length(); i++) {
+      boolean inWord = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+      if (inWord && start < 0) {
+        start = i;
+      } else if (!inWord && start >= 0) {
+        words.add(text.substring(start, i).toLowerCase());
+        start = -1;
+      }
+    }
+    return words;
+  }
+
+  /**
+   * Indexes the caption of a photo that has entered the user's albums or been re-captioned.
+   *
+   * @param photo the photo
+   */
+  void add(Photo photo) {
+    List<String> words = tokenize(photo.getCaption());
+    Map<String, List<Integer>> positionsByWord = new HashMap<>();
+    for (int i = 0; i < words.size(); i++) {
+      positionsByWord.computeIfAbsent(words.get(i), w -> new ArrayList<>()).add(i);
+    }
+    for (Map.Entry<String, List<Integer>> entry : positionsByWord.entrySet()) {
+      int[] positions = entry.getValue().stream().mapToInt(Integer::intValue).toArray();
+      postings.computeIfAbsent(entry.getKey(), w -> new Postings()).add(photo.getId(), positions);
+    }
+  }
+
+  /**
+   * Removes a caption of a photo that has left the user's albums or been re-captioned.
+   *
+   * @param photo   the photo
+   * @param caption the caption it was indexed with
+   */
+  void remove(Photo photo, String caption) {
+    for (String word : new HashSet<>(tokenize(caption))) {
+      Postings wordPostings = postings.get(word);
+      if (wordPostings != null && wordPostings.remove(photo.getId()) && wordPostings.ids.isEmpty()) {
+        postings.remove(word);
+      }
+    }
+  }
+
+  /**
+   * Gets the number of photos whose captions contain a word.
+   *
+   * @param word the word, in lower case
+   * @return the number of photos
+   */
+  int count(String word) {
+    Postings wordPostings = postings.get(word);
+    return wordPostings != null ? wordPostings.ids.cardinality() : 0;
+  }
+
+  /**
+   * Finds the photos whose captions contain a phrase, optionally among some candidates.
+   *
+   * @param words      the words of the phrase in order, in lower case, at least one
+   * @param candidates the IDs of the photos to look among, or null for all photos
+   * @return the IDs of the photos whose captions contain the words one after another, which
+   *         the caller must not modify
+   */
+  IdBitmap find(List<String> words, IdBitmap candidates) {
+    List<Postings> lists = new ArrayList<>(words.size());
+    for (String word : words) {
+      Postings wordPostings = postings.get(word);
+      if (wordPostings == null) return new IdBitmap();
+      lists.add(wordPostings);
+    }
+    // Intersect from the rarest word, so each step works on the fewest photos
+    List<Postings> byRarity = new ArrayList<>(new LinkedHashSet<>(lists));
+    byRarity.sort(Comparator.comparingInt(wordPostings -> wordPostings.ids.cardinality()));
+    IdBitmap photos = candidates != null ? IdBitmap.and(candidates, byRarity.get(0).ids) : byRarity.get(0).ids;
+    for (int i = 1; i < byRarity.size() && !photos.isEmpty(); i++) {
+      photos = IdBitmap.and(photos, byRarity.get(i).ids);
+    }
+    if (words.size() == 1 || photos.isEmpty()) return photos;
+    IdBitmap matching = new IdBitmap();
+    photos.forEach(id -> {
+      if (isPhrase(lists, id)) matching.add(id);
+    });
+    return matching;
+  }
+
+  /**
+   * Checks if the words of a phrase follow each other somewhere in the caption of a photo
+   * containing all of them.
+   *
+   * @param lists the postings of the words of the phrase, in order
+   * @param id    the ID of the photo
+   * @return true if the phrase occurs in the caption, false otherwise
+   */
+  private static boolean isPhrase(List<Postings> lists, int id) {
+    int[] starts = lists.get(0).positions.get(id);
+    for (int start : starts) {
+      boolean found = true;
+      for (int i = 1; i < lists.size() && found; i++) {
+        found = Arrays.binarySearch(lists.get(i).positions.get(id), start + i) >= 0;
+      }
+      if (found) return true;
+    }
+    return false;
+  }
+
+  /**
+   * The photos whose captions contain a word, and where the word occurs in each.
+   */
+  private static class Postings {
+    /** The IDs of the photos. */
+    private final IdBitmap ids = new IdBitmap();
+    /** The ascending positions of the word in the caption of each photo, by ID. */
+    private final Map<Integer, int[]> positions = new HashMap<>();
+
+    /**
+     * Records the occurrences of the word in the caption of a photo.
+     *
+     * @param id        the ID of the photo
+     * @param positions the ascending positions of the word in the caption
+     */
+    void add(int id, int[] positions) {
+      ids.add(id);
+      this.positions.put(id, positions);
+    }
+
+    /**
+     * Forgets the occurrences of the word in the caption of a photo.
+     *
+     * @param id the ID of the photo
+     * @return true if the caption contained the word, false otherwise
+     */
+    boolean remove(int id) {
+      positions.remove(id);
+      return ids.remove(id);
+    }
+  }
+}
@@ -0,0 +1,108 @@
+package app.model;
+
+import java.time.LocalDateTime;
+import java.util.*;
+
+/**
+ * Index of the photos of a user sorted by the date they were taken, so a date range search
+ * costs O(log n + k) for k results. A photo is indexed while it is in at least one of the
+ * user's albums.
+ * @author Reuben Thomas, Ryan Zaken
+ */
+class DateIndex {
+
+  /**
+   * The photos taken at each date, in date order.
+   */
+  private final NavigableMap<LocalDateTime, Set<Photo>> photosByDate = new TreeMap<>();
+
+  /**
+   * Indexes a photo that has entered the user's albums.
+   *
+   * @param photo the photo to index
+   */
+  void add(Photo photo) {
+    photosByDate.computeIfAbsent(photo.getDateTaken(), date -> new HashSet<>()).add(photo);
+  }
+
+  /**
+   * Removes a photo that is no longer in any of the user's albums.
+   *
+   * @param photo the photo to remove
+   */
+  void remove(Photo photo) {
+    remove(photo, photo.getDateTaken());
+  }
+
+  /**
+   * Removes a photo from the date it is indexed under, such as the date it had before its
+   * date taken changed.
+   *
+   * @param photo     the photo to remove
+   * @param dateTaken the date the photo is indexed under
+   */
+  void remove(Photo photo, LocalDateTime dateTaken) {
+    Set<Photo> photos = photosByDate.get(dateTaken);
+    if (photos != null && photos.remove(photo) && photos.isEmpty()) {
+      photosByDate.remove(dateTaken);
+    }
+  }
+
+  /**
+   * Gets the photos taken strictly between two dates, in date order.
+   *
+   * @param start the start of the date range, exclusive
+   * @param end   the end of the date range, exclusive
+   * @return a list of the photos within the date range
+   */
+  List<Photo> getPhotos(LocalDateTime start, LocalDateTime end) {
+    List<Photo> photos = new ArrayList<>();
+    if (start.isBefore(end)) {
+      for (Set<Photo> photosAtDate : photosByDate.subMap(start, false, end, false).values()) {
+        photos.addAll(photosAtDate);
+      }
+    }
+    return photos;
+  }
+
+  /**
+   * Gets the IDs of the photos taken strictly between two dates.
+   *
+   * @param start the start of the date range, exclusive
+   * @param end   the end of the date range, exclusive
+   * @return a bitmap of the IDs of the photos within the date range
+   */
+  IdBitmap getIds(LocalDateTime start, LocalDateTime end) {
+    if (!start.isBefore(end)) return new IdBitmap();
+    Collection<Set<Photo>> photosInRange = photosByDate.subMap(start, false, end, false).values();
+    int[] ids = new int[16];
+    int count = 0;
+    for (Set<Photo> photosAtDate : photosInRange) {
+      for (Photo photo : photosAtDate) {
+        if (count == ids.length) ids = Arrays.copyOf(ids, count * 2);
+        ids[count++] = photo.getId();
+      }
+    }
+    return IdBitmap.of(ids, count);
+  }
+
+  /**
+   * Counts the photos taken strictly between two dates, stopping once the count reaches a
+   * limit, so the cost is bounded by the limit rather than by the size of the range.
+   *
+   * @param start the start of the date range, exclusive
+   * @param end   the end of the date range, exclusive
+   * @param limit the count at which to stop
+   * @return the number of photos within the date range, or a number of at least limit if there are more
+   */
+  int count(LocalDateTime start, LocalDateTime end, int limit) {
+    int count = 0;
+    if (start.isBefore(end)) {
+      for (Set<Photo> photosAtDate : photosByDate.subMap(start, false, end, false).values()) {
+        count += photosAtDate.size();
+        if (count >= limit) break;
+      }
+    }
+    return count;
+  }
+}
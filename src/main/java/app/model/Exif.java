@@ -0,0 +1,345 @@
+package app.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+
+/**
+ * The EXIF metadata of a JPEG file that the application uses: the capture date, the
+ * orientation, the image dimensions and the embedded thumbnail.
+ * <p>
+ * Only the headers at the start of the file are read, never the compressed image, so reading
+ * the metadata of a large photo costs a single small read. Malformed metadata is ignored
+ * rather than reported, since a photo without usable metadata is still a valid photo.</p>
+ * @author Reuben Thomas, Ryan Zaken
+ */
+public final class Exif {
+
+  /**
+   * The number of bytes read from the start of the file, enough for the markers before the
+   * image data of almost every JPEG and for a whole APP1 segment, which cannot exceed 64 KB.
+   */
+  private static final int HEADER_READ_SIZE = 64 * 1024 + 256;
+
+  /**
+   * The format of EXIF dates.
+   */
+  private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy:MM:dd HH:mm:ss");
+
+  /** The Orientation tag. */
+  private static final int TAG_ORIENTATION = 0x0112;
+  /** The DateTime tag, the time the file was last changed. */
+  private static final int TAG_DATE_TIME = 0x0132;
+  /** The pointer to the Exif IFD. */
+  private static final int TAG_EXIF_IFD = 0x8769;
+  /** The DateTimeOriginal tag, the time the photo was taken. */
+  private static final int TAG_DATE_TIME_ORIGINAL = 0x9003;
+  /** The PixelXDimension tag. */
+  private static final int TAG_PIXEL_WIDTH = 0xA002;
+  /** The PixelYDimension tag. */
+  private static final int TAG_PIXEL_HEIGHT = 0xA003;
+  /** The offset of the embedded JPEG thumbnail. */
+  private static final int TAG_THUMBNAIL_OFFSET = 0x0201;
+  /** The length of the embedded JPEG thumbnail. */
+  private static final int TAG_THUMBNAIL_LENGTH = 0x0202;
+
+  /**
+   * The time the photo was taken, or null if it is not recorded.
+   */
+  private LocalDateTime dateTimeOriginal;
+
+  /**
+   * The EXIF orientation, from 1 to 8, 1 meaning the image is stored upright.
+   */
+  private int orientation = 1;
+
+  /**
+   * The width of the image in pixels, or 0 if it is not known.
+   */
+  private int width;
+
+  /**
+   * The height of the image in pixels, or 0 if it is not known.
+   */
+  private int height;
+
+  /**
+   * The embedded JPEG thumbnail, or null if there is none.
+   */
+  private byte[] thumbnail;
+
+  /**
+   * Whether the Exif IFD has been parsed, so a malformed file cannot make the parser loop.
+   */
+  private boolean exifIfdParsed;
+
+  /**
+   * Constructs an empty Exif, filled in by {@link #read(File)}.
+   */
+  private Exif() {
+  }
+
+  /**
+   * Reads the EXIF metadata of a JPEG file.
+   *
+   * @param file the image file
+   * @return the metadata, or null if the file is not a JPEG file
+   * @throws IOException if the file cannot be read
+   */
+  public static Exif read(File file) throws IOException {
+    ByteBuffer header;
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      header = ByteBuffer.allocate((int) Math.min(HEADER_READ_SIZE, channel.size()));
+      while (header.hasRemaining() && channel.read(header, header.position()) > 0) {
+        // Keep reading until the header is full or the file ends
+      }
+    }
+    header.flip();
+    if (header.remaining() < 4 || header.getShort(0) != (short) 0xFFD8) return null;
+    Exif exif = new Exif();
+    try {
+      exif.parseMarkers(header);
+    } catch (IndexOutOfBoundsException e) {
+      // Offsets are checked as they are read, but metadata is never worth failing a photo for
+    }
+    return exif;
+  }
+
+  /**
+   * Reads the EXIF metadata of a JPEG file, treating an unreadable file as one without it.
+   *
+   * @param file the image file
+   * @return the metadata, or null if the file is not a readable JPEG file
+   */
+  public static Exif readQuietly(File file) {
+    try {
+      return read(file);
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Gets the time the photo was taken.
+   *
+   * @return the DateTimeOriginal, or the DateTime if that is missing, or null if neither is recorded
+   */
+  public LocalDateTime getDateTimeOriginal() {
+    return dateTimeOriginal;
+  }
+
+  /**
+   * Gets the orientation.
+   *
+   * @return the EXIF orientation, from 1 to 8, 1 meaning the image is stored upright
+   */
+  public int getOrientation() {
+    return orientation;
+  }
+
+  /**
+   * Gets the width of the image as stored.
+   *
+   * @return the width in pixels, or 0 if it is not known
+   */
+  public int getWidth() {
+    return width;
+  }
+
+  /**
+   * Gets the height of the image as stored.
+   *
+   * @return the height in pixels, or 0 if it is not known
+   */
+  public int getHeight() {
+    return height;
+  }
+
+  /**
+   * Gets the embedded thumbnail.
+   *
+   * @return the thumbnail encoded as JPEG, or null if there is none
+   */
+  public byte[] getThumbnail() {
+    return thumbnail;
+  }
+
+  /**
+   * Walks the JPEG markers up to the image data, parsing the EXIF segment and the frame header.
+   *
+   * @param header the start of the file
+   */
+  private void parseMarkers(ByteBuffer header) {
+    int position = 2;
+    boolean exifFound = false;
+    int frameWidth = 0;
+    int frameHeight = 0;
+    while (position + 4 <= header.limit()) {
+      if ((header.get(position) & 0xFF) != 0xFF) break;
+      int marker = header.get(position + 1) & 0xFF;
+      if (marker == 0xFF) {
+        // Fill byte before a marker
+        position++;
+        continue;
+      }
+      if (marker == 0xD9 || marker == 0xDA) break; // End of image or start of scan
+      int length = header.getShort(position + 2) & 0xFFFF;
+      int segment = position + 4;
+      int segmentEnd = position + 2 + length;
+      if (length < 2 || segmentEnd > header.limit()) break;
+      if (marker == 0xE1 && !exifFound && isExifSegment(header, segment, segmentEnd)) {
+        exifFound = true;
+        parseTiff(header.slice(segment + 6, segmentEnd - segment - 6));
+      } else if (isFrameMarker(marker) && segment + 5 <= segmentEnd) {
+        frameHeight = header.getShort(segment + 1) & 0xFFFF;
+        frameWidth = header.getShort(segment + 3) & 0xFFFF;
+        break;
+      }
+      position = segmentEnd;
+    }
+    // The frame header is authoritative; editors often leave stale EXIF dimensions behind
+    if (frameWidth > 0 && frameHeight > 0) {
+      width = frameWidth;
+      height = frameHeight;
+    }
+  }
+
+  /**
+   * Checks if an APP1 segment holds EXIF data.
+   *
+   * @param header     the start of the file
+   * @param segment    the start of the segment data
+   * @param segmentEnd the end of the segment data
+   * @return true if the segment starts with the EXIF identifier, false otherwise
+   */
+  private static boolean isExifSegment(ByteBuffer header, int segment, int segmentEnd) {
+    if (segmentEnd - segment < 14) return false;
+    byte[] id = new byte[6];
+    header.get(segment, id);
+    return id[0] == 'E' && id[1] == 'x' && id[2] == 'i' && id[3] == 'f' && id[4] == 0 && id[5] == 0;
+  }
+
+  /**
+   * Checks if a marker starts a frame, whose header holds the image dimensions.
+   *
+   * @param marker the marker
+   * @return true for the SOF markers, false otherwise
+   */
+  private static boolean isFrameMarker(int marker) {
+    return marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC;
+  }
+
+  /**
+   * Parses the TIFF structure of an EXIF segment.
+   *
+   * @param tiff the TIFF data, offsets being relative to its start
+   */
+  private void parseTiff(ByteBuffer tiff) {
+    if (tiff.limit() < 8) return;
+    short byteOrder = tiff.getShort(0);
+    if (byteOrder == 0x4949) tiff.order(ByteOrder.LITTLE_ENDIAN);
+    else if (byteOrder != 0x4D4D) return;
+    int ifd0 = tiff.getInt(4);
+    int next = parseIfd(tiff, ifd0, false);
+    if (next > 0) {
+      parseIfd(tiff, next, true);
+    }
+  }
+
+  /**
+   * Parses an image file directory.
+   *
+   * @param tiff       the TIFF data
+   * @param offset     the offset of the directory
+   * @param thumbnails true for IFD1, which describes the thumbnail, false otherwise
+   * @return the offset of the next directory, or 0 if there is none or the directory is malformed
+   */
+  private int parseIfd(ByteBuffer tiff, int offset, boolean thumbnails) {
+    // Bounds are compared by subtraction, since an offset read from the file plus a length can overflow
+    if (offset < 8 || offset > tiff.limit() - 2) return 0;
+    int count = tiff.getShort(offset) & 0xFFFF;
+    int end = offset + 2 + count * 12;
+    if (end > tiff.limit() - 4) return 0;
+    int thumbnailOffset = 0;
+    int thumbnailLength = 0;
+    LocalDateTime dateTime = null;
+    for (int entry = offset + 2; entry < end; entry += 12) {
+      int tag = tiff.getShort(entry) & 0xFFFF;
+      if (thumbnails) {
+        if (tag == TAG_THUMBNAIL_OFFSET) thumbnailOffset = readInteger(tiff, entry);
+        else if (tag == TAG_THUMBNAIL_LENGTH) thumbnailLength = readInteger(tiff, entry);
+        continue;
+      }
+      switch (tag) {
+        case TAG_ORIENTATION -> {
+          int value = readInteger(tiff, entry);
+          if (value >= 1 && value <= 8) orientation = value;
+        }
+        case TAG_DATE_TIME -> dateTime = readDate(tiff, entry);
+        case TAG_EXIF_IFD -> {
+          if (!exifIfdParsed) {
+            exifIfdParsed = true;
+            parseIfd(tiff, readInteger(tiff, entry), false);
+          }
+        }
+        case TAG_DATE_TIME_ORIGINAL -> dateTimeOriginal = readDate(tiff, entry);
+        case TAG_PIXEL_WIDTH -> width = readInteger(tiff, entry);
+        case TAG_PIXEL_HEIGHT -> height = readInteger(tiff, entry);
+        default -> {
+        }
+      }
+    }
+    if (dateTimeOriginal == null) {
+      dateTimeOriginal = dateTime;
+    }
+    if (thumbnailOffset > 0 && thumbnailLength > 0 && thumbnailOffset <= tiff.limit() - thumbnailLength) {
+      thumbnail = new byte[thumbnailLength];
+      tiff.get(thumbnailOffset, thumbnail);
+    }
+    return thumbnails ? 0 : tiff.getInt(end);
+  }
+
+  /**
+   * Reads the value of an entry holding a single SHORT or LONG.
+   *
+   * @param tiff  the TIFF data
+   * @param entry the offset of the entry
+   * @return the value, or 0 if the entry has another type
+   */
+  private static int readInteger(ByteBuffer tiff, int entry) {
+    int type = tiff.getShort(entry + 2) & 0xFFFF;
+    if (type == 3) return tiff.getShort(entry + 8) & 0xFFFF;
+    if (type == 4) return Math.max(0, tiff.getInt(entry + 8));
+    return 0;
+  }
+
+  /**
+   * Reads the value of an entry holding an EXIF date.
+   *
+   * @param tiff  the TIFF data
+   * @param entry the offset of the entry
+   * @return the date, or null if the entry is not a valid date
+   */
+  private static LocalDateTime readDate(ByteBuffer tiff, int entry) {
+    int type = tiff.getShort(entry + 2) & 0xFFFF;
+    int count = tiff.getInt(entry + 4);
+    int offset = tiff.getInt(entry + 8);
+    // An ASCII date is "YYYY:MM:DD HH:MM:SS" and a terminator, too long to be stored inline
+    if (type != 2 || count < 19 || offset < 8 || offset > tiff.limit() - 19) return null;
+    byte[] text = new byte[19];
+    tiff.get(offset, text);
+    try {
+      return LocalDateTime.parse(new String(text, StandardCharsets.US_ASCII), DATE_FORMAT);
+    } catch (DateTimeParseException e) {
+      // Unset dates are often recorded as blanks or zeros
+      return null;
+    }
+  }
+}
@@ -0,0 +1,680 @@
+package app.model;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * Compressed set of non-negative int IDs in the style of a Roaring bitmap, used for the
+ * posting lists and search results of a user's photos. The IDs are split by their high 16
+ * bits into chunks, and each chunk is stored as a sorted array of its low 16 bits while it
+ * holds at most {@value #ARRAY_MAX} IDs, and as a 65536-bit bitmap once it holds more. A sparse
+ * set costs two bytes per ID and a dense one an eighth of a byte, against some forty bytes per
+ * entry for a HashSet.
+ * <p>
+ * {@link #and}, {@link #or} and {@link #andNot} return new bitmaps and leave their operands
+ * alone, so posting lists can be handed out and combined without copying. Two bitmap chunks
+ * are combined a 64-bit word at a time.</p>
+ * @author Reuben Thomas, Ryan Zaken
+ */
+final class IdBitmap {
+
+  /**
+   * The most IDs a chunk stores as a sorted array. An array of this many chars takes the same
+   * 8 KB as a bitmap chunk.
+   */
+  static final int ARRAY_MAX = 4096;
+
+  /**
+   * The number of 64-bit words of a bitmap chunk.
+   */
+  private static final int WORDS = 1024;
+
+  /**
+   * The high 16 bits of the IDs of each chunk, in ascending order.
+   */
+  private char[] keys;
+
+  /**
+   * The chunks, in the order of their keys.
+   */
+  private Chunk[] chunks;
+
+  /**
+   * The number of chunks.
+   */
+  private int size;
+
+  /**
+   * Constructs an empty IdBitmap.
+   */
+  IdBitmap() {
+    this(4);
+  }
+
+  /**
+   * Constructs an empty IdBitmap with room for some chunks.
+   *
+   * @param capacity the number of chunks to make room for
+   */
+  private IdBitmap(int capacity) {
+    keys = new char[Math.max(1, capacity)];
+    chunks = new Chunk[Math.max(1, capacity)];
+  }
+
+  /**
+   * Builds a bitmap of IDs given in any order. Chunks that will hold many IDs are filled as
+   * bitmaps directly, so building costs time linear in the number of IDs.
+   *
+   * @param ids   the IDs, which may repeat
+   * @param count the number of IDs to take from the start of the array
+   * @return the bitmap
+   */
+  static IdBitmap of(int[] ids, int count) {
+    IdBitmap bitmap = new IdBitmap();
+    if (count == 0) return bitmap;
+    int maxKey = 0;
+    for (int i = 0; i < count; i++) {
+      maxKey = Math.max(maxKey, ids[i] >>> 16);
+    }
+    int[] counts = new int[maxKey + 1];
+    for (int i = 0; i < count; i++) {
+      counts[ids[i] >>> 16]++;
+    }
+    Chunk[] built = new Chunk[maxKey + 1];
+    for (int key = 0; key <= maxKey; key++) {
+      if (counts[key] > ARRAY_MAX) built[key] = new BitmapChunk();
+      else if (counts[key] > 0) built[key] = new ArrayChunk(counts[key]);
+    }
+    for (int i = 0; i < count; i++) {
+      Chunk chunk = built[ids[i] >>> 16];
+      if (chunk instanceof BitmapChunk bits) bits.set((char) ids[i]);
+      else if (chunk instanceof ArrayChunk array) array.values[array.size++] = (char) ids[i];
+    }
+    for (int key = 0; key <= maxKey; key++) {
+      if (built[key] instanceof ArrayChunk array) array.sortAndDeduplicate();
+      if (built[key] != null) bitmap.append((char) key, built[key]);
+    }
+    return bitmap;
+  }
+
+  /**
+   * Adds an ID. Adding IDs in ascending order appends to the last chunk in constant time.
+   *
+   * @param id the ID, which must not be negative
+   */
+  void add(int id) {
+    char key = (char) (id >>> 16);
+    int index = find(key);
+    if (index < 0) {
+      index = -index - 1;
+      insert(index, key, new ArrayChunk(4));
+    }
+    chunks[index] = chunks[index].add((char) id);
+  }
+
+  /**
+   * Removes an ID.
+   *
+   * @param id the ID
+   * @return true if the ID was present, false otherwise
+   */
+  boolean remove(int id) {
+    int index = find((char) (id >>> 16));
+    if (index < 0) return false;
+    Chunk chunk = chunks[index];
+    int before = chunk.cardinality();
+    chunk = chunk.remove((char) id);
+    if (chunk.cardinality() == before) return false;
+    if (chunk.cardinality() == 0) {
+      System.arraycopy(keys, index + 1, keys, index, size - index - 1);
+      System.arraycopy(chunks, index + 1, chunks, index, size - index - 1);
+      chunks[--size] = null;
+    } else {
+      chunks[index] = chunk;
+    }
+    return true;
+  }
+
+  /**
+   * Checks if an ID is present.
+   *
+   * @param id the ID
+   * @return true if the ID is present, false otherwise
+   */
+  boolean contains(int id) {
+    int index = find((char) (id >>> 16));
+    return index >= 0 && chunks[index].contains((char) id);
+  }
+
+  /**
+   * Counts the IDs.
+   *
+   * @return the number of IDs
+   */
+  int cardinality() {
+    int cardinality = 0;
+    for (int i = 0; i < size; i++) {
+      cardinality += chunks[i].cardinality();
+    }
+    return cardinality;
+  }
+
+  /**
+   * Checks if there are no IDs.
+   *
+   * @return true if the bitmap is empty, false otherwise
+   */
+  boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * Passes each ID to an action, in ascending order.
+   *
+   * @param action the action
+   */
+  void forEach(IntConsumer action) {
+    for (int i = 0; i < size; i++) {
+      chunks[i].forEach(keys[i] << 16, action);
+    }
+  }
+
+  /**
+   * Computes the IDs present in both bitmaps.
+   *
+   * @param a the first bitmap
+   * @param b the second bitmap
+   * @return a new bitmap of the intersection
+   */
+  static IdBitmap and(IdBitmap a, IdBitmap b) {
+    IdBitmap result = new IdBitmap(Math.min(a.size, b.size));
+    int i = 0;
+    int j = 0;
+    while (i < a.size && j < b.size) {
+      if (a.keys[i] < b.keys[j]) i++;
+      else if (a.keys[i] > b.keys[j]) j++;
+      else {
+        Chunk chunk = a.chunks[i].and(b.chunks[j]);
+        if (chunk.cardinality() > 0) result.append(a.keys[i], chunk);
+        i++;
+        j++;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Computes the IDs present in either bitmap.
+   *
+   * @param a the first bitmap
+   * @param b the second bitmap
+   * @return a new bitmap of the union
+   */
+  static IdBitmap or(IdBitmap a, IdBitmap b) {
+    IdBitmap result = new IdBitmap(a.size + b.size);
+    int i = 0;
+    int j = 0;
+    while (i < a.size || j < b.size) {
+      if (j == b.size || (i < a.size && a.keys[i] < b.keys[j])) {
+        result.append(a.keys[i], a.chunks[i].copy());
+        i++;
+      } else if (i == a.size || a.keys[i] > b.keys[j]) {
+        result.append(b.keys[j], b.chunks[j].copy());
+        j++;
+      } else {
+        result.append(a.keys[i], a.chunks[i].or(b.chunks[j]));
+        i++;
+        j++;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Computes the IDs present in the first bitmap but not the second.
+   *
+   * @param a the bitmap to subtract from
+   * @param b the bitmap to subtract
+   * @return a new bitmap of the difference
+   */
+  static IdBitmap andNot(IdBitmap a, IdBitmap b) {
+    IdBitmap result = new IdBitmap(a.size);
+    int j = 0;
+    for (int i = 0; i < a.size; i++) {
+      while (j < b.size && b.keys[j] < a.keys[i]) j++;
+      Chunk chunk = j < b.size && b.keys[j] == a.keys[i] ? a.chunks[i].andNot(b.chunks[j]) : a.chunks[i].copy();
+      if (chunk.cardinality() > 0) result.append(a.keys[i], chunk);
+    }
+    return result;
+  }
+
+  /**
+   * Finds the chunk with a key.
+   *
+   * @param key the high 16 bits of an ID
+   * @return the index of the chunk, or (-(insertion point) - 1) if there is none
+   */
+  private int find(char key) {
+    // IDs are mostly added in ascending order, so check the last chunk first
+    if (size > 0 && keys[size - 1] == key) return size - 1;
+    return Arrays.binarySearch(keys, 0, size, key);
+  }
+
+  /**
+   * Inserts a chunk.
+   *
+   * @param index the index to insert at
+   * @param key   the key of the chunk
+   * @param chunk the chunk
+   */
+  private void insert(int index, char key, Chunk chunk) {
+    if (size == keys.length) {
+      keys = Arrays.copyOf(keys, size * 2);
+      chunks = Arrays.copyOf(chunks, size * 2);
+    }
+    System.arraycopy(keys, index, keys, index + 1, size - index);
+    System.arraycopy(chunks, index, chunks, index + 1, size - index);
+    keys[index] = key;
+    chunks[index] = chunk;
+    size++;
+  }
+
+  /**
+   * Appends a chunk whose key is greater than every other key.
+   *
+   * @param key   the key of the chunk
+   * @param chunk the chunk
+   */
+  private void append(char key, Chunk chunk) {
+    insert(size, key, chunk);
+  }
+
+  /**
+   * The low 16 bits of the IDs sharing their high 16 bits. Operations that change a chunk
+   * return the chunk to keep, which may be of the other kind.
+   */
+  private abstract static class Chunk {
+    /**
+     * Adds a value.
+     *
+     * @param value the low 16 bits of an ID
+     * @return the chunk holding the result
+     */
+    abstract Chunk add(char value);
+
+    /**
+     * Removes a value.
+     *
+     * @param value the low 16 bits of an ID
+     * @return the chunk holding the result
+     */
+    abstract Chunk remove(char value);
+
+    /**
+     * Checks if a value is present.
+     *
+     * @param value the low 16 bits of an ID
+     * @return true if the value is present, false otherwise
+     */
+    abstract boolean contains(char value);
+
+    /**
+     * Counts the values.
+     *
+     * @return the number of values
+     */
+    abstract int cardinality();
+
+    /**
+     * Passes each ID to an action, in ascending order.
+     *
+     * @param high   the high 16 bits of the IDs, shifted into place
+     * @param action the action
+     */
+    abstract void forEach(int high, IntConsumer action);
+
+    /**
+     * Copies the chunk.
+     *
+     * @return the copy
+     */
+    abstract Chunk copy();
+
+    /**
+     * Computes the values present in both chunks.
+     *
+     * @param other the other chunk
+     * @return a new chunk of the intersection
+     */
+    abstract Chunk and(Chunk other);
+
+    /**
+     * Computes the values present in either chunk.
+     *
+     * @param other the other chunk
+     * @return a new chunk of the union
+     */
+    abstract Chunk or(Chunk other);
+
+    /**
+     * Computes the values present in this chunk but not the other.
+     *
+     * @param other the other chunk
+     * @return a new chunk of the difference
+     */
+    abstract Chunk andNot(Chunk other);
+  }
+
+  /**
+   * A chunk of at most {@value #ARRAY_MAX} values, stored sorted.
+   */
+  private static final class ArrayChunk extends Chunk {
+    /** The values, sorted, in the first size elements. */
+    private char[] values;
+    /** The number of values. */
+    private int size;
+
+    /**
+     * Constructs an empty ArrayChunk.
+     *
+     * @param capacity the number of values to make room for
+     */
+    ArrayChunk(int capacity) {
+      values = new char[Math.max(1, capacity)];
+    }
+
+    /**
+     * Sorts the values and drops repeats, after they were filled in unordered.
+     */
+    void sortAndDeduplicate() {
+      Arrays.sort(values, 0, size);
+      int kept = 0;
+      for (int i = 0; i < size; i++) {
+        if (kept == 0 || values[i] != values[kept - 1]) values[kept++] = values[i];
+      }
+      size = kept;
+    }
+
+    /**
+     * Appends a value greater than every value present.
+     *
+     * @param value the value
+     */
+    private void append(char value) {
+      if (size == values.length) values = Arrays.copyOf(values, Math.min(ARRAY_MAX, size * 2));
+      values[size++] = value;
+    }
+
+    @Override
+    Chunk add(char value) {
+      if (size > 0 && values[size - 1] < value && size < ARRAY_MAX) {
+        append(value);
+        return this;
+      }
+      int index = Arrays.binarySearch(values, 0, size, value);
+      if (index >= 0) return this;
+      if (size == ARRAY_MAX) {
+        return toBitmap().add(value);
+      }
+      index = -index - 1;
+      if (size == values.length) values = Arrays.copyOf(values, Math.min(ARRAY_MAX, size * 2));
+      System.arraycopy(values, index, values, index + 1, size - index);
+      values[index] = value;
+      size++;
+      return this;
+    }
+
+    @Override
+    Chunk remove(char value) {
+      int index = Arrays.binarySearch(values, 0, size, value);
+      if (index >= 0) {
+        System.arraycopy(values, index + 1, values, index, size - index - 1);
+        size--;
+      }
+      return this;
+    }
+
+    @Override
+    boolean contains(char value) {
+      return Arrays.binarySearch(values, 0, size, value) >= 0;
+    }
+
+    @Override
+    int cardinality() {
+      return size;
+    }
+
+    @Override
+    void forEach(int high, IntConsumer action) {
+      for (int i = 0; i < size; i++) {
+        action.accept(high | values[i]);
+      }
+    }
+
+    @Override
+    Chunk copy() {
+      ArrayChunk copy = new ArrayChunk(size);
+      System.arraycopy(values, 0, copy.values, 0, size);
+      copy.size = size;
+      return copy;
+    }
+
+    @Override
+    Chunk and(Chunk other) {
+      ArrayChunk result = new ArrayChunk(size);
+      if (other instanceof ArrayChunk array) {
+        int i = 0;
+        int j = 0;
+        while (i < size && j < array.size) {
+          if (values[i] < array.values[j]) i++;
+          else if (values[i] > array.values[j]) j++;
+          else {
+            result.values[result.size++] = values[i];
+            i++;
+            j++;
+          }
+        }
+      } else {
+        for (int i = 0; i < size; i++) {
+          if (other.contains(values[i])) result.values[result.size++] = values[i];
+        }
+      }
+      return result;
+    }
+
+    @Override
+    Chunk or(Chunk other) {
+      if (other instanceof BitmapChunk) return other.or(this);
+      ArrayChunk array = (ArrayChunk) other;
+      if (size + array.size > ARRAY_MAX) {
+        return BitmapChunk.shrink(toBitmap().or(array));
+      }
+      ArrayChunk result = new ArrayChunk(size + array.size);
+      int i = 0;
+      int j = 0;
+      while (i < size || j < array.size) {
+        char next;
+        if (j == array.size || (i < size && values[i] < array.values[j])) next = values[i++];
+        else if (i == size || values[i] > array.values[j]) next = array.values[j++];
+        else {
+          next = values[i++];
+          j++;
+        }
+        result.values[result.size++] = next;
+      }
+      return result;
+    }
+
+    @Override
+    Chunk andNot(Chunk other) {
+      ArrayChunk result = new ArrayChunk(size);
+      for (int i = 0; i < size; i++) {
+        if (!other.contains(values[i])) result.values[result.size++] = values[i];
+      }
+      return result;
+    }
+
+    /**
+     * Converts the chunk to a bitmap.
+     *
+     * @return a bitmap chunk of the same values
+     */
+    private BitmapChunk toBitmap() {
+      BitmapChunk bitmap = new BitmapChunk();
+      for (int i = 0; i < size; i++) {
+        bitmap.set(values[i]);
+      }
+      return bitmap;
+    }
+  }
+
+  /**
+   * A chunk of more than {@value #ARRAY_MAX} values, stored as a bitmap.
+   */
+  private static final class BitmapChunk extends Chunk {
+    /** The bits of the values. */
+    private final long[] words;
+    /** The number of bits set. */
+    private int cardinality;
+
+    /**
+     * Constructs an empty BitmapChunk.
+     */
+    BitmapChunk() {
+      this(new long[WORDS]);
+    }
+
+    /**
+     * Constructs a BitmapChunk of some words, counting their bits.
+     *
+     * @param words the bits of the values
+     */
+    private BitmapChunk(long[] words) {
+      this.words = words;
+      for (long word : words) {
+        cardinality += Long.bitCount(word);
+      }
+    }
+
+    /**
+     * Sets the bit of a value.
+     *
+     * @param value the value
+     */
+    void set(char value) {
+      long bit = 1L << value;
+      if ((words[value >>> 6] & bit) == 0) {
+        words[value >>> 6] |= bit;
+        cardinality++;
+      }
+    }
+
+    @Override
+    Chunk add(char value) {
+      set(value);
+      return this;
+    }
+
+    @Override
+    Chunk remove(char value) {
+      long bit = 1L << value;
+      if ((words[value >>> 6] & bit) != 0) {
+        words[value >>> 6] &= ~bit;
+        cardinality--;
+      }
+      return cardinality > ARRAY_MAX ? this : toArray();
+    }
+
+    @Override
+    boolean contains(char value) {
+      return (words[value >>> 6] & (1L << value)) != 0;
+    }
+
+    @Override
+    int cardinality() {
+      return cardinality;
+    }
+
+    @Override
+    void forEach(int high, IntConsumer action) {
+      for (int w = 0; w < WORDS; w++) {
+        long word = words[w];
+        while (word != 0) {
+          action.accept(high | (w << 6) | Long.numberOfTrailingZeros(word));
+          word &= word - 1;
+        }
+      }
+    }
+
+    @Override
+    Chunk copy() {
+      return new BitmapChunk(words.clone());
+    }
+
+    @Override
+    Chunk and(Chunk other) {
+      if (other instanceof ArrayChunk) return other.and(this);
+      long[] otherWords = ((BitmapChunk) other).words;
+      long[] result = new long[WORDS];
+      for (int w = 0; w < WORDS; w++) {
+        result[w] = words[w] & otherWords[w];
+      }
+      return shrink(new BitmapChunk(result));
+    }
+
+    @Override
+    BitmapChunk or(Chunk other) {
+      long[] result = words.clone();
+      if (other instanceof ArrayChunk array) {
+        for (int i = 0; i < array.size; i++) {
+          char value = array.values[i];
+          result[value >>> 6] |= 1L << value;
+        }
+      } else {
+        long[] otherWords = ((BitmapChunk) other).words;
+        for (int w = 0; w < WORDS; w++) {
+          result[w] |= otherWords[w];
+        }
+      }
+      return new BitmapChunk(result);
+    }
+
+    @Override
+    Chunk andNot(Chunk other) {
+      long[] result = words.clone();
+      if (other instanceof ArrayChunk array) {
+        for (int i = 0; i < array.size; i++) {
+          char value = array.values[i];
+          result[value >>> 6] &= ~(1L << value);
+        }
+      } else {
+        long[] otherWords = ((BitmapChunk) other).words;
+        for (int w = 0; w < WORDS; w++) {
+          result[w] &= ~otherWords[w];
+        }
+      }
+      return shrink(new BitmapChunk(result));
+    }
+
+    /**
+     * Converts the chunk to an array.
+     *
+     * @return an array chunk of the same values
+     */
+    private ArrayChunk toArray() {
+      ArrayChunk array = new ArrayChunk(cardinality);
+      forEach(0, value -> array.values[array.size++] = (char) value);
+      return array;
+    }
+
+    /**
+     * Converts a chunk to an array if it has few enough values.
+     *
+     * @param chunk the chunk
+     * @return the chunk, or an array chunk of its values
+     */
+    private static Chunk shrink(BitmapChunk chunk) {
+      return chunk.cardinality > ARRAY_MAX ? chunk : chunk.toArray();
+    }
+  }
+}
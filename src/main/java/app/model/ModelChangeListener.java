@@ -0,0 +1,117 @@
+package app.model;
+
+/**
+ * Receives notifications of mutations to the model, such as photos being added to albums,
+ * captions and tags changing, and users and albums being created or removed.
+ * A listener is attached to a {@link UserList}, which passes it on to each of its users.
+ * @author Reuben Thomas, Ryan Zaken
+ */
+public interface ModelChangeListener {
+
+  /**
+   * Called after a user is added to the user list.
+   *
+   * @param user the added user
+   */
+  void userAdded(User user);
+
+  /**
+   * Called after a user is deleted from the user list.
+   *
+   * @param username the username of the deleted user
+   */
+  void userDeleted(String username);
+
+  /**
+   * Called after an album is added to a user.
+   *
+   * @param user  the owner of the album
+   * @param album the added album
+   */
+  void albumAdded(User user, Album album);
+
+  /**
+   * Called after an album of a user is renamed.
+   *
+   * @param user    the owner of the album
+   * @param oldName the previous name of the album
+   * @param newName the new name of the album
+   */
+  void albumRenamed(User user, String oldName, String newName);
+
+  /**
+   * Called after an album is deleted from a user.
+   *
+   * @param user the owner of the album
+   * @param name the name of the deleted album
+   */
+  void albumDeleted(User user, String name);
+
+  /**
+   * Called after a tag type is added to a user.
+   *
+   * @param user    the owner of the tag type
+   * @param tagType the added tag type
+   */
+  void tagTypeAdded(User user, TagType tagType);
+
+  /**
+   * Called after a tag type is removed from a user.
+   *
+   * @param user the owner of the tag type
+   * @param name the name of the removed tag type
+   */
+  void tagTypeRemoved(User user, String name);
+
+  /**
+   * Called after a photo is added to an album.
+   *
+   * @param user  the owner of the album
+   * @param album the album the photo was added to
+   * @param photo the added photo
+   */
+  void photoAdded(User user, Album album, Photo photo);
+
+  /**
+   * Called after a photo is removed from an album.
+   *
+   * @param user  the owner of the album
+   * @param album the album the photo was removed from
+   * @param photo the removed photo
+   */
+  void photoRemoved(User user, Album album, Photo photo);
+
+  /**
+   * Called after the caption of a photo changes.
+   *
+   * @param user  the owner of the photo
+   * @param photo the photo whose caption changed
+   */
+  void captionChanged(User user, Photo photo);
+
+  /**
+   * Called after the date a photo was taken changes.
+   *
+   * @param user  the owner of the photo
+   * @param photo the photo whose date changed
+   */
+  void dateTakenChanged(User user, Photo photo);
+
+  /**
+   * Called after a tag is added to a photo.
+   *
+   * @param user  the owner of the photo
+   * @param photo the photo the tag was added to
+   * @param tag   the added tag
+   */
+  void tagAdded(User user, Photo photo, Tag tag);
+
+  /**
+   * Called after a tag is removed from a photo.
+   *
+   * @param user  the owner of the photo
+   * @param photo the photo the tag was removed from
+   * @param tag   the removed tag
+   */
+  void tagRemoved(User user, Photo photo, Tag tag);
+}
@@ -0,0 +1,510 @@
+package app.model;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.DateTimeException;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.*;
+
+/**
+ * Compact, versioned binary format for a {@link User} and for the list of usernames.
+ * Integers are written as varints, every string is written once to a string table and
+ * referenced by index, photos shared by several albums are written once, and dates are
+ * written as epoch seconds. Data written by Java serialization is recognised by
+ * {@link #isEncoded(byte[])} returning false, so it can still be read as a migration path.
+ * @author Reuben Thomas, Ryan Zaken
+ */
+public final class ModelCodec {
+
+  /**
+   * The bytes every encoded user or user directory starts with.
+   */
+  private static final byte[] MAGIC = {'P', 'H', 'O', 'T'};
+
+  /**
+   * The current format version.
+   */
+  private static final int VERSION = 1;
+
+  /**
+   * Prevents instantiation of this utility class.
+   */
+  private ModelCodec() {
+  }
+
+  /**
+   * Checks if the data was written by this codec rather than by Java serialization.
+   *
+   * @param data the stored data
+   * @return true if the data starts with the codec's magic bytes, false otherwise
+   */
+  public static boolean isEncoded(byte[] data) {
+    if (data.length < MAGIC.length) return false;
+    for (int i = 0; i < MAGIC.length; i++) {
+      if (data[i] != MAGIC[i]) return false;
+    }
+    return true;
+  }
+
+  /**
+   * Encodes a user with all of its tag types, albums and photos.
+   *
+   * @param user the user to encode
+   * @return the encoded user
+   */
+  public static byte[] encodeUser(User user) {
+    // Photos are written once each, in the order they are first met. Every photo in an album
+    // is registered with the user, so its dense ID finds its position without hashing
+    int maxId = -1;
+    for (Photo photo : user.getAllPhotos()) {
+      maxId = Math.max(maxId, photo.getId());
+    }
+    int[] photoIndexes = new int[maxId + 1];
+    Arrays.fill(photoIndexes, -1);
+    List<Photo> photos = new ArrayList<>(maxId + 1);
+    for (Album album : user.getAlbums()) {
+      for (Photo photo : album.getPhotos()) {
+        if (photoIndexes[photo.getId()] < 0) {
+          photoIndexes[photo.getId()] = photos.size();
+          photos.add(photo);
+        }
+      }
+    }
+
+    StringTable strings = new StringTable();
+    Output body = new Output();
+    body.writeVarInt(strings.indexOf(user.getUsername()));
+
+    body.writeVarInt(user.getAllTagTypes().size());
+    for (TagType tagType : user.getAllTagTypes()) {
+      body.writeVarInt(strings.indexOf(tagType.getName()));
+      body.writeByte(tagType.isMultiValue() ? 1 : 0);
+    }
+
+    body.writeVarInt(photos.size());
+    for (Photo photo : photos) {
+      // A user has one photo per path, so paths need no lookup
+      body.writeVarInt(strings.add(photo.getPath()));
+      body.writeVarInt(strings.indexOf(photo.getCaption()));
+      body.writeVarLong(photo.getDateTaken().toEpochSecond(ZoneOffset.UTC));
+      body.writeVarInt(photo.getDateTaken().getNano());
+      body.writeVarInt(photo.getTags().size());
+      for (Tag tag : photo.getTags()) {
+        body.writeVarInt(strings.indexOf(tag.getName()));
+        body.writeByte(tag.getType().isMultiValue() ? 1 : 0);
+        body.writeVarInt(tag.getValues().size());
+        for (String value : tag.getValues()) {
+          body.writeVarInt(strings.indexOf(value));
+        }
+      }
+    }
+
+    body.writeVarInt(user.getAlbums().size());
+    for (Album album : user.getAlbums()) {
+      body.writeVarInt(strings.indexOf(album.getName()));
+      body.writeVarInt(album.getPhotoCount());
+      for (Photo photo : album.getPhotos()) {
+        body.writeVarInt(photoIndexes[photo.getId()]);
+      }
+    }
+
+    Output out = new Output();
+    writeHeader(out);
+    strings.writeTo(out);
+    out.writeBytes(body.buffer, 0, body.size);
+    return out.toByteArray();
+  }
+
+  /**
+   * Decodes a user written by {@link #encodeUser(User)}.
+   *
+   * @param data the encoded user
+   * @return the decoded user
+   * @throws IOException if the data is not a valid encoded user
+   */
+  public static User decodeUser(byte[] data) throws IOException {
+    Input in = new Input(data);
+    try {
+      readHeader(in);
+      String[] strings = StringTable.readFrom(in);
+      User user = new User(strings[in.readVarInt()]);
+      List<TagType> tagTypes = user.getAllTagTypes();
+      tagTypes.clear();
+      Map<String, TagType> tagTypesByName = new HashMap<>();
+      int tagTypeCount = in.readCount();
+      for (int i = 0; i < tagTypeCount; i++) {
+        TagType tagType = new TagType(strings[in.readVarInt()], in.readByte() != 0);
+        tagTypes.add(tagType);
+        tagTypesByName.put(tagType.getName(), tagType);
+      }
+
+      Photo[] photos = new Photo[in.readCount()];
+      for (int i = 0; i < photos.length; i++) {
+        String path = strings[in.readVarInt()];
+        String caption = strings[in.readVarInt()];
+        long epochSecond = in.readVarLong();
+        int nano = in.readVarInt();
+        Photo photo = new Photo(path, LocalDateTime.ofEpochSecond(epochSecond, nano, ZoneOffset.UTC));
+        photo.setCaption(caption != null ? caption : "");
+        int tagCount = in.readCount();
+        for (int t = 0; t < tagCount; t++) {
+          String typeName = strings[in.readVarInt()];
+          boolean multiValue = in.readByte() != 0;
+          TagType type = tagTypesByName.computeIfAbsent(typeName, name -> new TagType(name, multiValue));
+          int valueCount = in.readCount();
+          if (valueCount < 1) {
+            throw new IOException("Corrupt user data: a tag has no values");
+          }
+          Tag tag = new Tag(type, strings[in.readVarInt()]);
+          for (int v = 1; v < valueCount; v++) {
+            tag.getValues().add(strings[in.readVarInt()]);
+          }
+          photo.getTags().add(tag);
+        }
+        photos[i] = photo;
+      }
+
+      int albumCount = in.readCount();
+      for (int i = 0; i < albumCount; i++) {
+        Album album = user.addAlbum(strings[in.readVarInt()]);
+        int photoCount = in.readCount();
+        for (int p = 0; p < photoCount; p++) {
+          album.addLoadedPhoto(photos[in.readVarInt()]);
+        }
+      }
+      user.relink();
+      return user;
+    } catch (IndexOutOfBoundsException | NullPointerException | DateTimeException e) {
+      throw new IOException("Corrupt user data", e);
+    }
+  }
+
+  /**
+   * Encodes a list of usernames, as stored in the user directory.
+   *
+   * @param usernames the usernames to encode
+   * @return the encoded usernames
+   */
+  public static byte[] encodeUsernames(Collection<String> usernames) {
+    Output out = new Output();
+    writeHeader(out);
+    out.writeVarInt(usernames.size());
+    for (String username : usernames) {
+      out.writeString(username);
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * Decodes a list of usernames written by {@link #encodeUsernames(Collection)}.
+   *
+   * @param data the encoded usernames
+   * @return the usernames
+   * @throws IOException if the data is not a valid encoded username list
+   */
+  public static List<String> decodeUsernames(byte[] data) throws IOException {
+    Input in = new Input(data);
+    try {
+      readHeader(in);
+      int count = in.readCount();
+      List<String> usernames = new ArrayList<>(count);
+      for (int i = 0; i < count; i++) {
+        usernames.add(in.readString());
+      }
+      return usernames;
+    } catch (IndexOutOfBoundsException e) {
+      throw new IOException("Corrupt user directory", e);
+    }
+  }
+
+  /**
+   * Writes the magic bytes and format version.
+   *
+   * @param out the output to write to
+   */
+  private static void writeHeader(Output out) {
+    out.writeBytes(MAGIC, 0, MAGIC.length);
+    out.writeVarInt(VERSION);
+  }
+
+  /**
+   * Reads and checks the magic bytes and format version.
+   *
+   * @param in the input to read from
+   * @throws IOException if the header is missing or the version is not supported
+   */
+  private static void readHeader(Input in) throws IOException {
+    if (!isEncoded(in.data)) {
+      throw new IOException("Not a Photos data file");
+    }
+    in.position = MAGIC.length;
+    int version = in.readVarInt();
+    if (version != VERSION) {
+      throw new IOException("Unsupported data file version " + version);
+    }
+  }
+
+  /**
+   * Assigns each distinct string an index, with index 0 reserved for null.
+   */
+  private static class StringTable {
+    /** The index of each string added so far. */
+    private final Map<String, Integer> indexes = new HashMap<>();
+    /** The strings in index order, starting at index 1. */
+    private final List<String> strings = new ArrayList<>();
+
+    /**
+     * Gets the index of a string, adding it to the table if needed.
+     *
+     * @param s the string, which may be null
+     * @return the index of the string
+     */
+    int indexOf(String s) {
+      if (s == null) return 0;
+      Integer index = indexes.get(s);
+      if (index == null) {
+        strings.add(s);
+        index = strings.size();
+        indexes.put(s, index);
+      }
+      return index;
+    }
+
+    /**
+     * Adds a string known to differ from every string added so far, without looking it up.
+     * Should the same string be added again through {@link #indexOf(String)}, it is only
+     * written twice.
+     *
+     * @param s the string
+     * @return the index of the string
+     */
+    int add(String s) {
+      strings.add(s);
+      return strings.size();
+    }
+
+    /**
+     * Writes the table as a count followed by each string. Each string is front-coded: only
+     * the length of the prefix it shares with the previous string and the remaining suffix
+     * are written, which keeps photo paths from the same folder short.
+     *
+     * @param out the output to write to
+     */
+    void writeTo(Output out) {
+      out.writeVarInt(strings.size());
+      String previous = "";
+      for (String s : strings) {
+        int limit = Math.min(previous.length(), s.length());
+        int shared = 0;
+        while (shared < limit && previous.charAt(shared) == s.charAt(shared)) {
+          shared++;
+        }
+        // Never split a surrogate pair between the prefix and the suffix
+        if (shared > 0 && Character.isHighSurrogate(s.charAt(shared - 1))) {
+          shared--;
+        }
+        out.writeVarInt(shared);
+        out.writeString(s.substring(shared));
+        previous = s;
+      }
+    }
+
+    /**
+     * Reads a table written by {@link #writeTo(Output)}.
+     *
+     * @param in the input to read from
+     * @return the strings by index, with null at index 0
+     */
+    static String[] readFrom(Input in) {
+      String[] strings = new String[in.readCount() + 1];
+      String previous = "";
+      for (int i = 1; i < strings.length; i++) {
+        int shared = in.readVarInt();
+        String suffix = in.readString();
+        strings[i] = shared == 0 ? suffix : previous.substring(0, shared).concat(suffix);
+        previous = strings[i];
+      }
+      return strings;
+    }
+  }
+
+  /**
+   * A growable byte buffer with varint and string writers.
+   */
+  private static class Output {
+    /** The bytes written so far, followed by spare capacity. */
+    private byte[] buffer = new byte[4096];
+    /** The number of bytes written. */
+    private int size;
+
+    /**
+     * Makes room for the specified number of additional bytes.
+     *
+     * @param count the number of bytes about to be written
+     */
+    private void ensureCapacity(int count) {
+      if (size + count > buffer.length) {
+        buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + count));
+      }
+    }
+
+    /**
+     * Writes a single byte.
+     *
+     * @param b the byte to write
+     */
+    void writeByte(int b) {
+      ensureCapacity(1);
+      buffer[size++] = (byte) b;
+    }
+
+    /**
+     * Writes a range of bytes.
+     *
+     * @param bytes  the source bytes
+     * @param offset the offset of the first byte to write
+     * @param length the number of bytes to write
+     */
+    void writeBytes(byte[] bytes, int offset, int length) {
+      ensureCapacity(length);
+      System.arraycopy(bytes, offset, buffer, size, length);
+      size += length;
+    }
+
+    /**
+     * Writes a non-negative int in 1 to 5 bytes, 7 bits per byte.
+     *
+     * @param value the value to write
+     */
+    void writeVarInt(int value) {
+      ensureCapacity(5);
+      while ((value & ~0x7F) != 0) {
+        buffer[size++] = (byte) ((value & 0x7F) | 0x80);
+        value >>>= 7;
+      }
+      buffer[size++] = (byte) value;
+    }
+
+    /**
+     * Writes a signed long in zigzag encoding, so that small negative values stay short.
+     *
+     * @param value the value to write
+     */
+    void writeVarLong(long value) {
+      ensureCapacity(10);
+      long zigzag = (value << 1) ^ (value >> 63);
+      while ((zigzag & ~0x7FL) != 0) {
+        buffer[size++] = (byte) ((zigzag & 0x7F) | 0x80);
+        zigzag >>>= 7;
+      }
+      buffer[size++] = (byte) zigzag;
+    }
+
+    /**
+     * Writes a string as its UTF-8 length and bytes.
+     *
+     * @param s the string to write
+     */
+    void writeString(String s) {
+      byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+      writeVarInt(bytes.length);
+      writeBytes(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Gets a copy of the bytes written.
+     *
+     * @return the written bytes
+     */
+    byte[] toByteArray() {
+      return Arrays.copyOf(buffer, size);
+    }
+  }
+
+  /**
+   * Reads values written by {@link Output} from a byte array.
+   */
+  private static class Input {
+    /** The data being read. */
+    private final byte[] data;
+    /** The position of the next byte to read. */
+    private int position;
+
+    /**
+     * Constructs an Input reading the specified data from the start.
+     *
+     * @param data the data to read
+     */
+    Input(byte[] data) {
+      this.data = data;
+    }
+
+    /**
+     * Reads a single byte.
+     *
+     * @return the byte read
+     */
+    byte readByte() {
+      return data[position++];
+    }
+
+    /**
+     * Reads an int written by {@link Output#writeVarInt(int)}.
+     *
+     * @return the value read
+     */
+    int readVarInt() {
+      int value = 0;
+      for (int shift = 0; ; shift += 7) {
+        byte b = data[position++];
+        value |= (b & 0x7F) << shift;
+        if (b >= 0) return value;
+      }
+    }
+
+    /**
+     * Reads the number of items that follow. Every item takes at least one byte, so a count
+     * larger than the bytes left can only come from corrupt data.
+     *
+     * @return the count read
+     * @throws IndexOutOfBoundsException if the count is negative or larger than the bytes left
+     */
+    int readCount() {
+      int count = readVarInt();
+      if (count < 0 || count > data.length - position) {
+        throw new IndexOutOfBoundsException("Count " + count + " runs past the end of the data");
+      }
+      return count;
+    }
+
+    /**
+     * Reads a long written by {@link Output#writeVarLong(long)}.
+     *
+     * @return the value read
+     */
+    long readVarLong() {
+      long zigzag = 0;
+      for (int shift = 0; ; shift += 7) {
+        byte b = data[position++];
+        zigzag |= (long) (b & 0x7F) << shift;
+        if (b >= 0) return (zigzag >>> 1) ^ -(zigzag & 1);
+      }
+    }
+
+    /**
+     * Reads a string written by {@link Output#writeString(String)}.
+     *
+     * @return the string read
+     */
+    String readString() {
+      int length = readVarInt();
+      if (length < 0 || length > data.length - position) {
+        throw new IndexOutOfBoundsException("String runs past the end of the data");
+      }
+      String s = new String(data, position, length, StandardCharsets.UTF_8);
+      position += length;
+      return s;
+    }
+  }
+}
@@ -34,20 +34,80 @@ public class Photo implements Serializable {
    */
   private Set<Tag> tags;
 
+  /**
+   * The user whose albums contain this photo. Mutations are reported to this user.
+   */
+  private transient User owner;
+
+  /**
+   * The dense ID of the photo among the photos of its owner, or -1 if it is in none of the
+   * owner's albums. Assigned by the owner's photo registry; not saved.
+   */
+  private transient int id = -1;
+
+  /**
+   * Whether the file of the photo was found to be gone. Not saved; it is rechecked each session.
+   */
+  private transient boolean missing;
+
+  /**
+   * The SHA-256 digest of the content of the file, or null if it has not been computed.
+   * Not saved; digests are cached by the content hasher instead.
+   */
+  private transient String contentHash;
+
+  /**
+   * The perceptual hash of the photo's thumbnail, or null if it has not been computed.
+   * Not saved; hashes are cached by the perceptual hasher instead.
+   */
+  private transient Long perceptualHash;
+
   /**
    * Constructs a Photo object with the specified file path.
-   * The date taken is initialized based on the file's last modified timestamp.
+   * The date taken is read from the EXIF capture date of the file if it has one, and is
+   * otherwise the file's last modified timestamp.
    *
    * @param filePath the file path of the photo
    */
   public Photo(String filePath) {
+    this(filePath, readDateTaken(new File(filePath)));
+  }
+
+  /**
+   * Constructs a Photo object with the specified file path and a known date taken,
+   * without reading the file.
+   *
+   * @param filePath  the file path of the photo
+   * @param dateTaken the date and time the photo was taken
+   */
+  public Photo(String filePath, LocalDateTime dateTaken) {
     this.path = filePath;
     this.caption = "";
     this.tags = new HashSet<>();
-    File file = new File(filePath);
-    this.dateTaken = LocalDateTime.ofInstant(
-            new Date(file.lastModified()).toInstant(), ZoneId.systemDefault()
-    );
+    this.dateTaken = dateTaken;
+  }
+
+  /**
+   * Reads the date a photo file was taken.
+   *
+   * @param file the photo file
+   * @return the EXIF capture date, or the last modified timestamp if there is none
+   */
+  public static LocalDateTime readDateTaken(File file) {
+    Exif exif = Exif.readQuietly(file);
+    if (exif != null && exif.getDateTimeOriginal() != null) {
+      return exif.getDateTimeOriginal();
+    }
+    return LocalDateTime.ofInstant(new Date(file.lastModified()).toInstant(), ZoneId.systemDefault());
+  }
+
+  /**
+   * Sets the user whose albums contain this photo.
+   *
+   * @param owner the owning user
+   */
+  void setOwner(User owner) {
+    this.owner = owner;
   }
 
   /**
@@ -83,7 +143,9 @@ public class Photo implements Serializable {
    * @param caption the new caption of the photo
    */
   public void setCaption(String caption) {
+    String oldCaption = this.caption;
     this.caption = caption;
+    if (owner != null) owner.captionChanged(this, oldCaption);
   }
 
   /**
@@ -95,6 +157,92 @@ public class Photo implements Serializable {
     return dateTaken;
   }
 
+  /**
+   * Sets the date and time the photo was taken, such as after its file has been edited.
+   *
+   * @param dateTaken the new date and time the photo was taken
+   */
+  public void setDateTaken(LocalDateTime dateTaken) {
+    LocalDateTime oldDate = this.dateTaken;
+    if (oldDate.equals(dateTaken)) return;
+    this.dateTaken = dateTaken;
+    if (owner != null) owner.dateTakenChanged(this, oldDate);
+  }
+
+  /**
+   * Gets the dense ID of the photo among the photos of its owner.
+   *
+   * @return the ID, or -1 if the photo is in none of the owner's albums
+   */
+  int getId() {
+    return id;
+  }
+
+  /**
+   * Sets the dense ID of the photo among the photos of its owner.
+   *
+   * @param id the ID, or -1 if the photo is in none of the owner's albums
+   */
+  void setId(int id) {
+    this.id = id;
+  }
+
+  /**
+   * Checks if the file of the photo was found to be gone.
+   *
+   * @return true if the file is missing, false otherwise
+   */
+  public boolean isMissing() {
+    return missing;
+  }
+
+  /**
+   * Sets whether the file of the photo is gone.
+   *
+   * @param missing true if the file is missing, false otherwise
+   */
+  public void setMissing(boolean missing) {
+    this.missing = missing;
+  }
+
+  /**
+   * Gets the digest of the content of the file, which is the same for copies of the file.
+   *
+   * @return the hexadecimal SHA-256 digest, or null if it has not been computed
+   */
+  public String getContentHash() {
+    return contentHash;
+  }
+
+  /**
+   * Sets the digest of the content of the file.
+   *
+   * @param contentHash the hexadecimal SHA-256 digest, or null if it is unknown
+   */
+  public void setContentHash(String contentHash) {
+    this.contentHash = contentHash;
+  }
+
+  /**
+   * Gets the perceptual hash of the photo, which is close for similar images.
+   *
+   * @return the 64-bit difference hash of the thumbnail, or null if it has not been computed
+   */
+  public Long getPerceptualHash() {
+    return perceptualHash;
+  }
+
+  /**
+   * Sets the perceptual hash of the photo.
+   *
+   * @param perceptualHash the 64-bit difference hash of the thumbnail, or null if it is unknown
+   */
+  public void setPerceptualHash(Long perceptualHash) {
+    Long oldHash = this.perceptualHash;
+    this.perceptualHash = perceptualHash;
+    if (owner != null && !Objects.equals(oldHash, perceptualHash)) owner.perceptualHashChanged(this, oldHash);
+  }
+
   /**
    * Gets the set of tags associated with the photo.
    *
@@ -114,6 +262,7 @@ public class Photo implements Serializable {
     if (!tags.add(tag)) {
       throw new IllegalStateException("'" + tag + "' tag already exists.");
     }
+    if (owner != null) owner.tagAdded(this, tag);
   }
 
   /**
@@ -132,7 +281,7 @@ public class Photo implements Serializable {
    * @param tag the tag to remove
    */
   public void removeTag(Tag tag) {
-    tags.remove(tag);
+    if (tags.remove(tag) && owner != null) owner.tagRemoved(this, tag);
   }
 
   /**
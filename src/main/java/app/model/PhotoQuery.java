@@ -0,0 +1,805 @@
+package app.model;
+
+import java.time.LocalDateTime;
+import java.util.*;
+
+/**
+ * A search over the photos of a user: a tree of AND, OR and NOT over predicates on tags, the
+ * date taken, album membership and caption words and text. Queries are built with the static factory
+ * methods and run with {@link User#search(PhotoQuery)}.
+ * <p>
+ * An AND is planned from the cardinalities of the user's indexes: the operand expected to
+ * match the fewest photos is evaluated from its index, and only those candidates are checked
+ * against the other operands, most selective first. So a query costs time proportional to its
+ * most selective predicate rather than to the size of the library. Sets of photos are
+ * {@link IdBitmap}s of photo IDs, so indexed predicates are combined a word at a time, and only
+ * predicates without an index probe the candidates one by one.</p>
+ * @author Reuben Thomas, Ryan Zaken
+ */
+public abstract class PhotoQuery {
+
+  /**
+   * The relative cost of probing a photo against a predicate answered by a lookup.
+   */
+  static final int LOOKUP_COST = 1;
+
+  /**
+   * The relative cost of probing a photo against a predicate that scans text.
+   */
+  static final int SCAN_COST = 8;
+
+  /**
+   * The relative cost of estimating a predicate whose index keeps its size.
+   */
+  static final int COUNTED = 0;
+
+  /**
+   * The relative cost of estimating a predicate whose index must be walked to count it.
+   */
+  static final int WALKED = 1;
+
+  /**
+   * Constructs a PhotoQuery. Only the predicates of this class extend it.
+   */
+  PhotoQuery() {
+  }
+
+  /**
+   * Creates a query for the photos carrying a tag.
+   *
+   * @param tag the tag
+   * @return the query
+   */
+  public static PhotoQuery tag(Tag tag) {
+    return new TagPredicate(tag);
+  }
+
+  /**
+   * Creates a query for the photos taken strictly between two dates.
+   *
+   * @param start the start of the date range, exclusive
+   * @param end   the end of the date range, exclusive
+   * @return the query
+   */
+  public static PhotoQuery dateRange(LocalDateTime start, LocalDateTime end) {
+    return new DatePredicate(start, end);
+  }
+
+  /**
+   * Creates a query for the photos in an album.
+   *
+   * @param albumName the name of the album
+   * @return the query, which matches nothing if the user has no such album
+   */
+  public static PhotoQuery inAlbum(String albumName) {
+    return new AlbumPredicate(albumName);
+  }
+
+  /**
+   * Creates a query for the photos whose caption contains some text, ignoring case. The text
+   * may start or end within a word, so the captions are scanned; prefer
+   * {@link #captionPhrase(String)}, which is answered by the caption index.
+   *
+   * @param text the text to look for
+   * @return the query
+   */
+  public static PhotoQuery captionContains(String text) {
+    return new CaptionPredicate(text);
+  }
+
+  /**
+   * Creates a query for the photos whose caption contains some words one after another,
+   * ignoring case, punctuation and spacing, so "sunset, beach" matches "Sunset beach!".
+   *
+   * @param words the words to look for
+   * @return the query
+   * @throws IllegalArgumentException if the text has no words
+   */
+  public static PhotoQuery captionPhrase(String words) {
+    List<String> terms = CaptionIndex.tokenize(words);
+    if (terms.isEmpty()) {
+      throw new IllegalArgumentException("A caption search needs at least one word!");
+    }
+    return new CaptionPhrasePredicate(terms);
+  }
+
+  /**
+   * Creates a query for the photos matching every operand.
+   *
+   * @param operands the operands
+   * @return the query
+   * @throws IllegalArgumentException if there are no operands
+   */
+  public static PhotoQuery and(PhotoQuery... operands) {
+    return and(Arrays.asList(operands));
+  }
+
+  /**
+   * Creates a query for the photos matching every operand.
+   *
+   * @param operands the operands
+   * @return the query
+   * @throws IllegalArgumentException if there are no operands
+   */
+  public static PhotoQuery and(List<PhotoQuery> operands) {
+    if (operands.isEmpty()) {
+      throw new IllegalArgumentException("An AND query needs at least one operand!");
+    }
+    return operands.size() == 1 ? operands.get(0) : new And(operands);
+  }
+
+  /**
+   * Creates a query for the photos matching any operand.
+   *
+   * @param operands the operands
+   * @return the query
+   * @throws IllegalArgumentException if there are no operands
+   */
+  public static PhotoQuery or(PhotoQuery... operands) {
+    return or(Arrays.asList(operands));
+  }
+
+  /**
+   * Creates a query for the photos matching any operand.
+   *
+   * @param operands the operands
+   * @return the query
+   * @throws IllegalArgumentException if there are no operands
+   */
+  public static PhotoQuery or(List<PhotoQuery> operands) {
+    if (operands.isEmpty()) {
+      throw new IllegalArgumentException("An OR query needs at least one operand!");
+    }
+    return operands.size() == 1 ? operands.get(0) : new Or(operands);
+  }
+
+  /**
+   * Creates a query for the photos not matching a query.
+   *
+   * @param operand the query to negate
+   * @return the query
+   */
+  public static PhotoQuery not(PhotoQuery operand) {
+    return new Not(operand);
+  }
+
+  /**
+   * Estimates the number of photos of a user matching this query from the user's indexes.
+   * Counting may stop once the limit is reached, so the planner never spends more on an
+   * estimate than evaluating the best operand found so far would cost.
+   *
+   * @param user  the user searched
+   * @param limit the count beyond which the exact number does not matter
+   * @return the estimated number of matches, or any number of at least limit if there are more
+   */
+  abstract int estimate(User user, int limit);
+
+  /**
+   * Gets the relative cost of {@link #estimate(User, int)}, so that counted sizes are known
+   * before any index is walked and can limit the walk.
+   *
+   * @return {@link #COUNTED} if the estimate is a lookup, {@link #WALKED} if it walks an index
+   */
+  int estimateCost() {
+    return COUNTED;
+  }
+
+  /**
+   * Gets the relative cost of checking a single photo against this query.
+   *
+   * @return the cost, {@link #LOOKUP_COST} for a predicate answered by a lookup
+   */
+  abstract int probeCost();
+
+  /**
+   * Checks if a photo of a user matches this query.
+   *
+   * @param user  the user searched
+   * @param photo the photo
+   * @return true if the photo matches, false otherwise
+   */
+  abstract boolean matches(User user, Photo photo);
+
+  /**
+   * Finds the photos of a user matching this query.
+   *
+   * @param user the user searched
+   * @return the IDs of the matching photos, which the caller must not modify
+   */
+  abstract IdBitmap evaluate(User user);
+
+  /**
+   * Gets the normalized form of this query, the same for queries that differ only in the order
+   * or repetition of the operands of an AND or OR, or in how ANDs or ORs are nested.
+   *
+   * @return the key of this query
+   */
+  abstract String key();
+
+  /**
+   * Adds the tags, albums and fields whose changes can change the result of this query.
+   *
+   * @param dependencies the set to add to
+   */
+  void addDependencies(Set<QueryCache.Dependency> dependencies) {
+  }
+
+  /**
+   * Finds the photos among some candidates that match this query, by default by probing each
+   * candidate.
+   *
+   * @param user       the user searched
+   * @param candidates the IDs of the candidate photos
+   * @return the IDs of the matching candidates, which the caller must not modify
+   */
+  IdBitmap filter(User user, IdBitmap candidates) {
+    IdBitmap matching = new IdBitmap();
+    candidates.forEach(id -> {
+      if (matches(user, user.getPhotoById(id))) matching.add(id);
+    });
+    return matching;
+  }
+
+  /**
+   * A query for the photos carrying a tag, answered by the tag index.
+   */
+  private static class TagPredicate extends PhotoQuery {
+    /** The tag. */
+    private final Tag tag;
+
+    /**
+     * Constructs a TagPredicate.
+     *
+     * @param tag the tag
+     */
+    TagPredicate(Tag tag) {
+      this.tag = tag;
+    }
+
+    @Override
+    int estimate(User user, int limit) {
+      return user.getIndexedPhotos(tag).cardinality();
+    }
+
+    @Override
+    int probeCost() {
+      return LOOKUP_COST;
+    }
+
+    @Override
+    boolean matches(User user, Photo photo) {
+      return user.getIndexedPhotos(tag).contains(photo.getId());
+    }
+
+    @Override
+    IdBitmap filter(User user, IdBitmap candidates) {
+      return IdBitmap.and(candidates, user.getIndexedPhotos(tag));
+    }
+
+    @Override
+    IdBitmap evaluate(User user) {
+      return user.getIndexedPhotos(tag);
+    }
+
+    @Override
+    String key() {
+      return "tag:" + tag;
+    }
+
+    @Override
+    void addDependencies(Set<QueryCache.Dependency> dependencies) {
+      dependencies.add(QueryCache.Dependency.tag(tag));
+    }
+
+    @Override
+    public String toString() {
+      return tag.toString();
+    }
+  }
+
+  /**
+   * A query for the photos taken within a date range, answered by the date index.
+   */
+  private static class DatePredicate extends PhotoQuery {
+    /** The start of the range, exclusive. */
+    private final LocalDateTime start;
+    /** The end of the range, exclusive. */
+    private final LocalDateTime end;
+
+    /**
+     * Constructs a DatePredicate.
+     *
+     * @param start the start of the range, exclusive
+     * @param end   the end of the range, exclusive
+     */
+    DatePredicate(LocalDateTime start, LocalDateTime end) {
+      this.start = start;
+      this.end = end;
+    }
+
+    @Override
+    int estimate(User user, int limit) {
+      return user.countPhotosInDateRange(start, end, limit);
+    }
+
+    @Override
+    int estimateCost() {
+      return WALKED;
+    }
+
+    @Override
+    int probeCost() {
+      return LOOKUP_COST;
+    }
+
+    @Override
+    boolean matches(User user, Photo photo) {
+      return photo.getDateTaken().isAfter(start) && photo.getDateTaken().isBefore(end);
+    }
+
+    @Override
+    IdBitmap filter(User user, IdBitmap candidates) {
+      // Comparing the dates of the candidates is cheaper than collecting a larger range
+      int size = candidates.cardinality();
+      return estimate(user, size) < size ? IdBitmap.and(candidates, evaluate(user)) : super.filter(user, candidates);
+    }
+
+    @Override
+    IdBitmap evaluate(User user) {
+      return user.getIndexedPhotos(start, end);
+    }
+
+    @Override
+    String key() {
+      return "date:" + start + "/" + end;
+    }
+
+    @Override
+    void addDependencies(Set<QueryCache.Dependency> dependencies) {
+      // The dates of photos never change, so the result only changes with the set of photos
+      dependencies.add(QueryCache.Dependency.DATE);
+    }
+
+    @Override
+    public String toString() {
+      return "date in (" + start + ", " + end + ")";
+    }
+  }
+
+  /**
+   * A query for the photos in an album, answered by the album's bitmap in the photo registry.
+   */
+  private static class AlbumPredicate extends PhotoQuery {
+    /** The name of the album. */
+    private final String albumName;
+
+    /**
+     * Constructs an AlbumPredicate.
+     *
+     * @param albumName the name of the album
+     */
+    AlbumPredicate(String albumName) {
+      this.albumName = albumName;
+    }
+
+    @Override
+    int estimate(User user, int limit) {
+      Album album = user.getAlbum(albumName);
+      return album != null ? user.getIndexedPhotos(album).cardinality() : 0;
+    }
+
+    @Override
+    int probeCost() {
+      return LOOKUP_COST;
+    }
+
+    @Override
+    boolean matches(User user, Photo photo) {
+      Album album = user.getAlbum(albumName);
+      return album != null && album.hasPhoto(photo);
+    }
+
+    @Override
+    IdBitmap filter(User user, IdBitmap candidates) {
+      return IdBitmap.and(candidates, evaluate(user));
+    }
+
+    @Override
+    IdBitmap evaluate(User user) {
+      Album album = user.getAlbum(albumName);
+      return album != null ? user.getIndexedPhotos(album) : new IdBitmap();
+    }
+
+    @Override
+    String key() {
+      return "album:" + albumName;
+    }
+
+    @Override
+    void addDependencies(Set<QueryCache.Dependency> dependencies) {
+      dependencies.add(QueryCache.Dependency.album(albumName));
+    }
+
+    @Override
+    public String toString() {
+      return "album=" + albumName;
+    }
+  }
+
+  /**
+   * A query for the photos whose caption contains some text, which may be part of a word, so
+   * the caption index cannot answer it and it is only evaluated by scanning when nothing
+   * narrows the search.
+   */
+  private static class CaptionPredicate extends PhotoQuery {
+    /** The text looked for, in lower case. */
+    private final String text;
+
+    /**
+     * Constructs a CaptionPredicate.
+     *
+     * @param text the text looked for
+     */
+    CaptionPredicate(String text) {
+      this.text = text.toLowerCase();
+    }
+
+    @Override
+    int estimate(User user, int limit) {
+      return user.countPhotos();
+    }
+
+    @Override
+    int probeCost() {
+      return SCAN_COST;
+    }
+
+    @Override
+    boolean matches(User user, Photo photo) {
+      return photo.getCaption() != null && photo.getCaption().toLowerCase().contains(text);
+    }
+
+    @Override
+    IdBitmap evaluate(User user) {
+      return filter(user, user.getIndexedPhotos());
+    }
+
+    @Override
+    String key() {
+      return "caption:" + text;
+    }
+
+    @Override
+    void addDependencies(Set<QueryCache.Dependency> dependencies) {
+      dependencies.add(QueryCache.Dependency.CAPTION);
+    }
+
+    @Override
+    public String toString() {
+      return "caption~\"" + text + "\"";
+    }
+  }
+
+  /**
+   * A query for the photos whose caption contains a phrase, answered by the caption index.
+   */
+  private static class CaptionPhrasePredicate extends PhotoQuery {
+    /** The words of the phrase in order, in lower case. */
+    private final List<String> words;
+
+    /**
+     * Constructs a CaptionPhrasePredicate.
+     *
+     * @param words the words of the phrase in order, in lower case
+     */
+    CaptionPhrasePredicate(List<String> words) {
+      this.words = List.copyOf(words);
+    }
+
+    @Override
+    int estimate(User user, int limit) {
+      // No more photos can contain the phrase than contain its rarest word
+      int estimate = Integer.MAX_VALUE;
+      for (String word : words) {
+        estimate = Math.min(estimate, user.countPhotosWithCaptionWord(word));
+      }
+      return estimate;
+    }
+
+    @Override
+    int probeCost() {
+      // Each word of a phrase is intersected, and its positions checked, in turn
+      return words.size() * LOOKUP_COST;
+    }
+
+    @Override
+    boolean matches(User user, Photo photo) {
+      return Collections.indexOfSubList(CaptionIndex.tokenize(photo.getCaption()), words) >= 0;
+    }
+
+    @Override
+    IdBitmap filter(User user, IdBitmap candidates) {
+      return user.getIndexedPhotos(words, candidates);
+    }
+
+    @Override
+    IdBitmap evaluate(User user) {
+      return user.getIndexedPhotos(words, null);
+    }
+
+    @Override
+    String key() {
+      return "phrase:" + String.join(" ", words);
+    }
+
+    @Override
+    void addDependencies(Set<QueryCache.Dependency> dependencies) {
+      dependencies.add(QueryCache.Dependency.CAPTION);
+    }
+
+    @Override
+    public String toString() {
+      return "caption has \"" + String.join(" ", words) + "\"";
+    }
+  }
+
+  /**
+   * A query for the photos matching every operand, evaluated from its most selective operand.
+   */
+  private static class And extends PhotoQuery {
+    /** The operands. */
+    private final List<PhotoQuery> operands;
+
+    /**
+     * Constructs an And.
+     *
+     * @param operands the operands
+     */
+    And(List<PhotoQuery> operands) {
+      this.operands = List.copyOf(operands);
+    }
+
+    @Override
+    int estimate(User user, int limit) {
+      int estimate = limit;
+      for (PhotoQuery operand : byEstimateCost()) {
+        estimate = Math.min(estimate, operand.estimate(user, estimate));
+      }
+      return estimate;
+    }
+
+    @Override
+    int estimateCost() {
+      return operands.stream().mapToInt(PhotoQuery::estimateCost).max().orElse(COUNTED);
+    }
+
+    @Override
+    int probeCost() {
+      return operands.stream().mapToInt(PhotoQuery::probeCost).sum();
+    }
+
+    @Override
+    boolean matches(User user, Photo photo) {
+      for (PhotoQuery operand : operands) {
+        if (!operand.matches(user, photo)) return false;
+      }
+      return true;
+    }
+
+    @Override
+    IdBitmap evaluate(User user) {
+      // Estimate the counted operands first, so walking a range stops at the best estimate so
+      // far; an operand only drives the search if it is strictly more selective, since a walk
+      // cut short at the limit is no better than the operand that set the limit
+      Map<PhotoQuery, Integer> estimates = new HashMap<>();
+      PhotoQuery driver = null;
+      int best = user.countPhotos();
+      for (PhotoQuery operand : byEstimateCost()) {
+        int estimate = operand instanceof Not ? user.countPhotos() : operand.estimate(user, best);
+        estimates.put(operand, estimate);
+        if (!(operand instanceof Not) && estimate < best) {
+          driver = operand;
+          best = estimate;
+        }
+      }
+      // The remaining operands filter the candidates, most selective first, so each one
+      // discards as many candidates as possible before the costlier ones run
+      List<PhotoQuery> plan = new ArrayList<>(operands);
+      plan.sort(Comparator.comparingLong(operand -> (long) estimates.get(operand) * operand.probeCost()));
+      IdBitmap photos = driver != null ? driver.evaluate(user) : user.getIndexedPhotos();
+      for (PhotoQuery operand : plan) {
+        if (photos.isEmpty()) break;
+        if (operand != driver) photos = operand.filter(user, photos);
+      }
+      return photos;
+    }
+
+    /**
+     * Gets the operands in order of the cost of estimating them.
+     *
+     * @return the operands, cheapest to estimate first
+     */
+    private List<PhotoQuery> byEstimateCost() {
+      List<PhotoQuery> sorted = new ArrayList<>(operands);
+      sorted.sort(Comparator.comparingInt(PhotoQuery::estimateCost));
+      return sorted;
+    }
+
+    @Override
+    String key() {
+      SortedSet<String> keys = new TreeSet<>();
+      addOperandKeys(keys);
+      return keys.size() == 1 ? keys.first() : "(" + String.join(" AND ", keys) + ")";
+    }
+
+    /**
+     * Adds the keys of the operands, flattening nested ANDs into this one.
+     *
+     * @param keys the set to add to
+     */
+    private void addOperandKeys(Set<String> keys) {
+      for (PhotoQuery operand : operands) {
+        if (operand instanceof And and) and.addOperandKeys(keys);
+        else keys.add(operand.key());
+      }
+    }
+
+    @Override
+    void addDependencies(Set<QueryCache.Dependency> dependencies) {
+      operands.forEach(operand -> operand.addDependencies(dependencies));
+    }
+
+    @Override
+    public String toString() {
+      StringJoiner joiner = new StringJoiner(" AND ", "(", ")");
+      operands.forEach(operand -> joiner.add(operand.toString()));
+      return joiner.toString();
+    }
+  }
+
+  /**
+   * A query for the photos matching any operand, evaluated as the union of its operands.
+   */
+  private static class Or extends PhotoQuery {
+    /** The operands. */
+    private final List<PhotoQuery> operands;
+
+    /**
+     * Constructs an Or.
+     *
+     * @param operands the operands
+     */
+    Or(List<PhotoQuery> operands) {
+      this.operands = List.copyOf(operands);
+    }
+
+    @Override
+    int estimate(User user, int limit) {
+      long estimate = 0;
+      for (PhotoQuery operand : operands) {
+        estimate += operand.estimate(user, limit);
+        if (estimate >= limit) break;
+      }
+      return (int) Math.min(estimate, user.countPhotos());
+    }
+
+    @Override
+    int estimateCost() {
+      return operands.stream().mapToInt(PhotoQuery::estimateCost).max().orElse(COUNTED);
+    }
+
+    @Override
+    int probeCost() {
+      return operands.stream().mapToInt(PhotoQuery::probeCost).sum();
+    }
+
+    @Override
+    boolean matches(User user, Photo photo) {
+      for (PhotoQuery operand : operands) {
+        if (operand.matches(user, photo)) return true;
+      }
+      return false;
+    }
+
+    @Override
+    IdBitmap evaluate(User user) {
+      IdBitmap photos = new IdBitmap();
+      for (PhotoQuery operand : operands) {
+        photos = IdBitmap.or(photos, operand.evaluate(user));
+      }
+      return photos;
+    }
+
+    @Override
+    String key() {
+      SortedSet<String> keys = new TreeSet<>();
+      addOperandKeys(keys);
+      return keys.size() == 1 ? keys.first() : "(" + String.join(" OR ", keys) + ")";
+    }
+
+    /**
+     * Adds the keys of the operands, flattening nested ORs into this one.
+     *
+     * @param keys the set to add to
+     */
+    private void addOperandKeys(Set<String> keys) {
+      for (PhotoQuery operand : operands) {
+        if (operand instanceof Or or) or.addOperandKeys(keys);
+        else keys.add(operand.key());
+      }
+    }
+
+    @Override
+    void addDependencies(Set<QueryCache.Dependency> dependencies) {
+      operands.forEach(operand -> operand.addDependencies(dependencies));
+    }
+
+    @Override
+    public String toString() {
+      StringJoiner joiner = new StringJoiner(" OR ", "(", ")");
+      operands.forEach(operand -> joiner.add(operand.toString()));
+      return joiner.toString();
+    }
+  }
+
+  /**
+   * A query for the photos not matching its operand. It is normally applied as a filter of
+   * an AND, subtracting the candidates that match the operand; on its own it is evaluated
+   * against every photo.
+   */
+  private static class Not extends PhotoQuery {
+    /** The negated query. */
+    private final PhotoQuery operand;
+
+    /**
+     * Constructs a Not.
+     *
+     * @param operand the negated query
+     */
+    Not(PhotoQuery operand) {
+      this.operand = operand;
+    }
+
+    @Override
+    int estimate(User user, int limit) {
+      return user.countPhotos();
+    }
+
+    @Override
+    int probeCost() {
+      return operand.probeCost();
+    }
+
+    @Override
+    boolean matches(User user, Photo photo) {
+      return !operand.matches(user, photo);
+    }
+
+    @Override
+    IdBitmap filter(User user, IdBitmap candidates) {
+      return IdBitmap.andNot(candidates, operand.filter(user, candidates));
+    }
+
+    @Override
+    IdBitmap evaluate(User user) {
+      return IdBitmap.andNot(user.getIndexedPhotos(), operand.evaluate(user));
+    }
+
+    @Override
+    String key() {
+      return "NOT " + operand.key();
+    }
+
+    @Override
+    void addDependencies(Set<QueryCache.Dependency> dependencies) {
+      operand.addDependencies(dependencies);
+      // Every photo entering the library matches unless the operand does
+      dependencies.add(QueryCache.Dependency.LIBRARY);
+    }
+
+    @Override
+    public String toString() {
+      return "NOT " + operand;
+    }
+  }
+}
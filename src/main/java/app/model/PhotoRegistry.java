@@ -0,0 +1,207 @@
+package app.model;
+
+import java.nio.file.Paths;
+import java.util.*;
+
+/**
+ * Registry of the photos of a user, mapping each path to the single Photo instance used by
+ * every album of the user. Each entry also lists the albums containing the photo, which makes
+ * it a reverse index from photos to albums, and is dropped once the photo is in no album.
+ * <p>
+ * Each registered photo is given a dense ID, the IDs of removed photos being reused, so sets
+ * of the user's photos can be held as {@link IdBitmap}s. The registry keeps the bitmap of all
+ * registered photos and of the photos of each album.</p>
+ * @author Reuben Thomas, Ryan Zaken
+ */
+class PhotoRegistry {
+
+  /**
+   * The registered photo of each path and the albums containing it.
+   */
+  private final Map<String, Entry> entries = new HashMap<>();
+
+  /**
+   * The registered photo of each ID, null for an ID not in use.
+   */
+  private final List<Photo> photosById = new ArrayList<>();
+
+  /**
+   * The IDs of removed photos, reused before new ones are handed out.
+   */
+  private final Deque<Integer> freeIds = new ArrayDeque<>();
+
+  /**
+   * The IDs of all registered photos.
+   */
+  private final IdBitmap ids = new IdBitmap();
+
+  /**
+   * The IDs of the photos of each album, keyed by identity since renaming an album changes
+   * its equality.
+   */
+  private final Map<Album, IdBitmap> albumIds = new IdentityHashMap<>();
+
+  /**
+   * Converts a file path to the form under which new photos are registered: absolute,
+   * with redundant {@code .} and {@code ..} elements removed.
+   *
+   * @param path the file path
+   * @return the canonical path
+   */
+  static String canonicalPath(String path) {
+    return Paths.get(path).toAbsolutePath().normalize().toString();
+  }
+
+  /**
+   * Gets the registered photo with the specified path.
+   *
+   * @param path the file path of the photo
+   * @return the photo, or null if no album contains a photo with the path
+   */
+  Photo get(String path) {
+    Entry entry = entries.get(path);
+    return entry != null ? entry.photo : null;
+  }
+
+  /**
+   * Checks if a photo may be added to an album, that is if no other instance is registered
+   * under its path.
+   *
+   * @param photo the photo to check
+   * @return true if the photo is registered or its path is free, false otherwise
+   */
+  boolean isCanonical(Photo photo) {
+    Entry entry = entries.get(photo.getPath());
+    return entry == null || entry.photo == photo;
+  }
+
+  /**
+   * Records that a photo is in one more album, registering it if it was in none.
+   *
+   * @param photo the photo
+   * @param album the album now containing the photo
+   * @return true if the photo was not in any album before, false otherwise
+   */
+  boolean add(Photo photo, Album album) {
+    Entry entry = entries.get(photo.getPath());
+    if (entry == null) {
+      entry = new Entry(photo);
+      entries.put(photo.getPath(), entry);
+      int id = freeIds.isEmpty() ? photosById.size() : freeIds.pop();
+      if (id == photosById.size()) photosById.add(photo);
+      else photosById.set(id, photo);
+      photo.setId(id);
+      ids.add(id);
+    }
+    entry.albums.add(album);
+    albumIds.computeIfAbsent(album, a -> new IdBitmap()).add(photo.getId());
+    return entry.albums.size() == 1;
+  }
+
+  /**
+   * Records that a photo is in one less album, unregistering it if it is in none.
+   *
+   * @param photo the photo
+   * @param album the album that no longer contains the photo
+   * @return true if the photo is no longer in any album, false otherwise
+   */
+  boolean remove(Photo photo, Album album) {
+    Entry entry = entries.get(photo.getPath());
+    if (entry == null) return false;
+    // Albums are compared by identity, since renaming an album changes its equality
+    entry.albums.removeIf(a -> a == album);
+    IdBitmap photosOfAlbum = albumIds.get(album);
+    if (photosOfAlbum != null && photosOfAlbum.remove(photo.getId()) && photosOfAlbum.isEmpty()) {
+      albumIds.remove(album);
+    }
+    if (!entry.albums.isEmpty()) return false;
+    entries.remove(photo.getPath());
+    // The photo keeps its ID until the caller has removed it from the other indexes
+    photosById.set(photo.getId(), null);
+    freeIds.push(photo.getId());
+    ids.remove(photo.getId());
+    return true;
+  }
+
+  /**
+   * Gets the albums containing a photo.
+   *
+   * @param photo the photo
+   * @return an unmodifiable view of the albums, in the order the photo was added to them
+   */
+  List<Album> getAlbums(Photo photo) {
+    Entry entry = entries.get(photo.getPath());
+    return entry != null ? Collections.unmodifiableList(entry.albums) : Collections.emptyList();
+  }
+
+  /**
+   * Gets the registered photo with an ID.
+   *
+   * @param id the ID
+   * @return the photo, or null if the ID is not in use
+   */
+  Photo getById(int id) {
+    return photosById.get(id);
+  }
+
+  /**
+   * Gets the IDs of all registered photos.
+   *
+   * @return the bitmap of IDs, which the caller must not modify
+   */
+  IdBitmap getIds() {
+    return ids;
+  }
+
+  /**
+   * Gets the IDs of the photos of an album.
+   *
+   * @param album the album
+   * @return the bitmap of IDs, which the caller must not modify
+   */
+  IdBitmap getIds(Album album) {
+    IdBitmap photosOfAlbum = albumIds.get(album);
+    return photosOfAlbum != null ? photosOfAlbum : new IdBitmap();
+  }
+
+  /**
+   * Gets the number of registered photos.
+   *
+   * @return the number of distinct photos in the user's albums
+   */
+  int size() {
+    return entries.size();
+  }
+
+  /**
+   * Gets all registered photos.
+   *
+   * @return a list of the distinct photos in the user's albums
+   */
+  List<Photo> getPhotos() {
+    List<Photo> photos = new ArrayList<>(entries.size());
+    for (Entry entry : entries.values()) {
+      photos.add(entry.photo);
+    }
+    return photos;
+  }
+
+  /**
+   * A registered photo and the albums containing it.
+   */
+  private static class Entry {
+    /** The registered photo. */
+    private final Photo photo;
+    /** The albums containing the photo. A photo is usually in only a few albums. */
+    private final List<Album> albums = new ArrayList<>(2);
+
+    /**
+     * Constructs an Entry for a photo not yet in any album.
+     *
+     * @param photo the registered photo
+     */
+    Entry(Photo photo) {
+      this.photo = photo;
+    }
+  }
+}
@@ -0,0 +1,219 @@
+package app.model;
+
+import java.util.*;
+
+/**
+ * Cache of the results of a user's photo searches, keyed by the normalized query, so a search
+ * run again is answered without touching the indexes. The least recently used results are
+ * evicted once more than a fixed number are kept.
+ * <p>
+ * Invalidation is driven by the user's mutations and is as narrow as the queries allow: each
+ * result is filed under the tags, albums and fields its query reads, and a change drops only
+ * the results filed under what changed. Adding a tag to a photo drops the results of queries
+ * on that tag, moving a photo between albums drops those on the albums, and editing a caption
+ * drops those on caption text. A photo entering or leaving the user's library drops the
+ * results on its tags, its album, the captions and the dates, and those of NOT queries, which
+ * match every photo their operand does not; results on other tags and albums are kept.</p>
+ * @author Reuben Thomas, Ryan Zaken
+ */
+public final class QueryCache {
+
+  /**
+   * The default number of results kept.
+   */
+  static final int DEFAULT_MAX_ENTRIES = 64;
+
+  /**
+   * Something a query result depends on: a tag, an album name, the captions, the dates or
+   * the set of photos in the library.
+   *
+   * @param field the kind of dependency
+   * @param value the tag or album name, or null for the other fields
+   */
+  record Dependency(String field, Object value) {
+
+    /** The dependency on the captions of the photos. */
+    static final Dependency CAPTION = new Dependency("caption", null);
+
+    /** The dependency on the dates the photos were taken. */
+    static final Dependency DATE = new Dependency("date", null);
+
+    /** The dependency on the set of photos in the library, for results matching photos by absence. */
+    static final Dependency LIBRARY = new Dependency("library", null);
+
+    /**
+     * Gets the dependency on a tag.
+     *
+     * @param tag the tag
+     * @return the dependency
+     */
+    static Dependency tag(Tag tag) {
+      return new Dependency("tag", tag);
+    }
+
+    /**
+     * Gets the dependency on the photos of an album.
+     *
+     * @param albumName the name of the album
+     * @return the dependency
+     */
+    static Dependency album(String albumName) {
+      return new Dependency("album", albumName);
+    }
+  }
+
+  /**
+   * A cached result and what it depends on.
+   *
+   * @param result       the IDs of the matching photos
+   * @param dependencies the tags, albums and fields the query reads
+   */
+  private record Entry(IdBitmap result, Set<Dependency> dependencies) {
+  }
+
+  /**
+   * The most results kept.
+   */
+  private final int maxEntries;
+
+  /**
+   * The cached results by query key, least recently used first.
+   */
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+  /**
+   * The keys of the cached results depending on each tag, album or field.
+   */
+  private final Map<Dependency, Set<String>> keysByDependency = new HashMap<>();
+
+  /**
+   * The number of searches answered from the cache.
+   */
+  private long hits;
+
+  /**
+   * The number of searches that had to be evaluated.
+   */
+  private long misses;
+
+  /**
+   * The number of results dropped because something they depend on changed.
+   */
+  private long invalidations;
+
+  /**
+   * Constructs a QueryCache.
+   *
+   * @param maxEntries the most results kept
+   */
+  QueryCache(int maxEntries) {
+    this.maxEntries = maxEntries;
+  }
+
+  /**
+   * Gets the cached result of a query, or evaluates and caches it.
+   *
+   * @param query the query
+   * @param user  the user searched
+   * @return the IDs of the matching photos, which the caller must not modify
+   */
+  IdBitmap get(PhotoQuery query, User user) {
+    String key = query.key();
+    Entry entry = entries.get(key);
+    if (entry != null) {
+      hits++;
+      return entry.result();
+    }
+    misses++;
+    IdBitmap result = query.evaluate(user);
+    Set<Dependency> dependencies = new HashSet<>();
+    query.addDependencies(dependencies);
+    entries.put(key, new Entry(result, dependencies));
+    for (Dependency dependency : dependencies) {
+      keysByDependency.computeIfAbsent(dependency, d -> new HashSet<>()).add(key);
+    }
+    if (entries.size() > maxEntries) {
+      Map.Entry<String, Entry> eldest = entries.entrySet().iterator().next();
+      remove(eldest.getKey());
+    }
+    return result;
+  }
+
+  /**
+   * Drops the results depending on something that changed.
+   *
+   * @param dependency the tag, album or field that changed
+   */
+  void invalidate(Dependency dependency) {
+    Set<String> keys = keysByDependency.get(dependency);
+    if (keys == null) return;
+    for (String key : new ArrayList<>(keys)) {
+      remove(key);
+      invalidations++;
+    }
+  }
+
+  /**
+   * Gets the number of results kept.
+   *
+   * @return the number of cached results
+   */
+  public int size() {
+    return entries.size();
+  }
+
+  /**
+   * Gets the number of searches answered from the cache.
+   *
+   * @return the hit count
+   */
+  public long getHitCount() {
+    return hits;
+  }
+
+  /**
+   * Gets the number of searches that had to be evaluated.
+   *
+   * @return the miss count
+   */
+  public long getMissCount() {
+    return misses;
+  }
+
+  /**
+   * Gets the share of searches answered from the cache.
+   *
+   * @return the hit rate, from 0 to 1, or 0 if there have been no searches
+   */
+  public double getHitRate() {
+    long requests = hits + misses;
+    return requests == 0 ? 0.0 : (double) hits / requests;
+  }
+
+  /**
+   * Removes a result and its entries in the dependency index.
+   *
+   * @param key the key of the result
+   */
+  private void remove(String key) {
+    Entry entry = entries.remove(key);
+    if (entry == null) return;
+    for (Dependency dependency : entry.dependencies()) {
+      Set<String> keys = keysByDependency.get(dependency);
+      if (keys != null && keys.remove(key) && keys.isEmpty()) {
+        keysByDependency.remove(dependency);
+      }
+    }
+  }
+
+  /**
+   * Returns a summary of the cache statistics.
+   *
+   * @return a string with the hit, miss and invalidation counts and the hit rate
+   */
+  @Override
+  public String toString() {
+    return String.format("QueryCache: %d results, %d hits, %d misses (%.1f%% hit rate), %d invalidations",
+            entries.size(), hits, misses, 100.0 * getHitRate(), invalidations);
+  }
+}
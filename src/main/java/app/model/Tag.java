@@ -34,6 +34,15 @@ public class Tag implements Serializable {
     this.values.add(value.toLowerCase());
   }
 
+  /**
+   * Gets the type of the tag.
+   *
+   * @return the tag type
+   */
+  public TagType getType() {
+    return type;
+  }
+
   /**
    * Gets the name of the tag type.
    *
@@ -64,7 +73,7 @@ public class Tag implements Serializable {
     if (this == obj) return true;
     if (!(obj instanceof Tag)) return false;
     Tag other = (Tag) obj;
-    return type.equals(other.type) && values.equals(other.values);
+    return Objects.equals(type, other.type) && values.equals(other.values);
   }
 
   /**
@@ -79,11 +88,12 @@ public class Tag implements Serializable {
 
   /**
    * Returns a string representation of the tag, including its type and values.
+   * A tag whose type is not known has an empty type name.
    *
    * @return a string representation of the tag
    */
   @Override
   public String toString() {
-    return type.getName() + "=" + String.join(", ", values);
+    return (type != null ? type.getName() : "") + "=" + String.join(", ", values);
   }
 }
\ No newline at end of file
@@ -0,0 +1,115 @@
+package app.model;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Inverted index from each tag to the photos of a user that carry it. A photo is indexed
+ * while it is in at least one of the user's albums, which the user keeps track of, so a tag
+ * search costs time proportional to the number of results rather than to the size of the library.
+ * Each posting list is a bitmap of the IDs the user's photo registry gives its photos.
+ * <p>
+ * The index also keeps a {@link ValueTrie} of the values of each tag type, counting the
+ * photos using each value, so typed values can be completed without scanning any tags.</p>
+ * @author Reuben Thomas, Ryan Zaken
+ */
+class TagIndex {
+
+  /**
+   * The photos carrying each tag.
+   */
+  private final Map<Tag, IdBitmap> postings = new HashMap<>();
+
+  /**
+   * The values of each tag type by the lower-case name of the type, since type names are
+   * matched ignoring case. Read from other threads.
+   */
+  private final Map<String, ValueTrie> valuesByType = new ConcurrentHashMap<>();
+
+  /**
+   * Indexes the tags of a photo that has entered the user's albums.
+   *
+   * @param photo the photo to index
+   */
+  void add(Photo photo) {
+    for (Tag tag : photo.getTags()) {
+      add(photo, tag);
+    }
+  }
+
+  /**
+   * Removes the tags of a photo that is no longer in any of the user's albums.
+   *
+   * @param photo the photo to remove
+   */
+  void remove(Photo photo) {
+    for (Tag tag : photo.getTags()) {
+      remove(photo, tag);
+    }
+  }
+
+  /**
+   * Indexes a tag of an indexed photo.
+   *
+   * @param photo the photo
+   * @param tag   the tag
+   */
+  void add(Photo photo, Tag tag) {
+    IdBitmap photos = postings.computeIfAbsent(tag, t -> new IdBitmap());
+    if (!photos.contains(photo.getId())) {
+      photos.add(photo.getId());
+      countValues(tag, 1);
+    }
+  }
+
+  /**
+   * Removes a tag of a photo from the index, dropping the posting list once it is empty.
+   *
+   * @param photo the photo
+   * @param tag   the tag
+   */
+  void remove(Photo photo, Tag tag) {
+    IdBitmap photos = postings.get(tag);
+    if (photos != null && photos.remove(photo.getId())) {
+      countValues(tag, -1);
+      if (photos.isEmpty()) postings.remove(tag);
+    }
+  }
+
+  /**
+   * Gets the most used values of a tag type starting with a prefix. May be called from any thread.
+   *
+   * @param typeName the name of the tag type
+   * @param prefix   the typed start of the value
+   * @param limit    the most values to return
+   * @return the values, most used first
+   */
+  List<String> completeValue(String typeName, String prefix, int limit) {
+    ValueTrie values = valuesByType.get(typeName.toLowerCase());
+    return values != null ? values.complete(prefix.toLowerCase(), limit) : new ArrayList<>();
+  }
+
+  /**
+   * Changes the count of the photos using each value of a tag.
+   *
+   * @param tag   the tag
+   * @param delta the change in the number of photos
+   */
+  private void countValues(Tag tag, int delta) {
+    ValueTrie values = valuesByType.computeIfAbsent(tag.getName().toLowerCase(), name -> new ValueTrie());
+    for (String value : tag.getValues()) {
+      values.add(value, delta);
+    }
+  }
+
+  /**
+   * Gets the photos carrying a tag.
+   *
+   * @param tag the tag
+   * @return the bitmap of the IDs of the photos with the tag, which the caller must not modify
+   */
+  IdBitmap getPhotos(Tag tag) {
+    IdBitmap photos = postings.get(tag);
+    return photos != null ? photos : new IdBitmap();
+  }
+}
@@ -1,5 +1,7 @@
 package app.model;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.time.LocalDateTime;
 import java.util.*;
@@ -28,6 +30,43 @@ public class User implements Serializable {
    */
   private List<TagType> myTagTypes;
 
+  /**
+   * The listener notified of mutations to this user's albums, photos and tag types.
+   */
+  private transient ModelChangeListener changeListener;
+
+  /**
+   * The single instance of each photo in this user's albums, keyed by path, with the number
+   * of albums containing it. Rebuilt after deserialization.
+   */
+  private transient PhotoRegistry photoRegistry;
+
+  /**
+   * The index from each tag to the photos of this user carrying it. Rebuilt after deserialization.
+   */
+  private transient TagIndex tagIndex;
+
+  /**
+   * The photos of this user sorted by date taken. Rebuilt after deserialization.
+   */
+  private transient DateIndex dateIndex;
+
+  /**
+   * The words of the captions of this user's photos. Rebuilt after deserialization.
+   */
+  private transient CaptionIndex captionIndex;
+
+  /**
+   * The photos of this user whose perceptual hashes are known, for finding similar photos.
+   * Rebuilt after deserialization.
+   */
+  private transient BkTree similarityIndex;
+
+  /**
+   * The cached results of this user's searches. Rebuilt empty after deserialization.
+   */
+  private transient QueryCache searchCache;
+
   /**
    * Constructs a new User with the specified username.
    * Initializes the albums and tag types, and adds default tag types.
@@ -38,11 +77,317 @@ public class User implements Serializable {
     this.username = username;
     this.albums = new HashMap<>();
     this.myTagTypes = new ArrayList<>();
+    this.photoRegistry = new PhotoRegistry();
+    this.tagIndex = new TagIndex();
+    this.dateIndex = new DateIndex();
+    this.captionIndex = new CaptionIndex();
+    this.similarityIndex = new BkTree();
+    this.searchCache = new QueryCache(QueryCache.DEFAULT_MAX_ENTRIES);
     // Initialize default tag types
     addTagType("location", false);
     addTagType("people", true);
   }
 
+  /**
+   * Restores the links from albums and photos back to this user after deserialization.
+   *
+   * @param in the stream to read from
+   * @throws IOException if an I/O error occurs
+   * @throws ClassNotFoundException if a serialized class cannot be found
+   */
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    relink();
+  }
+
+  /**
+   * Points every album and photo of this user back at this user and rebuilds the indexes.
+   */
+  void relink() {
+    photoRegistry = new PhotoRegistry();
+    tagIndex = new TagIndex();
+    dateIndex = new DateIndex();
+    captionIndex = new CaptionIndex();
+    similarityIndex = new BkTree();
+    searchCache = new QueryCache(QueryCache.DEFAULT_MAX_ENTRIES);
+    for (Album album : albums.values()) {
+      album.setOwner(this);
+      for (Photo photo : new ArrayList<>(album.getPhotos())) {
+        // Older data may hold separate instances of the same photo; keep the first one
+        Photo registered = photoRegistry.get(photo.getPath());
+        if (registered != null && registered != photo) {
+          album.replacePhoto(registered);
+          photo = registered;
+        }
+        photo.setOwner(this);
+        indexPhoto(album, photo);
+      }
+    }
+  }
+
+  /**
+   * Records that a photo is in one more album, adding it to the indexes if it was in none.
+   *
+   * @param album the album containing the photo
+   * @param photo the photo
+   */
+  private void indexPhoto(Album album, Photo photo) {
+    if (photoRegistry.add(photo, album)) {
+      tagIndex.add(photo);
+      dateIndex.add(photo);
+      captionIndex.add(photo);
+      if (photo.getPerceptualHash() != null) similarityIndex.add(photo.getPerceptualHash(), photo);
+      invalidateSearches(album, photo);
+    } else {
+      searchCache.invalidate(QueryCache.Dependency.album(album.getName()));
+    }
+  }
+
+  /**
+   * Records that a photo is in one less album, removing it from the indexes if it is in none.
+   *
+   * @param album the album no longer containing the photo
+   * @param photo the photo
+   */
+  private void unindexPhoto(Album album, Photo photo) {
+    if (photoRegistry.remove(photo, album)) {
+      tagIndex.remove(photo);
+      dateIndex.remove(photo);
+      captionIndex.remove(photo, photo.getCaption());
+      if (photo.getPerceptualHash() != null) similarityIndex.remove(photo.getPerceptualHash(), photo);
+      invalidateSearches(album, photo);
+    } else {
+      searchCache.invalidate(QueryCache.Dependency.album(album.getName()));
+    }
+  }
+
+  /**
+   * Drops the cached search results a photo entering or leaving the library can change: those
+   * on its tags, its album, the captions and the dates, and those matching photos by absence.
+   *
+   * @param album the album the photo entered or left
+   * @param photo the photo
+   */
+  private void invalidateSearches(Album album, Photo photo) {
+    for (Tag tag : photo.getTags()) {
+      searchCache.invalidate(QueryCache.Dependency.tag(tag));
+    }
+    searchCache.invalidate(QueryCache.Dependency.album(album.getName()));
+    searchCache.invalidate(QueryCache.Dependency.CAPTION);
+    searchCache.invalidate(QueryCache.Dependency.DATE);
+    searchCache.invalidate(QueryCache.Dependency.LIBRARY);
+  }
+
+  /**
+   * Sets the listener notified of mutations to this user's albums, photos and tag types.
+   *
+   * @param changeListener the listener, or null to stop notifications
+   */
+  public void setChangeListener(ModelChangeListener changeListener) {
+    this.changeListener = changeListener;
+  }
+
+  /**
+   * Called by an album of this user after a photo is added to it.
+   *
+   * @param album the album
+   * @param photo the added photo
+   */
+  void photoAdded(Album album, Photo photo) {
+    photo.setOwner(this);
+    indexPhoto(album, photo);
+    if (changeListener != null) changeListener.photoAdded(this, album, photo);
+  }
+
+  /**
+   * Called by an album of this user after a photo is removed from it.
+   *
+   * @param album the album
+   * @param photo the removed photo
+   */
+  void photoRemoved(Album album, Photo photo) {
+    unindexPhoto(album, photo);
+    if (changeListener != null) changeListener.photoRemoved(this, album, photo);
+  }
+
+  /**
+   * Called by a photo of this user after its caption changes.
+   *
+   * @param photo      the photo
+   * @param oldCaption the previous caption
+   */
+  void captionChanged(Photo photo, String oldCaption) {
+    if (photoRegistry.get(photo.getPath()) == photo) {
+      captionIndex.remove(photo, oldCaption);
+      captionIndex.add(photo);
+      searchCache.invalidate(QueryCache.Dependency.CAPTION);
+    }
+    if (changeListener != null) changeListener.captionChanged(this, photo);
+  }
+
+  /**
+   * Called by a photo of this user after its date taken changes.
+   *
+   * @param photo   the photo
+   * @param oldDate the previous date taken
+   */
+  void dateTakenChanged(Photo photo, LocalDateTime oldDate) {
+    if (photoRegistry.get(photo.getPath()) == photo) {
+      dateIndex.remove(photo, oldDate);
+      dateIndex.add(photo);
+      searchCache.invalidate(QueryCache.Dependency.DATE);
+    }
+    if (changeListener != null) changeListener.dateTakenChanged(this, photo);
+  }
+
+  /**
+   * Called by a photo of this user after a tag is added to it.
+   *
+   * @param photo the photo
+   * @param tag   the added tag
+   */
+  void tagAdded(Photo photo, Tag tag) {
+    if (photoRegistry.get(photo.getPath()) == photo) {
+      tagIndex.add(photo, tag);
+      searchCache.invalidate(QueryCache.Dependency.tag(tag));
+    }
+    if (changeListener != null) changeListener.tagAdded(this, photo, tag);
+  }
+
+  /**
+   * Called by a photo of this user after a tag is removed from it.
+   *
+   * @param photo the photo
+   * @param tag   the removed tag
+   */
+  void tagRemoved(Photo photo, Tag tag) {
+    if (photoRegistry.get(photo.getPath()) == photo) {
+      tagIndex.remove(photo, tag);
+      searchCache.invalidate(QueryCache.Dependency.tag(tag));
+    }
+    if (changeListener != null) changeListener.tagRemoved(this, photo, tag);
+  }
+
+  /**
+   * Called by a photo of this user after its perceptual hash changes.
+   *
+   * @param photo   the photo
+   * @param oldHash the previous hash, or null if it was unknown
+   */
+  void perceptualHashChanged(Photo photo, Long oldHash) {
+    if (photoRegistry.get(photo.getPath()) != photo) return;
+    if (oldHash != null) similarityIndex.remove(oldHash, photo);
+    if (photo.getPerceptualHash() != null) similarityIndex.add(photo.getPerceptualHash(), photo);
+  }
+
+  /**
+   * Checks if a photo may be added to an album of this user, that is if the user has no
+   * other Photo instance with the same path.
+   *
+   * @param photo the photo to check
+   * @return true if the photo is the user's instance for its path or the path is new, false otherwise
+   */
+  boolean isCanonical(Photo photo) {
+    return photoRegistry.isCanonical(photo);
+  }
+
+  /**
+   * Retrieves a photo of this user by its file path.
+   *
+   * @param path the file path of the photo
+   * @return the photo if found, or null if no album contains it
+   */
+  public Photo getPhoto(String path) {
+    return photoRegistry.get(path);
+  }
+
+  /**
+   * Gets the photo of this user for a file, creating a new photo if no album contains the
+   * file yet. Every album should add photos obtained this way, so that a file is always
+   * represented by a single Photo.
+   *
+   * @param path the file path of the photo
+   * @return the existing photo with the canonical form of the path, or a new photo
+   */
+  public Photo getOrCreatePhoto(String path) {
+    String canonicalPath = PhotoRegistry.canonicalPath(path);
+    Photo photo = photoRegistry.get(canonicalPath);
+    return photo != null ? photo : new Photo(canonicalPath);
+  }
+
+  /**
+   * Gets the photo of this user for a file, creating a new photo with a known date taken if
+   * no album contains the file yet. Unlike {@link #getOrCreatePhoto(String)}, this never reads
+   * the file, so it suits callers that have already read its metadata.
+   *
+   * @param path      the file path of the photo
+   * @param dateTaken the date and time the photo was taken, used only for a new photo
+   * @return the existing photo with the canonical form of the path, or a new photo
+   */
+  public Photo getOrCreatePhoto(String path, LocalDateTime dateTaken) {
+    String canonicalPath = PhotoRegistry.canonicalPath(path);
+    Photo photo = photoRegistry.get(canonicalPath);
+    return photo != null ? photo : new Photo(canonicalPath, dateTaken);
+  }
+
+  /**
+   * Gets the number of albums of this user that contain a photo.
+   *
+   * @param photo the photo
+   * @return the number of albums containing the photo, 0 if none do
+   */
+  public int getAlbumCount(Photo photo) {
+    return photoRegistry.getAlbums(photo).size();
+  }
+
+  /**
+   * Gets every distinct photo in the albums of this user.
+   *
+   * @return a list of the user's photos
+   */
+  public List<Photo> getAllPhotos() {
+    return photoRegistry.getPhotos();
+  }
+
+  /**
+   * Groups the photos of this user whose files have the same content, such as copies of one
+   * image in two folders. Only photos whose content hash has been computed are considered.
+   *
+   * @return the photos of each content hash shared by more than one photo, by hash
+   */
+  public Map<String, List<Photo>> getDuplicatePhotos() {
+    Map<String, List<Photo>> byHash = new LinkedHashMap<>();
+    for (Photo photo : photoRegistry.getPhotos()) {
+      if (photo.getContentHash() != null) {
+        byHash.computeIfAbsent(photo.getContentHash(), h -> new ArrayList<>()).add(photo);
+      }
+    }
+    byHash.values().removeIf(photos -> photos.size() < 2);
+    return byHash;
+  }
+
+  /**
+   * Finds the photos of this user that look like a photo, such as other shots of a burst or
+   * resized copies, by the Hamming distance between their perceptual hashes. Only photos whose
+   * perceptual hash has been computed are considered.
+   *
+   * @param photo       the photo to compare with
+   * @param maxDistance the largest number of differing hash bits, from 0 to 64
+   * @return the similar photos, most similar first, excluding the photo itself
+   * @throws IllegalArgumentException if maxDistance is out of range
+   */
+  public List<Photo> getSimilarPhotos(Photo photo, int maxDistance) {
+    if (maxDistance < 0 || maxDistance > 64) {
+      throw new IllegalArgumentException("The distance must be between 0 and 64!");
+    }
+    List<Photo> similar = new ArrayList<>();
+    if (photo.getPerceptualHash() == null) return similar;
+    for (BkTree.Match match : similarityIndex.search(photo.getPerceptualHash(), maxDistance)) {
+      if (match.photo() != photo) similar.add(match.photo());
+    }
+    return similar;
+  }
+
   /**
    * Retrieves all photos that have a specific tag.
    *
@@ -50,11 +395,7 @@ public class User implements Serializable {
    * @return a list of photos with the specified tag
    */
   public List<Photo> getPhotosWithSingleTag(Tag tag) {
-    Set<Photo> taggedPhotos = new HashSet<>();
-    for (Album album : albums.values()) {
-      taggedPhotos.addAll(album.getPhotosByTag(tag));
-    }
-    return new ArrayList<>(taggedPhotos);
+    return toPhotos(tagIndex.getPhotos(tag));
   }
 
   /**
@@ -65,16 +406,7 @@ public class User implements Serializable {
    * @return a list of photos with both tags
    */
   public List<Photo> getPhotosWithBothTags(Tag tag1, Tag tag2) {
-    Set<Photo> photosWithTag1 = new HashSet<>();
-    Set<Photo> photosWithTag2 = new HashSet<>();
-
-    for (Album album : albums.values()) {
-      photosWithTag1.addAll(album.getPhotosByTag(tag1));
-      photosWithTag2.addAll(album.getPhotosByTag(tag2));
-    }
-
-    photosWithTag1.retainAll(photosWithTag2); // Retain only photos present in both sets
-    return new ArrayList<>(photosWithTag1); // Convert the result to a list
+    return toPhotos(IdBitmap.and(tagIndex.getPhotos(tag1), tagIndex.getPhotos(tag2)));
   }
 
   /**
@@ -85,14 +417,21 @@ public class User implements Serializable {
    * @return a list of photos with either tag
    */
   public List<Photo> getPhotosWithEitherTag(Tag tag1, Tag tag2) {
-    Set<Photo> photosWithTags = new HashSet<>();
-
-    for (Album album : albums.values()) {
-      photosWithTags.addAll(album.getPhotosByTag(tag1));
-      photosWithTags.addAll(album.getPhotosByTag(tag2));
-    }
+    return toPhotos(IdBitmap.or(tagIndex.getPhotos(tag1), tagIndex.getPhotos(tag2)));
+  }
 
-    return new ArrayList<>(photosWithTags);
+  /**
+   * Suggests completions of a partly typed tag value from the values of a tag type used on
+   * this user's photos. Safe to call from any thread, so suggestions can be computed off the
+   * JavaFX application thread while the user types.
+   *
+   * @param tagTypeName the name of the tag type
+   * @param prefix      the typed start of the value, in any case
+   * @param limit       the most suggestions to return
+   * @return the values starting with the prefix, used by the most photos first
+   */
+  public List<String> completeTagValue(String tagTypeName, String prefix, int limit) {
+    return tagIndex.completeValue(tagTypeName, prefix, limit);
   }
 
   /**
@@ -103,11 +442,133 @@ public class User implements Serializable {
    * @return a list of photos within the date range
    */
   public List<Photo> getPhotosInDateRange(LocalDateTime start, LocalDateTime end) {
-    Set<Photo> dateRangePhotos = new HashSet<>();
-    for (Album album : albums.values()) {
-      dateRangePhotos.addAll(album.getPhotosInDateRange(start, end));
-    }
-    return new ArrayList<>(dateRangePhotos);
+    return dateIndex.getPhotos(start, end);
+  }
+
+  /**
+   * Finds the photos of this user matching a query. The query is planned from the sizes of
+   * the user's indexes, so the most selective predicate narrows the search first, and the
+   * result is cached until a change to what the query reads.
+   *
+   * @param query the query
+   * @return the matching photos
+   */
+  public List<Photo> search(PhotoQuery query) {
+    return toPhotos(searchCache.get(query, this));
+  }
+
+  /**
+   * Gets the cache of this user's search results, whose statistics measure how often
+   * searches are repeated.
+   *
+   * @return the search cache
+   */
+  public QueryCache getSearchCache() {
+    return searchCache;
+  }
+
+  /**
+   * Gets the photos of this user with the IDs in a bitmap.
+   *
+   * @param ids the bitmap of photo IDs
+   * @return a list of the photos, in ID order
+   */
+  List<Photo> toPhotos(IdBitmap ids) {
+    List<Photo> photos = new ArrayList<>(ids.cardinality());
+    ids.forEach(id -> photos.add(photoRegistry.getById(id)));
+    return photos;
+  }
+
+  /**
+   * Gets the photo of this user with an ID, for evaluating queries.
+   *
+   * @param id the photo ID
+   * @return the photo, or null if the ID is not in use
+   */
+  Photo getPhotoById(int id) {
+    return photoRegistry.getById(id);
+  }
+
+  /**
+   * Gets the IDs of the photos carrying a tag from the tag index, for evaluating queries.
+   *
+   * @param tag the tag
+   * @return the bitmap of photo IDs, which the caller must not modify
+   */
+  IdBitmap getIndexedPhotos(Tag tag) {
+    return tagIndex.getPhotos(tag);
+  }
+
+  /**
+   * Gets the IDs of the photos of an album, for evaluating queries.
+   *
+   * @param album the album
+   * @return the bitmap of photo IDs, which the caller must not modify
+   */
+  IdBitmap getIndexedPhotos(Album album) {
+    return photoRegistry.getIds(album);
+  }
+
+  /**
+   * Gets the IDs of the photos taken within a date range, for evaluating queries.
+   *
+   * @param start the start of the date range, exclusive
+   * @param end   the end of the date range, exclusive
+   * @return a new bitmap of photo IDs
+   */
+  IdBitmap getIndexedPhotos(LocalDateTime start, LocalDateTime end) {
+    return dateIndex.getIds(start, end);
+  }
+
+  /**
+   * Gets the IDs of all photos of this user, for evaluating queries.
+   *
+   * @return the bitmap of photo IDs, which the caller must not modify
+   */
+  IdBitmap getIndexedPhotos() {
+    return photoRegistry.getIds();
+  }
+
+  /**
+   * Finds the photos of this user whose captions contain a phrase, using the caption index.
+   *
+   * @param words      the words of the phrase in order, in lower case
+   * @param candidates the IDs of the photos to look among, or null for all photos
+   * @return the IDs of the matching photos, which the caller must not modify
+   */
+  IdBitmap getIndexedPhotos(List<String> words, IdBitmap candidates) {
+    return captionIndex.find(words, candidates);
+  }
+
+  /**
+   * Counts the photos of this user whose captions contain a word.
+   *
+   * @param word the word, in lower case
+   * @return the number of photos
+   */
+  int countPhotosWithCaptionWord(String word) {
+    return captionIndex.count(word);
+  }
+
+  /**
+   * Counts the photos taken within a date range, stopping once the count reaches a limit.
+   *
+   * @param start the start of the date range, exclusive
+   * @param end   the end of the date range, exclusive
+   * @param limit the count at which to stop
+   * @return the number of photos within the date range, or a number of at least limit if there are more
+   */
+  int countPhotosInDateRange(LocalDateTime start, LocalDateTime end, int limit) {
+    return dateIndex.count(start, end, limit);
+  }
+
+  /**
+   * Counts the distinct photos in the albums of this user.
+   *
+   * @return the number of photos
+   */
+  int countPhotos() {
+    return photoRegistry.size();
   }
 
   /**
@@ -117,13 +578,7 @@ public class User implements Serializable {
    * @return a list of albums containing the photo
    */
   public List<Album> getAlbumsContainingPhoto(Photo photo) {
-    List<Album> containingAlbums = new ArrayList<>();
-    for (Album album : albums.values()) {
-      if (album.hasPhoto(photo)) {
-        containingAlbums.add(album);
-      }
-    }
-    return containingAlbums;
+    return new ArrayList<>(photoRegistry.getAlbums(photo));
   }
 
   /**
@@ -196,6 +651,7 @@ public class User implements Serializable {
     if (isTagTypeDefined(name)) return false;
     TagType newTagType = new TagType(name, isMultiValue);
     myTagTypes.add(newTagType);
+    if (changeListener != null) changeListener.tagTypeAdded(this, newTagType);
     return true;
   }
 
@@ -208,6 +664,7 @@ public class User implements Serializable {
   public boolean addTagType(TagType tagType) {
     if (!isTagTypeDefined(tagType)) return false;
     myTagTypes.add(tagType);
+    if (changeListener != null) changeListener.tagTypeAdded(this, tagType);
     return true;
   }
 
@@ -220,7 +677,9 @@ public class User implements Serializable {
   public boolean removeTagType(String name) {
     TagType tagType = getTagType(name);
     if (tagType == null) return false;
-    return myTagTypes.remove(tagType);
+    if (!myTagTypes.remove(tagType)) return false;
+    if (changeListener != null) changeListener.tagTypeRemoved(this, tagType.getName());
+    return true;
   }
 
   /**
@@ -252,7 +711,10 @@ public class User implements Serializable {
   public Album addAlbum(String name) {
     if (albums.containsKey(name)) return null;
     Album newAlbum = new Album(name);
+    newAlbum.setOwner(this);
     albums.put(name, newAlbum);
+    searchCache.invalidate(QueryCache.Dependency.album(name));
+    if (changeListener != null) changeListener.albumAdded(this, newAlbum);
     return newAlbum;
   }
 
@@ -263,7 +725,15 @@ public class User implements Serializable {
    * @return true if the album was deleted, false if it was not found
    */
   public boolean deleteAlbum(String name) {
-    return albums.remove(name) != null;
+    Album removed = albums.remove(name);
+    if (removed == null) return false;
+    removed.setOwner(null);
+    for (Photo photo : removed.getPhotos()) {
+      unindexPhoto(removed, photo);
+    }
+    searchCache.invalidate(QueryCache.Dependency.album(name));
+    if (changeListener != null) changeListener.albumDeleted(this, name);
+    return true;
   }
 
   /**
@@ -278,6 +748,9 @@ public class User implements Serializable {
     Album album = albums.remove(oldName);
     album.setName(newName);
     albums.put(newName, album);
+    searchCache.invalidate(QueryCache.Dependency.album(oldName));
+    searchCache.invalidate(QueryCache.Dependency.album(newName));
+    if (changeListener != null) changeListener.albumRenamed(this, oldName, newName);
     return true;
   }
 
@@ -3,6 +3,7 @@ package app.model;
 
 import java.io.*;
 import java.util.*;
+import java.util.function.Function;
 
 /**
  * Represents a list of users, providing functionality to manage users
@@ -15,9 +16,21 @@ public class UserList implements Serializable {
 
   /**
    * A map of usernames to their corresponding User objects.
+   * A user whose data has not been loaded from disk yet is mapped to {@code null}.
    */
   private Map<String, User> users;
 
+  /**
+   * Loads a user's data on first access. Set by the storage layer when the list
+   * is read from a user directory instead of a full snapshot.
+   */
+  private transient Function<String, User> userLoader;
+
+  /**
+   * The listener notified of mutations to the user list and to every loaded user.
+   */
+  private transient ModelChangeListener changeListener;
+
   /**
    * Constructs an empty UserList.
    */
@@ -36,6 +49,8 @@ public class UserList implements Serializable {
     if (hasUser(username)) throw new IllegalArgumentException("User already exists: " + username);
     User new_user = new User(username);
     users.put(username, new_user);
+    new_user.setChangeListener(changeListener);
+    if (changeListener != null) changeListener.userAdded(new_user);
     return new_user;
   }
 
@@ -48,9 +63,66 @@ public class UserList implements Serializable {
   public User addUser(User user) {
     if (hasUser(user.getUsername())) return null;
     users.put(user.getUsername(), user);
+    user.setChangeListener(changeListener);
+    if (changeListener != null) changeListener.userAdded(user);
     return user;
   }
 
+  /**
+   * Registers a username whose data is stored on disk but has not been loaded yet.
+   * The user is loaded through the user loader the first time it is requested.
+   *
+   * @param username the username of the unloaded user
+   */
+  public void addUnloadedUser(String username) {
+    users.putIfAbsent(username, null);
+  }
+
+  /**
+   * Sets the function used to load a user's data on first access.
+   *
+   * @param userLoader the loader, taking a username and returning the loaded User
+   */
+  public void setUserLoader(Function<String, User> userLoader) {
+    this.userLoader = userLoader;
+  }
+
+  /**
+   * Sets the listener notified of mutations to the user list and to every loaded user.
+   * Users loaded later are given the same listener.
+   *
+   * @param changeListener the listener, or null to stop notifications
+   */
+  public void setChangeListener(ModelChangeListener changeListener) {
+    this.changeListener = changeListener;
+    for (User user : getLoadedUsers()) {
+      user.setChangeListener(changeListener);
+    }
+  }
+
+  /**
+   * Checks if the data of a user has been loaded into memory.
+   *
+   * @param username the username to check
+   * @return true if the user exists and is loaded, false otherwise
+   */
+  public boolean isLoaded(String username) {
+    return users.get(username) != null;
+  }
+
+  /**
+   * Retrieves the users whose data has been loaded into memory, without loading any others.
+   *
+   * @return a collection of the loaded User objects
+   */
+  public Collection<User> getLoadedUsers() {
+    List<User> loaded = new ArrayList<>();
+    for (User user : users.values()) {
+      if (user != null) loaded.add(user);
+    }
+    return loaded;
+  }
+
   /**
    * Deletes a user from the list by username.
    *
@@ -58,26 +130,90 @@ public class UserList implements Serializable {
    * @return true if the user was deleted, false if the user was not found
    */
   public boolean deleteUser(String username) {
-    return users.remove(username) != null;
+    if (!users.containsKey(username)) return false;
+    User removed = users.remove(username);
+    if (removed != null) removed.setChangeListener(null);
+    if (changeListener != null) changeListener.userDeleted(username);
+    return true;
   }
 
   /**
-   * Retrieves a user by their username.
+   * Retrieves a user by their username, loading the user's data if it has not been loaded yet.
    *
    * @param username the username of the user to retrieve
-   * @return the User object, or null if no user with the given username exists
+   * @return the User object, or null if no user with the given username exists or it could not be loaded
    */
   public User getUser(String username) {
-    return users.get(username);
+    User user = users.get(username);
+    if (user == null && users.containsKey(username) && userLoader != null) {
+      user = userLoader.apply(username);
+      if (user != null) {
+        user.setChangeListener(changeListener);
+        users.put(username, user);
+      }
+    }
+    return user;
   }
 
   /**
-   * Retrieves all users in the list.
+   * Retrieves all users in the list. Any user that has not been loaded yet is loaded first.
    *
    * @return a collection of all User objects
    */
   public Collection<User> getAllUsers() {
-    return users.values();
+    List<User> all = new ArrayList<>();
+    for (String username : new ArrayList<>(users.keySet())) {
+      User user = getUser(username);
+      if (user != null) all.add(user);
+    }
+    return all;
+  }
+
+  /**
+   * Computes the content hashes of files, such as {@code ContentHasher::hashAll}.
+   */
+  @FunctionalInterface
+  public interface ContentHashes {
+    /**
+     * Computes the content hashes of files.
+     *
+     * @param paths the paths of the files
+     * @return the hash of each file that could be read, by path
+     * @throws InterruptedException if interrupted while hashing
+     */
+    Map<String, String> hashAll(Collection<String> paths) throws InterruptedException;
+  }
+
+  /**
+   * Groups the photos of all users whose files have the same content, whether the copies belong
+   * to one user or to several. Every user is loaded first, and the content hash of every photo
+   * is brought up to date through the hasher, so unchanged files cost a cache lookup.
+   *
+   * @param hasher computes the content hashes of the files
+   * @return for each content hash shared by more than one photo, the photos of each user holding it
+   * @throws InterruptedException if interrupted while hashing
+   */
+  public Map<String, Map<String, List<Photo>>> getDuplicatePhotos(ContentHashes hasher) throws InterruptedException {
+    Collection<User> all = getAllUsers();
+    Set<String> paths = new LinkedHashSet<>();
+    for (User user : all) {
+      for (Photo photo : user.getAllPhotos()) {
+        paths.add(photo.getPath());
+      }
+    }
+    Map<String, String> digests = hasher.hashAll(paths);
+    Map<String, Map<String, List<Photo>>> byHash = new LinkedHashMap<>();
+    for (User user : all) {
+      for (Photo photo : user.getAllPhotos()) {
+        photo.setContentHash(digests.get(photo.getPath()));
+        if (photo.getContentHash() != null) {
+          byHash.computeIfAbsent(photo.getContentHash(), h -> new LinkedHashMap<>())
+                  .computeIfAbsent(user.getUsername(), u -> new ArrayList<>()).add(photo);
+        }
+      }
+    }
+    byHash.values().removeIf(byUser -> byUser.values().stream().mapToInt(List::size).sum() < 2);
+    return byHash;
   }
 
   /**
@@ -0,0 +1,116 @@
+package app.model;
+
+import java.util.*;
+
+/**
+ * Trie of the values of one tag type with the number of photos using each, for suggesting
+ * completions of a partly typed value. Each node also keeps the highest count below it, so
+ * the most used completions of a prefix are found best first, visiting only the branches that
+ * can still beat the completions already found, however many values share the prefix.
+ * <p>
+ * The trie is updated on the thread that mutates the model and may be read from any other,
+ * so its methods are synchronized; each call takes microseconds.</p>
+ * @author Reuben Thomas, Ryan Zaken
+ */
+class ValueTrie {
+
+  /**
+   * The root node, for the empty prefix.
+   */
+  private final Node root = new Node();
+
+  /**
+   * Changes the number of photos using a value, dropping the value once none use it.
+   *
+   * @param value the value
+   * @param delta the change in the number of photos
+   */
+  synchronized void add(String value, int delta) {
+    Node[] path = new Node[value.length() + 1];
+    path[0] = root;
+    for (int i = 0; i < value.length(); i++) {
+      path[i + 1] = path[i].children.computeIfAbsent(value.charAt(i), c -> new Node());
+    }
+    Node leaf = path[value.length()];
+    leaf.count = Math.max(0, leaf.count + delta);
+    // Bring the best counts back up to date from the leaf to the root, pruning dead branches
+    for (int i = value.length(); i >= 0; i--) {
+      Node node = path[i];
+      if (i > 0 && node.count == 0 && node.children.isEmpty()) {
+        path[i - 1].children.remove(value.charAt(i - 1));
+        continue;
+      }
+      int best = node.count;
+      for (Node child : node.children.values()) {
+        best = Math.max(best, child.best);
+      }
+      node.best = best;
+    }
+  }
+
+  /**
+   * Gets the most used values starting with a prefix.
+   *
+   * @param prefix the prefix, in lower case
+   * @param limit  the most values to return
+   * @return the values, most used first and alphabetically among equally used ones
+   */
+  synchronized List<String> complete(String prefix, int limit) {
+    List<String> completions = new ArrayList<>();
+    Node node = root;
+    for (int i = 0; i < prefix.length() && node != null; i++) {
+      node = node.children.get(prefix.charAt(i));
+    }
+    if (node == null || node.best == 0) return completions;
+    // A branch is ranked by its best count, which no value below it exceeds, and by its
+    // prefix, which sorts before every value below it, so values come out in order
+    PriorityQueue<Candidate> queue = new PriorityQueue<>();
+    queue.add(new Candidate(node, prefix, node.best, false));
+    while (!queue.isEmpty() && completions.size() < limit) {
+      Candidate candidate = queue.poll();
+      if (candidate.complete()) {
+        completions.add(candidate.text());
+        continue;
+      }
+      Node branch = candidate.node();
+      if (branch.count > 0) {
+        queue.add(new Candidate(branch, candidate.text(), branch.count, true));
+      }
+      for (Map.Entry<Character, Node> child : branch.children.entrySet()) {
+        queue.add(new Candidate(child.getValue(), candidate.text() + child.getKey(), child.getValue().best, false));
+      }
+    }
+    return completions;
+  }
+
+  /**
+   * A value found, or a branch still to be explored.
+   *
+   * @param node     the node of the value or branch
+   * @param text     the value, or the prefix of the branch
+   * @param score    the count of the value, or the best count of the branch
+   * @param complete true for a value, false for a branch
+   */
+  private record Candidate(Node node, String text, int score, boolean complete) implements Comparable<Candidate> {
+    @Override
+    public int compareTo(Candidate other) {
+      if (score != other.score) return Integer.compare(other.score, score);
+      int byText = text.compareTo(other.text);
+      if (byText != 0) return byText;
+      // A value comes before the longer values in the branch of the same prefix
+      return Boolean.compare(other.complete, complete);
+    }
+  }
+
+  /**
+   * A node of the trie.
+   */
+  private static class Node {
+    /** The child for each next character. */
+    private final Map<Character, Node> children = new HashMap<>(4);
+    /** The number of photos using the value ending here, 0 if it is not a value. */
+    private int count;
+    /** The highest count of this node and the nodes below it. */
+    private int best;
+  }
+}
@@ -1,5 +1,5 @@
 /**
- * This package contains the main driver, {@link app.Photos}, and the model package which contains
- * core classes and models for the Photo Management Application.
+ * This package contains the main driver, {@link app.Photos}, the on-disk user store, and the model package
+ * which contains core classes and models for the Photo Management Application.
  */
-package app;
\ No newline at end of file
+package app;
@@ -1,11 +1,10 @@
 package view;
 
 import app.model.TagType;
+import app.model.User;
 import javafx.fxml.FXML;
 import javafx.scene.control.*;
 
-import java.util.List;
-
 /**
  * Controller for the Add Tag Dialog.
  * This class handles the logic for adding a tag to a photo, including
@@ -32,12 +31,15 @@ public class AddTagDialogController {
     private boolean confirmed = false;
 
     /**
-     * Initializes the dialog with the available tag types.
+     * Initializes the dialog with the user's tag types, and suggests values of the chosen type
+     * already used on the user's photos as the value is typed.
      *
-     * @param tagTypes A list of available {@link TagType} objects.
+     * @param user The {@link User} whose photo is being tagged.
      */
-    public void init(List<TagType> tagTypes) {
-        tagTypeCombo.getItems().addAll(tagTypes);
+    public void init(User user) {
+        tagTypeCombo.getItems().addAll(user.getAllTagTypes());
+        new TagValueCompleter(valueField, user,
+                () -> tagTypeCombo.getValue() == null ? null : tagTypeCombo.getValue().getName());
     }
 
     /**
@@ -1,20 +1,24 @@
 package view;
 
+import app.PhotoImporter;
 import app.Photos;
 import app.model.*;
+import javafx.application.Platform;
 import javafx.fxml.FXML;
 import javafx.fxml.FXMLLoader;
 import javafx.scene.Scene;
 import javafx.scene.control.*;
-import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
 import javafx.scene.layout.*;
+import javafx.stage.DirectoryChooser;
 import javafx.stage.FileChooser;
 import javafx.stage.Stage;
 
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
 
 /**
@@ -24,6 +28,11 @@ import java.util.Optional;
  * @author Reuben Thomas, Ryan Zaken
  */
 public class AlbumController {
+  /**
+   * The largest number of differing perceptual hash bits for two photos to count as similar.
+   */
+  private static final int SIMILAR_DISTANCE = 10;
+
   /**
    * ListView for displaying the {@link Photo}s in the album.
    */
@@ -69,6 +78,8 @@ public class AlbumController {
     this.user = user;
     this.album = album;
     albumNameLabel.setText("Photos in album '" + album.getName() + "'");
+    // Redraw the cells when photo files change, so missing photos are flagged
+    app.setOnLibraryChanged(photoList::refresh);
     populatePhotos();
   }
 
@@ -82,18 +93,23 @@ public class AlbumController {
 
     photoList.setCellFactory(listView -> new ListCell<>() {
       private final ImageView imageView = new ImageView();
+      private ThumbnailLoader.Request thumbnailRequest;
 
       @Override
       protected void updateItem(Photo photo, boolean empty) {
         super.updateItem(photo, empty);
+        // The cell is being reused, so the image requested for its previous item is no longer wanted
+        if (thumbnailRequest != null) thumbnailRequest.cancel();
         if (empty || photo == null) {
           setText(null);
           setGraphic(null);
         } else {
-          File file = new File(photo.getPath());
-          Image image = new Image(file.toURI().toString(), 50, 50, true, true);
-          imageView.setImage(image);
-          setText(photo.toString());
+          imageView.setImage(null);
+          thumbnailRequest = ThumbnailLoader.getShared().load(photo.getPath(),
+                  ThumbnailCache.THUMBNAIL_SIZE, ThumbnailCache.THUMBNAIL_SIZE, imageView::setImage);
+          ThumbnailLoader.getShared().prefetchAround(getListView(), getIndex(),
+                  ThumbnailCache.THUMBNAIL_SIZE, ThumbnailCache.THUMBNAIL_SIZE);
+          setText(photo.isMissing() ? "[File missing] " + photo : photo.toString());
           setGraphic(imageView);
         }
       }
@@ -150,26 +166,13 @@ public class AlbumController {
     );
     File selectedFile = fileChooser.showOpenDialog(null);
     if (selectedFile != null) {
-      String photoPath = selectedFile.getAbsolutePath();
-      Photo photoToAdd = null;
-
-      // Check if the photo exists in another album
-      for (Album other_album : user.getAlbums()) {
-        if (other_album.getPhoto(photoPath) != null) {
-          System.out.println("Photo already exists in another album, adding to this album.");
-          photoToAdd = other_album.getPhoto(photoPath);
-          break;
-        }
-      }
-
-      // If the photo does not exist in any album, create a new photo
-      if (photoToAdd == null) {
-        photoToAdd = new Photo(selectedFile.getAbsolutePath());
-      }
+      // Reuse the photo if it is already in another album, otherwise create a new photo
+      Photo photoToAdd = user.getOrCreatePhoto(selectedFile.getAbsolutePath());
 
       try {
         // Add the photo to the album and update UI
         album.addPhoto(photoToAdd);
+        app.loadPerceptualHashes(List.of(photoToAdd));
         populatePhotos();
         statusLabel.setText("Photo added: " + selectedFile.getName());
       } catch (Exception e) {
@@ -178,6 +181,53 @@ public class AlbumController {
     }
   }
 
+  /**
+   * Handles the action of importing every photo in a folder and its subfolders into the album.
+   * The folder is read in the background; the list and status are updated as photos are added.
+   */
+  @FXML
+  public void handleImportFolder() {
+    DirectoryChooser directoryChooser = new DirectoryChooser();
+    directoryChooser.setTitle("Import Folder");
+    File selectedDirectory = directoryChooser.showDialog(null);
+    if (selectedDirectory == null) {
+      return;
+    }
+    if (album.getName().equalsIgnoreCase("stock")) {
+      showWarning("Cannot add photos to stock album");
+      return;
+    }
+
+    // Ask what to do with files that are copies of photos the user already has
+    ChoiceDialog<PhotoImporter.DuplicatePolicy> dialog = new ChoiceDialog<>(PhotoImporter.DuplicatePolicy.SKIP,
+            PhotoImporter.DuplicatePolicy.values());
+    dialog.setTitle("Import Folder");
+    dialog.setHeaderText("Copies of photos you already have:");
+    dialog.setContentText("IMPORT them, SKIP them, or MERGE them into the existing photos:");
+    Optional<PhotoImporter.DuplicatePolicy> policy = dialog.showAndWait();
+    if (policy.isEmpty()) {
+      return;
+    }
+
+    PhotoImporter importer = new PhotoImporter(app.getThumbnailStore(), app.getContentHasher(),
+            app.getPerceptualHasher(), Platform::runLater, PhotoImporter.DEFAULT_THREADS);
+    statusLabel.setText("Importing " + selectedDirectory.getName() + "...");
+    Thread importThread = new Thread(() -> {
+      try {
+        importer.importFolder(selectedDirectory.toPath(), user, album, policy.get(), progress -> {
+          populatePhotos();
+          statusLabel.setText(String.format("%s %d of %d photos from %s (%.0f files/s, %d duplicates)",
+                  progress.done() ? "Imported" : "Importing:", progress.added(), progress.found(),
+                  selectedDirectory.getName(), progress.getFilesPerSecond(), progress.duplicates()));
+        });
+      } catch (Exception e) {
+        Platform.runLater(() -> showError("Error importing folder: " + e.getMessage()));
+      }
+    }, "folder-import");
+    importThread.setDaemon(true);
+    importThread.start();
+  }
+
   /**
    * Handles the action of removing a photo from the album.
    * Prompts the user for confirmation before removing the selected photo.
@@ -205,6 +255,47 @@ public class AlbumController {
     }
   }
 
+  /**
+   * Handles the action of finding the photos of the user that look like the selected photo,
+   * such as other shots of a burst or resized copies. The search uses the user's similarity
+   * index, which is filled as thumbnails are made and when the user logs in.
+   */
+  @FXML
+  public void handleFindSimilar() {
+    Photo selectedPhoto = photoList.getSelectionModel().getSelectedItem();
+    if (selectedPhoto == null) {
+      showWarning("No photo selected!");
+      return;
+    }
+    if (selectedPhoto.getPerceptualHash() == null) {
+      showWarning("This photo has not been compared with the others yet!");
+      return;
+    }
+    showSimilar(selectedPhoto, user.getSimilarPhotos(selectedPhoto, SIMILAR_DISTANCE));
+  }
+
+  /**
+   * Reports the photos that look like a photo.
+   *
+   * @param photo   the photo compared with
+   * @param similar the similar photos, most similar first
+   */
+  private void showSimilar(Photo photo, List<Photo> similar) {
+    statusLabel.setText(similar.isEmpty() ? "No similar photos found" : similar.size() + " similar photos found");
+    if (similar.isEmpty()) return;
+    StringBuilder report = new StringBuilder();
+    for (Photo match : similar) {
+      report.append(match.getPath()).append('\n');
+    }
+    TextArea text = new TextArea(report.toString());
+    text.setEditable(false);
+    Alert alert = new Alert(Alert.AlertType.INFORMATION);
+    alert.setTitle("Similar Photos");
+    alert.setHeaderText("These photos look like " + photo.getName() + ":");
+    alert.getDialogPane().setContent(text);
+    alert.showAndWait();
+  }
+
   /**
    * Handles the action of adding or updating a caption for a selected photo.
    * Opens a dialog to input the caption and updates the photo's caption.
@@ -247,6 +338,7 @@ public class AlbumController {
         Scene scene = new Scene(root);
         stage.setScene(scene);
         stage.setTitle("Photo Details - " + new File(selectedPhoto.getPath()).getName());
+        stage.setOnHidden(event -> controller.close());
         stage.show();
       } catch (Exception e) {
         // show error
@@ -271,7 +363,7 @@ public class AlbumController {
         GridPane root = loader.load();
 
         AddTagDialogController controller = loader.getController();
-        controller.init(user.getAllTagTypes());
+        controller.init(user);
 
         Dialog<ButtonType> dialog = new Dialog<>();
         dialog.setTitle("Add Tag");
@@ -500,12 +592,13 @@ public class AlbumController {
       VBox root = loader.load();
 
       SlideshowController controller = loader.getController();
-      controller.init(album.getPhotos());
+      controller.init(new ArrayList<>(album.getPhotos()));
 
       Stage slideshowStage = new Stage();
       Scene scene = new Scene(root, 600, 400);
       slideshowStage.setScene(scene);
       slideshowStage.setTitle("Slideshow");
+      slideshowStage.setOnHidden(event -> controller.close());
       slideshowStage.show();
     } catch (Exception e) {
       // handle IOException
@@ -39,7 +39,7 @@ public class LoginController {
    */
   public void setApp(Photos app) {
     this.app = app;
-    System.out.println("LoginController Stock albums: " + app.getUserList().getUser("stock").getAlbumNames());
+    System.out.println("LoginController users: " + app.getUserList().getAllUsernames());
   }
 
   /**
@@ -1,10 +1,12 @@
 package view;
 
+import app.model.Tag;
 import app.model.TagType;
 import app.model.User;
 import javafx.fxml.FXML;
 import javafx.scene.control.*;
 
+import java.util.List;
 import java.util.Optional;
 
 /**
@@ -100,7 +102,11 @@ public class ManageTagTypesController {
     private void removeTagsFromPhotos(TagType tagType) {
         user.getAlbums().forEach(album -> {
             album.getPhotos().forEach(photo -> {
-                photo.getTags().removeIf(tag -> tag.getName().equalsIgnoreCase(tagType.getName()));
+                // Remove through the photo so the change is recorded
+                List<Tag> tagsToRemove = photo.getTags().stream()
+                        .filter(tag -> tag.getName().equalsIgnoreCase(tagType.getName()))
+                        .toList();
+                tagsToRemove.forEach(photo::removeTag);
             });
         });
     }
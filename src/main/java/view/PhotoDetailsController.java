@@ -4,7 +4,6 @@ import app.model.Photo;
 import javafx.fxml.FXML;
 import javafx.scene.control.Label;
 import javafx.scene.image.Image;
-import javafx.scene.image.ImageView;
 import javafx.scene.layout.VBox;
 
 import java.io.File;
@@ -17,10 +16,10 @@ import java.io.File;
 public class PhotoDetailsController {
 
     /**
-     * ImageView for displaying the photo.
+     * Zoomable view for displaying the photo.
      */
     @FXML
-    private ImageView photoImageView;
+    private TiledImageView photoView;
 
     /**
      * Label for displaying the file path of the photo.
@@ -53,12 +52,10 @@ public class PhotoDetailsController {
      * @param photo The {@link Photo} object containing the details to display.
      */
     public void init(Photo photo) {
-        // Set the photo image
-        File file = new File(photo.getPath());
-        Image image = new Image(file.toURI().toString());
-        photoImageView.setImage(image);
-        photoImageView.setFitWidth(600);
-        photoImageView.setPreserveRatio(true);
+        // Show the cached thumbnail at once; a sharper decode replaces it in the background
+        Image preview = ThumbnailCache.getShared().getIfCached(photo.getPath(),
+                ThumbnailCache.THUMBNAIL_SIZE, ThumbnailCache.THUMBNAIL_SIZE);
+        photoView.setImage(new File(photo.getPath()), preview);
 
         // Set photo details
         pathLabel.setText("Path: " + photo.getPath());
@@ -76,4 +73,11 @@ public class PhotoDetailsController {
             });
         }
     }
+
+    /**
+     * Stops decoding the photo. Called when the details window is closed.
+     */
+    public void close() {
+        photoView.close();
+    }
 }
\ No newline at end of file
@@ -3,7 +3,6 @@ package view;
 import app.model.*;
 import javafx.fxml.FXML;
 import javafx.scene.control.*;
-import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
 import javafx.scene.layout.HBox;
 import javafx.scene.layout.VBox;
@@ -13,7 +12,7 @@ import java.time.LocalDateTime;
 import java.util.List;
 
 /**
- * Controller for searching photos based on date range and tags.
+ * Controller for searching photos based on date range, tags and caption words.
  * This class handles the logic for filtering photos and displaying search results.
  * @author Reuben Thomas, Ryan Zaken
  */
@@ -39,6 +38,10 @@ public class SearchPhotosController {
   @FXML
   private ToggleButton disjunctiveToggle;
 
+  /** TextField for entering words that must appear together in the caption. */
+  @FXML
+  private TextField captionField;
+
   /** VBox container for dynamically adding tag input fields. */
   @FXML
   private VBox tagInputContainer;
@@ -142,13 +145,14 @@ public class SearchPhotosController {
     TextField field1 = new TextField();
     Label label2 = new Label(label2Text);
     TextField field2 = new TextField();
+    new TagValueCompleter(field2, user, field1::getText);
     row.getChildren().addAll(label1, field1, label2, field2);
     return row;
   }
 
   /**
    * Handles the search operation based on the selected criteria.
-   * Filters {@link Photo}s by date range and {@link Tag}s, and displays the results.
+   * Filters {@link Photo}s by date range, {@link Tag}s and caption words, and displays the results.
    */
   @FXML
   public void handleSearch() {
@@ -157,53 +161,51 @@ public class SearchPhotosController {
     LocalDateTime startDateTime = startDate != null ? startDate.atStartOfDay() : LocalDate.of(1970, 1, 1).atStartOfDay();
     LocalDateTime endDateTime = endDate != null ? endDate.atTime(23, 59, 59) : LocalDateTime.now();
 
-    // Apply date filtering
-    List<Photo> searchResults = user.getPhotosInDateRange(startDateTime, endDateTime);
-
-    // Collect tag inputs based on the selected search type
-    if (singleTagToggle.isSelected()) {
-      // Handle single tag search
-      HBox tagRow = (HBox) tagInputContainer.getChildren().get(0);
-      TagType tagType = user.getTagType(((TextField) tagRow.getChildren().get(1)).getText());
-      String tagValue = ((TextField) tagRow.getChildren().get(3)).getText();
-      searchResults = user.getPhotosWithSingleTag(new Tag(tagType, tagValue));
-    } else if (conjunctiveToggle.isSelected()) {
-      // Handle conjunctive tag search
-      HBox tagRow1 = (HBox) tagInputContainer.getChildren().get(0);
-      HBox tagRow2 = (HBox) tagInputContainer.getChildren().get(1);
-      TagType tagType1 = user.getTagType(((TextField) tagRow1.getChildren().get(1)).getText());
-      String tagValue1 = ((TextField) tagRow1.getChildren().get(3)).getText();
-      TagType tagType2 = user.getTagType(((TextField) tagRow2.getChildren().get(1)).getText());
-      String tagValue2 = ((TextField) tagRow2.getChildren().get(3)).getText();
-      searchResults = user.getPhotosWithBothTags(new Tag(tagType1, tagValue1), new Tag(tagType2, tagValue2));
-    } else if (disjunctiveToggle.isSelected()) {
-      // Handle disjunctive tag search
-      HBox tagRow1 = (HBox) tagInputContainer.getChildren().get(0);
-      HBox tagRow2 = (HBox) tagInputContainer.getChildren().get(1);
-      TagType tagType1 = user.getTagType(((TextField) tagRow1.getChildren().get(1)).getText());
-      String tagValue1 = ((TextField) tagRow1.getChildren().get(3)).getText();
-      TagType tagType2 = user.getTagType(((TextField) tagRow2.getChildren().get(1)).getText());
-      String tagValue2 = ((TextField) tagRow2.getChildren().get(3)).getText();
-      searchResults = user.getPhotosWithEitherTag(new Tag(tagType1, tagValue1), new Tag(tagType2, tagValue2));
+    // The date range always applies; the tags narrow it further
+    PhotoQuery query = PhotoQuery.dateRange(startDateTime, endDateTime);
+    try {
+      if (singleTagToggle.isSelected()) {
+        query = PhotoQuery.and(query, PhotoQuery.tag(readTag(0)));
+      } else if (conjunctiveToggle.isSelected()) {
+        query = PhotoQuery.and(query, PhotoQuery.tag(readTag(0)), PhotoQuery.tag(readTag(1)));
+      } else if (disjunctiveToggle.isSelected()) {
+        query = PhotoQuery.and(query, PhotoQuery.or(PhotoQuery.tag(readTag(0)), PhotoQuery.tag(readTag(1))));
+      }
+      String captionWords = captionField.getText();
+      if (captionWords != null && !captionWords.isBlank()) {
+        query = PhotoQuery.and(query, PhotoQuery.captionPhrase(captionWords));
+      }
+    } catch (IllegalArgumentException e) {
+      showWarning(e.getMessage());
+      return;
     }
+    List<Photo> searchResults = user.search(query);
 
     // Display search results in the same window
     if (searchResults != null && !searchResults.isEmpty()) {
       ListView<Photo> resultsListView = new ListView<>();
       resultsListView.getItems().addAll(searchResults);
       resultsListView.setCellFactory(listView -> new ListCell<>() {
+        private ThumbnailLoader.Request thumbnailRequest;
+
         @Override
         protected void updateItem(Photo photo, boolean empty) {
           super.updateItem(photo, empty);
+          // The cell is being reused, so the image requested for its previous item is no longer wanted
+          if (thumbnailRequest != null) thumbnailRequest.cancel();
           if (empty || photo == null) {
             setText(null);
             setGraphic(null);
           } else {
-            // Create an ImageView for the photo thumbnail
-            ImageView thumbnail = new ImageView(new Image("file:" + photo.getPath()));
-            thumbnail.setFitWidth(50);
-            thumbnail.setFitHeight(50);
+            // Create an ImageView for the photo thumbnail, filled in once it has loaded
+            ImageView thumbnail = new ImageView();
+            thumbnail.setFitWidth(ThumbnailCache.THUMBNAIL_SIZE);
+            thumbnail.setFitHeight(ThumbnailCache.THUMBNAIL_SIZE);
             thumbnail.setPreserveRatio(true);
+            thumbnailRequest = ThumbnailLoader.getShared().load(photo.getPath(),
+                    ThumbnailCache.THUMBNAIL_SIZE, ThumbnailCache.THUMBNAIL_SIZE, thumbnail::setImage);
+            ThumbnailLoader.getShared().prefetchAround(getListView(), getIndex(),
+                    ThumbnailCache.THUMBNAIL_SIZE, ThumbnailCache.THUMBNAIL_SIZE);
 
             // Get the album name the photo belongs to
             String albumNames = String.join(", ", user.getAlbumsContainingPhoto(photo).stream().map(Album::getName).toList());
@@ -231,6 +233,24 @@ public class SearchPhotosController {
     }
   }
 
+  /**
+   * Reads the tag entered in a row of tag input fields.
+   *
+   * @param row the index of the row
+   * @return the tag of the entered type and value
+   * @throws IllegalArgumentException if the user has no tag type with the entered name
+   */
+  private Tag readTag(int row) {
+    HBox tagRow = (HBox) tagInputContainer.getChildren().get(row);
+    String tagTypeName = ((TextField) tagRow.getChildren().get(1)).getText();
+    TagType tagType = user.getTagType(tagTypeName);
+    if (tagType == null) {
+      throw new IllegalArgumentException("Unknown tag type: " + tagTypeName + "!");
+    }
+    String tagValue = ((TextField) tagRow.getChildren().get(3)).getText();
+    return new Tag(tagType, tagValue);
+  }
+
   /**
    * Handles the creation of a new {@link Album} from the search results.
    *
@@ -248,9 +268,7 @@ public class SearchPhotosController {
         return;
       }
       // Add photos to the new album
-      for (Photo photo : searchResults) {
-        newAlbum.addPhoto(photo);
-      }
+      newAlbum.addPhotos(searchResults);
       setStatusMessage("Album created: " + name);
       userHomeController.populateAlbums();
     });
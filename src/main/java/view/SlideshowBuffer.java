@@ -0,0 +1,290 @@
+package view;
+
+import app.ImageDecoder;
+import app.model.Photo;
+import javafx.scene.image.Image;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Decode-ahead buffer for the slideshow. The photos around the current one are decoded on a
+ * background thread at the size of the viewport, so stepping to the next or previous photo
+ * finds its image already decoded.
+ * <p>
+ * Decoded images are held by photo index, at most as many as a memory budget allows, and an
+ * image is released as soon as its photo leaves the window around the current one, so the
+ * photos in the window always fit. Once the user has stepped in one direction, most of the
+ * window is spent on the photos ahead in that direction. Images are decoded directly rather
+ * than through the shared {@link ThumbnailCache}, so viewport-sized images neither evict list
+ * thumbnails nor escape this buffer's budget.</p>
+ * @author Reuben Thomas, Ryan Zaken
+ */
+public class SlideshowBuffer {
+
+    /**
+     * The default number of photos decoded on either side of the current one.
+     */
+    public static final int DEFAULT_RADIUS = 3;
+
+    /**
+     * The default budget for decoded pixels, in bytes.
+     */
+    public static final long DEFAULT_BUDGET_BYTES = 16L * 1024 * 1024;
+
+    /**
+     * The number of bytes a decoded pixel takes.
+     */
+    private static final int BYTES_PER_PIXEL = 4;
+
+    /**
+     * The photos of the slideshow.
+     */
+    private final List<Photo> photos;
+
+    /**
+     * The width of the viewport the images are decoded for.
+     */
+    private final int width;
+
+    /**
+     * The height of the viewport the images are decoded for.
+     */
+    private final int height;
+
+    /**
+     * The most images held at once.
+     */
+    private final int capacity;
+
+    /**
+     * The decoded images of the photos in the window, by photo index.
+     */
+    private final Map<Integer, Image> images = new HashMap<>();
+
+    /**
+     * The thread decoding the photos around the current one.
+     */
+    private final ExecutorService decoder = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "slideshow-decoder");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * The index of the current photo.
+     */
+    private int current;
+
+    /**
+     * The direction of the last step: 1 forwards, -1 backwards, 0 before the first step.
+     */
+    private int direction;
+
+    /**
+     * The number of photos after the current one that are kept decoded.
+     */
+    private int ahead;
+
+    /**
+     * The number of photos before the current one that are kept decoded.
+     */
+    private int behind;
+
+    /**
+     * Constructs a SlideshowBuffer with the default radius and budget.
+     *
+     * @param photos the photos of the slideshow
+     * @param width  the width of the viewport
+     * @param height the height of the viewport
+     */
+    public SlideshowBuffer(List<Photo> photos, int width, int height) {
+        this(photos, width, height, DEFAULT_RADIUS, DEFAULT_BUDGET_BYTES);
+    }
+
+    /**
+     * Constructs a SlideshowBuffer.
+     *
+     * @param photos      the photos of the slideshow
+     * @param width       the width of the viewport
+     * @param height      the height of the viewport
+     * @param radius      the number of photos to decode on either side of the current one
+     * @param budgetBytes the maximum number of bytes of decoded pixels to hold
+     */
+    public SlideshowBuffer(List<Photo> photos, int width, int height, int radius, long budgetBytes) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("The viewport size must be positive!");
+        }
+        this.photos = List.copyOf(photos);
+        this.width = width;
+        this.height = height;
+        long imageBytes = (long) width * height * BYTES_PER_PIXEL;
+        long affordable = Math.max(1, budgetBytes / imageBytes);
+        this.capacity = (int) Math.min(Math.min(2L * radius + 1, affordable), Math.max(1, this.photos.size()));
+    }
+
+    /**
+     * Gets the number of photos the buffer can hold decoded at once.
+     *
+     * @return the capacity of the buffer
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Moves to a photo and returns its image, decoding it on the calling thread only if it is
+     * not buffered yet. The photos around it are then decoded in the background.
+     *
+     * @param index the index of the photo to show
+     * @return the image of the photo
+     */
+    public Image moveTo(int index) {
+        Image image;
+        synchronized (this) {
+            int step = index - current;
+            // A step across the end of the list is a single step in the direction of travel
+            if (step == photos.size() - 1) step = -1;
+            else if (step == 1 - photos.size()) step = 1;
+            if (step != 0) direction = Integer.signum(step);
+            current = index;
+            updateWindow();
+            images.keySet().removeIf(buffered -> !isWanted(buffered));
+            image = images.get(index);
+        }
+        if (image == null) {
+            image = decode(index);
+            store(index, image);
+        }
+        fillWindow(index);
+        return image;
+    }
+
+    /**
+     * Stops decoding. Images already buffered are released.
+     */
+    public synchronized void close() {
+        decoder.shutdownNow();
+        images.clear();
+    }
+
+    /**
+     * Checks if the image of a photo is buffered.
+     *
+     * @param index the index of the photo
+     * @return true if the image is decoded and held, false otherwise
+     */
+    synchronized boolean isBuffered(int index) {
+        return images.containsKey(index);
+    }
+
+    /**
+     * Splits the capacity other than the current photo's between the photos after and before it.
+     * Before the first step they are split evenly; after it, all but one go to the direction of
+     * travel, the last being kept for turning back.
+     */
+    private void updateWindow() {
+        int spare = capacity - 1;
+        int forward = direction == 0 ? (spare + 1) / 2 : spare - Math.min(1, spare / 2);
+        int backward = spare - forward;
+        ahead = direction < 0 ? backward : forward;
+        behind = direction < 0 ? forward : backward;
+    }
+
+    /**
+     * Checks if a photo is in the window around the current photo.
+     *
+     * @param index the index of the photo
+     * @return true if the photo should be kept decoded, false otherwise
+     */
+    private boolean isWanted(int index) {
+        return Math.floorMod(index - current, photos.size()) <= ahead
+                || Math.floorMod(current - index, photos.size()) <= behind;
+    }
+
+    /**
+     * Queues decodes of the photos in the window around a photo, nearest first, alternating
+     * between the sides.
+     *
+     * @param index the index of the current photo
+     */
+    private void fillWindow(int index) {
+        int ahead;
+        int behind;
+        synchronized (this) {
+            ahead = this.ahead;
+            behind = this.behind;
+        }
+        for (int distance = 1; distance <= Math.max(ahead, behind); distance++) {
+            if (distance <= ahead) queueDecode(wrap(index + distance));
+            if (distance <= behind) queueDecode(wrap(index - distance));
+        }
+    }
+
+    /**
+     * Queues the decode of a photo, skipped if the photo has left the window or been decoded
+     * by the time it runs.
+     *
+     * @param index the index of the photo
+     */
+    private synchronized void queueDecode(int index) {
+        if (decoder.isShutdown()) return;
+        decoder.execute(() -> {
+            synchronized (this) {
+                if (!isWanted(index) || images.containsKey(index)) return;
+            }
+            Image image = decode(index);
+            synchronized (this) {
+                // The user may have moved on while the photo was decoded
+                if (isWanted(index)) store(index, image);
+            }
+        });
+    }
+
+    /**
+     * Holds the image of a photo in the window. Photos that have left the window are released
+     * first, so the window, which never exceeds the capacity, always fits.
+     *
+     * @param index the index of the photo
+     * @param image the image
+     */
+    private synchronized void store(int index, Image image) {
+        if (decoder.isShutdown() || image.isError()) return;
+        if (images.size() >= capacity) images.keySet().removeIf(buffered -> !isWanted(buffered));
+        if (images.size() < capacity || images.containsKey(index)) images.put(index, image);
+    }
+
+    /**
+     * Decodes the image of a photo at the size of the viewport.
+     *
+     * @param index the index of the photo
+     * @return the image, which reports an error if the file could not be decoded
+     */
+    private Image decode(int index) {
+        File file = new File(photos.get(index).getPath());
+        try {
+            BufferedImage decoded = ImageDecoder.decode(file, width, height);
+            if (decoded != null) return ThumbnailCache.toImage(decoded);
+        } catch (IOException e) {
+            System.out.println("Could not decode " + file + ": " + e.getMessage());
+        }
+        // Formats ImageIO cannot read are still decoded at the viewport size by JavaFX
+        return new Image(file.toURI().toString(), width, height, true, true);
+    }
+
+    /**
+     * Wraps an index around the ends of the slideshow.
+     *
+     * @param index the index, possibly out of range
+     * @return the index in range
+     */
+    private int wrap(int index) {
+        return Math.floorMod(index, photos.size());
+    }
+}
@@ -3,10 +3,8 @@ package view;
 import app.model.Photo;
 import javafx.fxml.FXML;
 import javafx.scene.control.Label;
-import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
 
-import java.io.File;
 import java.util.List;
 
 /**
@@ -39,6 +37,11 @@ public class SlideshowController {
      */
     private int currentIndex = 0;
 
+    /**
+     * The buffer decoding the photos around the current one ahead of time.
+     */
+    private SlideshowBuffer buffer;
+
     /**
      * Initializes the slideshow with a list of photos.
      * If the list is not empty, the first photo is displayed.
@@ -48,6 +51,7 @@ public class SlideshowController {
     public void init(List<Photo> photos) {
         this.photos = photos;
         if (!photos.isEmpty()) {
+            buffer = new SlideshowBuffer(photos, (int) imageView.getFitWidth(), (int) imageView.getFitHeight());
             displayPhoto(0);
         }
     }
@@ -84,9 +88,18 @@ public class SlideshowController {
      */
     private void displayPhoto(int index) {
         Photo photo = photos.get(index);
-        File file = new File(photo.getPath());
-        Image image = new Image(file.toURI().toString());
-        imageView.setImage(image);
+        // The buffer usually has the photo decoded already, at the size of the view
+        imageView.setImage(buffer.moveTo(index));
         captionLabel.setText(photo.getCaption() != null ? photo.getCaption() : "No Caption");
     }
+
+    /**
+     * Stops decoding photos ahead of time and releases the decoded images.
+     * Called when the slideshow window is closed.
+     */
+    public void close() {
+        if (buffer != null) {
+            buffer.close();
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,159 @@
+package view;
+
+import app.model.User;
+import javafx.application.Platform;
+import javafx.geometry.Side;
+import javafx.scene.control.ContextMenu;
+import javafx.scene.control.MenuItem;
+import javafx.scene.control.TextField;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Suggests completions of a tag value while it is typed into a text field, from the values of
+ * the chosen tag type already used on the user's photos, most used first.
+ * Completions are looked up on a background thread, so typing never waits for them, and only
+ * the answer to the latest keystroke is shown; answers to earlier ones are dropped.
+ * @author Reuben Thomas, Ryan Zaken
+ */
+public class TagValueCompleter {
+
+    /**
+     * The most suggestions shown.
+     */
+    public static final int MAX_SUGGESTIONS = 8;
+
+    /**
+     * The thread looking up completions for all fields.
+     */
+    private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "tag-completer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * The field being completed.
+     */
+    private final TextField field;
+
+    /**
+     * The user whose tag values are suggested.
+     */
+    private final User user;
+
+    /**
+     * Gets the name of the tag type being entered, or null if none is chosen.
+     */
+    private final Supplier<String> tagTypeName;
+
+    /**
+     * The menu showing the suggestions.
+     */
+    private final ContextMenu menu = new ContextMenu();
+
+    /**
+     * The number of the latest lookup, so answers to earlier keystrokes can be recognised.
+     */
+    private final AtomicLong latest = new AtomicLong();
+
+    /**
+     * Whether the text is being set from a chosen suggestion, which must not be completed again.
+     */
+    private boolean choosing;
+
+    /**
+     * Constructs a TagValueCompleter and starts suggesting completions in a field.
+     *
+     * @param field       the field to complete
+     * @param user        the user whose tag values are suggested
+     * @param tagTypeName gets the name of the tag type being entered, or null if none is chosen
+     */
+    public TagValueCompleter(TextField field, User user, Supplier<String> tagTypeName) {
+        this.field = field;
+        this.user = user;
+        this.tagTypeName = tagTypeName;
+        field.textProperty().addListener((observable, oldText, newText) -> {
+            if (!choosing) requestSuggestions(newText);
+        });
+        field.focusedProperty().addListener((observable, wasFocused, focused) -> {
+            if (!focused) hide();
+        });
+    }
+
+    /**
+     * Looks up the completions of the text in the background and shows them when they arrive,
+     * unless the text has changed again by then. Runs on the JavaFX Application Thread.
+     *
+     * @param text the text typed so far
+     */
+    private void requestSuggestions(String text) {
+        long request = latest.incrementAndGet();
+        String typeName = tagTypeName.get();
+        String prefix = text == null ? "" : text.trim();
+        if (typeName == null || typeName.isBlank() || prefix.isEmpty()) {
+            hide();
+            return;
+        }
+        EXECUTOR.execute(() -> {
+            // Skip keystrokes that a later one has already superseded
+            if (request != latest.get()) return;
+            List<String> suggestions = user.completeTagValue(typeName, prefix, MAX_SUGGESTIONS);
+            Platform.runLater(() -> {
+                if (request == latest.get()) show(prefix, suggestions);
+            });
+        });
+    }
+
+    /**
+     * Shows suggestions under the field.
+     *
+     * @param prefix      the text they complete
+     * @param suggestions the suggested values
+     */
+    private void show(String prefix, List<String> suggestions) {
+        // There is nothing to suggest if the only completion is what has been typed
+        if (suggestions.isEmpty() || (suggestions.size() == 1 && suggestions.get(0).equalsIgnoreCase(prefix))) {
+            hide();
+            return;
+        }
+        menu.getItems().clear();
+        for (String suggestion : suggestions) {
+            MenuItem item = new MenuItem(suggestion);
+            item.setOnAction(event -> choose(suggestion));
+            menu.getItems().add(item);
+        }
+        if (!menu.isShowing() && field.getScene() != null && field.isFocused()) {
+            menu.show(field, Side.BOTTOM, 0, 0);
+        }
+    }
+
+    /**
+     * Puts a chosen suggestion into the field.
+     *
+     * @param suggestion the chosen value
+     */
+    private void choose(String suggestion) {
+        choosing = true;
+        try {
+            field.setText(suggestion);
+            field.positionCaret(suggestion.length());
+        } finally {
+            choosing = false;
+        }
+        latest.incrementAndGet();
+        hide();
+    }
+
+    /**
+     * Hides the suggestions and drops any lookup still under way.
+     */
+    private void hide() {
+        latest.incrementAndGet();
+        menu.hide();
+    }
+}
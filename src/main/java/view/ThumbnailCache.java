@@ -0,0 +1,350 @@
+package view;
+
+import app.ImageDecoder;
+import app.ThumbnailStore;
+import javafx.scene.image.Image;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * In-memory cache of decoded images shared by all views, so that scrolling a list or
+ * revisiting a photo does not decode the same file again.
+ * Images are keyed by file path, last-modified time and requested size, so an edited file
+ * is decoded afresh. The least recently used images are evicted once the decoded pixels
+ * exceed a byte budget. All methods are thread-safe, so images can be loaded from
+ * background threads.
+ * <p>
+ * When a {@link ThumbnailStore} is attached, thumbnails of its size are read from the store
+ * instead of being decoded from the original.</p>
+ * @author Reuben Thomas, Ryan Zaken
+ */
+public class ThumbnailCache {
+
+    /**
+     * The default budget for decoded pixels, in bytes.
+     */
+    public static final long DEFAULT_BUDGET_BYTES = 64L * 1024 * 1024;
+
+    /**
+     * The width and height of the thumbnails shown in photo lists.
+     */
+    public static final int THUMBNAIL_SIZE = 50;
+
+    /**
+     * The number of bytes a decoded pixel takes.
+     */
+    private static final int BYTES_PER_PIXEL = 4;
+
+    /**
+     * The cache shared by all views. Its budget can be set with the
+     * {@code photos.thumbnailCacheBytes} system property.
+     */
+    private static final ThumbnailCache SHARED =
+            new ThumbnailCache(Long.getLong("photos.thumbnailCacheBytes", DEFAULT_BUDGET_BYTES));
+
+    /**
+     * Identifies a decoded image by file, file version and requested size.
+     *
+     * @param path         the file path of the image
+     * @param lastModified the last-modified time of the file when it was decoded
+     * @param width        the requested width, or 0 for the original width
+     * @param height       the requested height, or 0 for the original height
+     */
+    private record Key(String path, long lastModified, int width, int height) {
+    }
+
+    /**
+     * The cached images in access order, least recently used first.
+     */
+    private final LinkedHashMap<Key, Image> images = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * The maximum number of bytes of decoded pixels to keep.
+     */
+    private long budgetBytes;
+
+    /**
+     * The number of bytes of decoded pixels currently kept.
+     */
+    private long usedBytes;
+
+    /**
+     * The number of requests answered from the cache.
+     */
+    private long hits;
+
+    /**
+     * The number of requests that had to decode the file.
+     */
+    private long misses;
+
+    /**
+     * The number of images evicted to stay within the budget.
+     */
+    private long evictions;
+
+    /**
+     * The persistent store thumbnails are read from, or null if there is none.
+     */
+    private volatile ThumbnailStore store;
+
+    /**
+     * Constructs a ThumbnailCache with the specified budget.
+     *
+     * @param budgetBytes the maximum number of bytes of decoded pixels to keep
+     */
+    public ThumbnailCache(long budgetBytes) {
+        this.budgetBytes = budgetBytes;
+    }
+
+    /**
+     * Gets the cache shared by all views.
+     *
+     * @return the shared cache
+     */
+    public static ThumbnailCache getShared() {
+        return SHARED;
+    }
+
+    /**
+     * Attaches a persistent store from which thumbnails of its size are read.
+     *
+     * @param store the store, or null to decode every image from its original
+     */
+    public void setStore(ThumbnailStore store) {
+        this.store = store;
+    }
+
+    /**
+     * Gets an image of a file scaled to fit the requested size, preserving its aspect ratio.
+     * On a miss the file is decoded on the calling thread.
+     *
+     * @param path   the file path of the image
+     * @param width  the requested width, or 0 for the original width
+     * @param height the requested height, or 0 for the original height
+     * @return the image, which reports an error if the file could not be decoded
+     */
+    public Image get(String path, int width, int height) {
+        File file = new File(path);
+        Key key = new Key(path, file.lastModified(), width, height);
+        synchronized (this) {
+            Image image = images.get(key);
+            if (image != null) {
+                hits++;
+                return image;
+            }
+            misses++;
+        }
+        // Decode outside the lock so that other threads are not held up
+        Image image = load(file, width, height);
+        if (!image.isError()) {
+            put(key, image);
+        }
+        return image;
+    }
+
+    /**
+     * Gets an image from the cache without decoding it on a miss.
+     *
+     * @param path   the file path of the image
+     * @param width  the requested width, or 0 for the original width
+     * @param height the requested height, or 0 for the original height
+     * @return the cached image, or null if it is not cached
+     */
+    public Image getIfCached(String path, int width, int height) {
+        Key key = new Key(path, new File(path).lastModified(), width, height);
+        synchronized (this) {
+            Image image = images.get(key);
+            if (image != null) hits++;
+            return image;
+        }
+    }
+
+    /**
+     * Sets the budget, evicting images at once if the new budget is smaller.
+     *
+     * @param budgetBytes the maximum number of bytes of decoded pixels to keep
+     */
+    public synchronized void setBudgetBytes(long budgetBytes) {
+        this.budgetBytes = budgetBytes;
+        evictToBudget();
+    }
+
+    /**
+     * Gets the budget.
+     *
+     * @return the maximum number of bytes of decoded pixels to keep
+     */
+    public synchronized long getBudgetBytes() {
+        return budgetBytes;
+    }
+
+    /**
+     * Gets the number of bytes of decoded pixels currently kept.
+     *
+     * @return the number of bytes used
+     */
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    /**
+     * Gets the number of requests answered from the cache.
+     *
+     * @return the hit count
+     */
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    /**
+     * Gets the number of requests that had to decode the file.
+     *
+     * @return the miss count
+     */
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    /**
+     * Gets the number of images evicted to stay within the budget.
+     *
+     * @return the eviction count
+     */
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    /**
+     * Removes every image of a file from the cache, whatever its size, so a changed file is
+     * decoded afresh and a deleted one no longer holds memory.
+     *
+     * @param path the file path of the image
+     */
+    public synchronized void invalidate(String path) {
+        Iterator<Map.Entry<Key, Image>> iterator = images.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Key, Image> entry = iterator.next();
+            if (entry.getKey().path().equals(path)) {
+                usedBytes -= sizeOf(entry.getValue());
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Removes every image from the cache. The statistics are kept.
+     */
+    public synchronized void clear() {
+        images.clear();
+        usedBytes = 0;
+    }
+
+    /**
+     * Returns a summary of the cache statistics.
+     *
+     * @return a string with the hit, miss and eviction counts and the bytes used
+     */
+    @Override
+    public synchronized String toString() {
+        long requests = hits + misses;
+        return String.format("ThumbnailCache: %d images, %d/%d KB, %d hits, %d misses (%.1f%% hit rate), %d evictions",
+                images.size(), usedBytes / 1024, budgetBytes / 1024, hits, misses,
+                requests == 0 ? 0.0 : 100.0 * hits / requests, evictions);
+    }
+
+    /**
+     * Loads an image from the persistent store if it holds thumbnails of the requested size,
+     * or else by decoding the original file, subsampled to the requested size.
+     *
+     * @param file   the image file
+     * @param width  the requested width, or 0 for the original width
+     * @param height the requested height, or 0 for the original height
+     * @return the loaded image
+     */
+    private Image load(File file, int width, int height) {
+        ThumbnailStore store = this.store;
+        if (store != null && width == store.getSize() && height == store.getSize()) {
+            try {
+                byte[] encoded = store.getOrCreate(file);
+                if (encoded != null) {
+                    return new Image(new ByteArrayInputStream(encoded));
+                }
+            } catch (IOException e) {
+                System.out.println("Thumbnail store failed for " + file + ": " + e.getMessage());
+            }
+        }
+        if (width > 0 && height > 0) {
+            try {
+                BufferedImage decoded = ImageDecoder.decode(file, width, height);
+                if (decoded != null) {
+                    return toImage(decoded);
+                }
+            } catch (IOException e) {
+                System.out.println("Could not decode " + file + ": " + e.getMessage());
+            }
+        }
+        // Formats ImageIO cannot read are still decoded at the requested size by JavaFX
+        return new Image(file.toURI().toString(), width, height, true, true);
+    }
+
+    /**
+     * Copies a decoded image into a JavaFX image.
+     *
+     * @param decoded the decoded image
+     * @return an image with the same pixels
+     */
+    static Image toImage(BufferedImage decoded) {
+        int width = decoded.getWidth();
+        int height = decoded.getHeight();
+        int[] pixels = decoded.getRGB(0, 0, width, height, null, 0, width);
+        WritableImage image = new WritableImage(width, height);
+        image.getPixelWriter().setPixels(0, 0, width, height, PixelFormat.getIntArgbInstance(), pixels, 0, width);
+        return image;
+    }
+
+    /**
+     * Adds a decoded image and evicts the least recently used images if over budget.
+     *
+     * @param key   the key of the image
+     * @param image the decoded image
+     */
+    private synchronized void put(Key key, Image image) {
+        Image previous = images.put(key, image);
+        if (previous != null) {
+            usedBytes -= sizeOf(previous);
+        }
+        usedBytes += sizeOf(image);
+        evictToBudget();
+    }
+
+    /**
+     * Evicts the least recently used images until the used bytes are within the budget.
+     */
+    private void evictToBudget() {
+        Iterator<Map.Entry<Key, Image>> iterator = images.entrySet().iterator();
+        while (usedBytes > budgetBytes && iterator.hasNext()) {
+            usedBytes -= sizeOf(iterator.next().getValue());
+            iterator.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * Gets the number of bytes the decoded pixels of an image take.
+     *
+     * @param image the image
+     * @return the size of the image in bytes
+     */
+    private static long sizeOf(Image image) {
+        return (long) image.getWidth() * (long) image.getHeight() * BYTES_PER_PIXEL;
+    }
+}
@@ -0,0 +1,251 @@
+package view;
+
+import app.model.Photo;
+import javafx.application.Platform;
+import javafx.scene.control.ListView;
+import javafx.scene.image.Image;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Loads images through the {@link ThumbnailCache} on a small pool of background threads, so
+ * list cells never decode on the JavaFX Application Thread.
+ * A request can be cancelled, which a recycled cell does when it is given a new item, so a
+ * stale image never lands in the wrong cell. Requests for visible cells are served before
+ * prefetches of their neighbours.
+ * <p>
+ * Each list has a single batch of prefetches, replaced by the next batch it asks for, and a
+ * prefetch already queued for the same image and size is not queued again, so scrolling fast
+ * never piles up stale work. The cache is only consulted on the loading threads, since that
+ * reads the file's modification time.</p>
+ * @author Reuben Thomas, Ryan Zaken
+ */
+public class ThumbnailLoader {
+
+    /**
+     * The number of list items after a requested one that are prefetched.
+     */
+    public static final int PREFETCH_DISTANCE = 10;
+
+    /**
+     * The key under which a list's current prefetch batch is kept in its properties.
+     */
+    private static final String PREFETCH_BATCH_KEY = ThumbnailLoader.class.getName() + ".prefetchBatch";
+
+    /**
+     * The loader shared by all views.
+     */
+    private static final ThumbnailLoader SHARED =
+            new ThumbnailLoader(ThumbnailCache.getShared(), Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    /**
+     * The cache images are loaded through.
+     */
+    private final ThumbnailCache cache;
+
+    /**
+     * The pool of loading threads, taking requests in priority order.
+     */
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * The sequence number of the next request, which keeps requests of equal priority in order.
+     */
+    private final AtomicLong nextSequence = new AtomicLong();
+
+    /**
+     * The prefetches queued and not yet started, by image and size.
+     */
+    private final Map<ImageKey, Request> pendingPrefetches = new ConcurrentHashMap<>();
+
+    /**
+     * Identifies an image requested at a size.
+     *
+     * @param path   the file path of the image
+     * @param width  the requested width
+     * @param height the requested height
+     */
+    private record ImageKey(String path, int width, int height) {
+    }
+
+    /**
+     * The prefetches a list asked for last, and the item they were around.
+     *
+     * @param index    the index of the item shown when the batch was requested
+     * @param requests the prefetch requests
+     */
+    private record PrefetchBatch(int index, List<Request> requests) {
+    }
+
+    /**
+     * Constructs a ThumbnailLoader using the specified cache and number of threads.
+     *
+     * @param cache   the cache images are loaded through
+     * @param threads the number of loading threads
+     */
+    public ThumbnailLoader(ThumbnailCache cache, int threads) {
+        this.cache = cache;
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<>(), runnable -> {
+                    Thread thread = new Thread(runnable, "thumbnail-loader");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    /**
+     * Gets the loader shared by all views.
+     *
+     * @return the shared loader
+     */
+    public static ThumbnailLoader getShared() {
+        return SHARED;
+    }
+
+    /**
+     * Requests an image for a visible cell. The callback runs on the JavaFX Application Thread
+     * once the image is found in the cache or loaded, unless the request has been cancelled by then.
+     *
+     * @param path     the file path of the image
+     * @param width    the requested width, or 0 for the original width
+     * @param height   the requested height, or 0 for the original height
+     * @param onLoaded receives the loaded image
+     * @return the request, which can be cancelled
+     */
+    public Request load(String path, int width, int height, Consumer<Image> onLoaded) {
+        Request request = new Request(path, width, height, onLoaded, Request.VISIBLE, nextSequence.getAndIncrement());
+        executor.execute(request);
+        return request;
+    }
+
+    /**
+     * Loads an image into the cache in the background, after all requests for visible cells.
+     * If the same image and size is already queued for prefetching, that request is returned.
+     *
+     * @param path   the file path of the image
+     * @param width  the requested width, or 0 for the original width
+     * @param height the requested height, or 0 for the original height
+     * @return the request, which can be cancelled
+     */
+    public Request prefetch(String path, int width, int height) {
+        ImageKey key = new ImageKey(path, width, height);
+        Request queued = pendingPrefetches.get(key);
+        if (queued != null && !queued.cancelled) return queued;
+        Request request = new Request(path, width, height, null, Request.PREFETCH, nextSequence.getAndIncrement());
+        pendingPrefetches.put(key, request);
+        executor.execute(request);
+        return request;
+    }
+
+    /**
+     * Prefetches the images of the photos next to a photo being shown in a list, in the
+     * direction the list is being scrolled, so they are ready when they come into view. The
+     * list's previous batch of prefetches is cancelled. Runs on the JavaFX Application Thread.
+     *
+     * @param listView the list
+     * @param index    the index of the photo being shown
+     * @param width    the requested width, or 0 for the original width
+     * @param height   the requested height, or 0 for the original height
+     */
+    public void prefetchAround(ListView<Photo> listView, int index, int width, int height) {
+        List<Photo> photos = listView.getItems();
+        PrefetchBatch previous = (PrefetchBatch) listView.getProperties().get(PREFETCH_BATCH_KEY);
+        // Cells are updated in the order they come into view, so a lower index means scrolling up
+        boolean backward = previous != null && index < previous.index();
+        int start = backward ? Math.max(0, index - PREFETCH_DISTANCE) : index + 1;
+        int end = backward ? index : Math.min(photos.size(), index + 1 + PREFETCH_DISTANCE);
+        List<Request> requests = new ArrayList<>(Math.max(0, end - start));
+        for (int i = start; i < end; i++) {
+            requests.add(prefetch(photos.get(i).getPath(), width, height));
+        }
+        if (previous != null) {
+            for (Request request : previous.requests()) {
+                if (!requests.contains(request)) request.cancel();
+            }
+        }
+        listView.getProperties().put(PREFETCH_BATCH_KEY, new PrefetchBatch(index, requests));
+    }
+
+    /**
+     * A queued request for an image. Requests are ordered by priority, then by sequence number.
+     */
+    public final class Request implements Runnable, Comparable<Request> {
+        /** The priority of a request for a visible cell. */
+        private static final int VISIBLE = 0;
+        /** The priority of a prefetch request. */
+        private static final int PREFETCH = 1;
+
+        /** The file path of the image. */
+        private final String path;
+        /** The requested width. */
+        private final int width;
+        /** The requested height. */
+        private final int height;
+        /** Receives the loaded image, or null for a prefetch. */
+        private final Consumer<Image> onLoaded;
+        /** The priority of the request, lower first. */
+        private final int priority;
+        /** The sequence number of the request. */
+        private final long sequence;
+        /** Whether the request has been cancelled. */
+        private volatile boolean cancelled;
+
+        /**
+         * Constructs a Request.
+         *
+         * @param path     the file path of the image
+         * @param width    the requested width
+         * @param height   the requested height
+         * @param onLoaded receives the loaded image, or null for a prefetch
+         * @param priority the priority of the request, lower first
+         * @param sequence the sequence number of the request
+         */
+        private Request(String path, int width, int height, Consumer<Image> onLoaded, int priority, long sequence) {
+            this.path = path;
+            this.width = width;
+            this.height = height;
+            this.onLoaded = onLoaded;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        /**
+         * Cancels the request. A request that has not started is taken off the queue, and the
+         * callback of one in progress is not run.
+         */
+        public void cancel() {
+            cancelled = true;
+            if (priority == PREFETCH) pendingPrefetches.remove(new ImageKey(path, width, height), this);
+            executor.remove(this);
+        }
+
+        /**
+         * Loads the image and hands it to the callback on the JavaFX Application Thread.
+         */
+        @Override
+        public void run() {
+            if (priority == PREFETCH) pendingPrefetches.remove(new ImageKey(path, width, height), this);
+            if (cancelled) return;
+            Image image = cache.get(path, width, height);
+            if (onLoaded != null && !cancelled) {
+                Platform.runLater(() -> {
+                    if (!cancelled) onLoaded.accept(image);
+                });
+            }
+        }
+
+        @Override
+        public int compareTo(Request other) {
+            if (priority != other.priority) return Integer.compare(priority, other.priority);
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+}
@@ -0,0 +1,420 @@
+package view;
+
+import app.ImageDecoder;
+import javafx.application.Platform;
+import javafx.geometry.Rectangle2D;
+import javafx.scene.Group;
+import javafx.scene.image.Image;
+import javafx.scene.image.ImageView;
+import javafx.scene.input.MouseEvent;
+import javafx.scene.input.ScrollEvent;
+import javafx.scene.layout.Pane;
+import javafx.scene.shape.Rectangle;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Zoomable view of a photo that never decodes the original at full resolution.
+ * A low-resolution preview is shown at once and replaced by a decode at the size of the view,
+ * made in the background. When the user zooms in past the detail of that decode, only the
+ * tiles of the original under the view are decoded, subsampled to the zoom level, so even a
+ * very large image is shown in detail with bounded memory.
+ * <p>
+ * Scroll to zoom around the pointer and drag to pan.</p>
+ * @author Reuben Thomas, Ryan Zaken
+ */
+public class TiledImageView extends Pane {
+
+    /**
+     * The width and height of a decoded tile, in pixels.
+     */
+    public static final int TILE_SIZE = 256;
+
+    /**
+     * The maximum number of decoded tiles kept, which bounds their memory to about 24 MB.
+     */
+    private static final int MAX_TILES = 96;
+
+    /**
+     * The largest zoom, in view pixels per pixel of the original.
+     */
+    private static final double MAX_SCALE = 4.0;
+
+    /**
+     * The zoom factor of one step of the mouse wheel.
+     */
+    private static final double ZOOM_STEP = 1.25;
+
+    /**
+     * Identifies a tile by subsampling level and position in the grid of that level.
+     *
+     * @param subsampling the step between decoded pixels of the original
+     * @param column      the column of the tile
+     * @param row         the row of the tile
+     */
+    private record TileKey(int subsampling, int column, int row) {
+    }
+
+    /**
+     * Shows the best whole-image decode available.
+     */
+    private final ImageView previewView = new ImageView();
+
+    /**
+     * Shows the decoded tiles over the preview.
+     */
+    private final Group tileLayer = new Group();
+
+    /**
+     * The decoded tiles in access order, least recently used first.
+     * Only accessed on the JavaFX Application Thread.
+     */
+    private final LinkedHashMap<TileKey, Image> tiles = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<TileKey, Image> eldest) {
+            return size() > MAX_TILES;
+        }
+    };
+
+    /**
+     * The tiles queued or being decoded.
+     */
+    private final Set<TileKey> pending = ConcurrentHashMap.newKeySet();
+
+    /**
+     * The thread decoding the preview and the tiles.
+     */
+    private final ExecutorService decoder = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "tile-decoder");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * The tiles under the view, which queued decodes check so they can skip tiles panned away.
+     */
+    private volatile Set<TileKey> visibleTiles = Set.of();
+
+    /**
+     * The image file shown, or null if there is none.
+     */
+    private File file;
+
+    /**
+     * The width of the original, or 0 until it is known.
+     */
+    private int sourceWidth;
+
+    /**
+     * The height of the original, or 0 until it is known.
+     */
+    private int sourceHeight;
+
+    /**
+     * The zoom, in view pixels per pixel of the original.
+     */
+    private double scale;
+
+    /**
+     * Whether the user has zoomed or panned, after which resizing no longer refits the image.
+     */
+    private boolean adjusted;
+
+    /**
+     * The position of the original shown at the left edge of the view.
+     */
+    private double originX;
+
+    /**
+     * The position of the original shown at the top edge of the view.
+     */
+    private double originY;
+
+    /**
+     * The position of the pointer when a drag last moved the image.
+     */
+    private double dragX;
+
+    /**
+     * The position of the pointer when a drag last moved the image.
+     */
+    private double dragY;
+
+    /**
+     * Constructs an empty TiledImageView.
+     */
+    public TiledImageView() {
+        previewView.setSmooth(true);
+        getChildren().addAll(previewView, tileLayer);
+        Rectangle clip = new Rectangle();
+        clip.widthProperty().bind(widthProperty());
+        clip.heightProperty().bind(heightProperty());
+        setClip(clip);
+        setOnScroll(this::handleScroll);
+        setOnMousePressed(this::handleMousePressed);
+        setOnMouseDragged(this::handleMouseDragged);
+    }
+
+    /**
+     * Shows an image file. The preview is shown at once; the size of the original is then
+     * read and a decode at the size of the view is made in the background.
+     *
+     * @param file    the image file
+     * @param preview a low-resolution version of the image, or null if none is at hand
+     */
+    public void setImage(File file, Image preview) {
+        this.file = file;
+        sourceWidth = 0;
+        sourceHeight = 0;
+        adjusted = false;
+        tiles.clear();
+        tileLayer.getChildren().clear();
+        previewView.setImage(preview);
+        requestLayout();
+        int width = Math.max(1, (int) Math.ceil(getPrefWidth()));
+        int height = Math.max(1, (int) Math.ceil(getPrefHeight()));
+        decoder.execute(() -> {
+            try {
+                Dimension size = ImageDecoder.readSize(file);
+                if (size == null) return;
+                Platform.runLater(() -> showSize(file, size));
+                BufferedImage decoded = ImageDecoder.decode(file, width, height);
+                if (decoded != null) {
+                    Image image = ThumbnailCache.toImage(decoded);
+                    Platform.runLater(() -> showPreview(file, image));
+                }
+            } catch (IOException e) {
+                System.out.println("Could not decode " + file + ": " + e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Stops decoding and releases the decoded tiles.
+     */
+    public void close() {
+        decoder.shutdownNow();
+        tiles.clear();
+        tileLayer.getChildren().clear();
+    }
+
+    /**
+     * Lays out the preview and the tiles for the current zoom and position.
+     */
+    @Override
+    protected void layoutChildren() {
+        if (sourceWidth == 0 || sourceHeight == 0) {
+            layoutBeforeSize();
+            return;
+        }
+        if (!adjusted) {
+            fit();
+        }
+        clampOrigin();
+        layoutPreview();
+        layoutTiles();
+    }
+
+    /**
+     * Fits the whole preview in the view while the size of the original is not yet known.
+     */
+    private void layoutBeforeSize() {
+        previewView.setViewport(null);
+        previewView.setPreserveRatio(true);
+        previewView.setFitWidth(getWidth());
+        previewView.setFitHeight(getHeight());
+        previewView.relocate(0, 0);
+    }
+
+    /**
+     * Zooms out so the whole image fits in the view, centred.
+     */
+    private void fit() {
+        scale = Math.min(getWidth() / sourceWidth, getHeight() / sourceHeight);
+        originX = (sourceWidth - getWidth() / scale) / 2;
+        originY = (sourceHeight - getHeight() / scale) / 2;
+    }
+
+    /**
+     * Keeps the image from being panned out of the view. Along an axis on which the image is
+     * smaller than the view, it is centred.
+     */
+    private void clampOrigin() {
+        double visibleWidth = getWidth() / scale;
+        double visibleHeight = getHeight() / scale;
+        originX = visibleWidth >= sourceWidth ? (sourceWidth - visibleWidth) / 2
+                : Math.max(0, Math.min(originX, sourceWidth - visibleWidth));
+        originY = visibleHeight >= sourceHeight ? (sourceHeight - visibleHeight) / 2
+                : Math.max(0, Math.min(originY, sourceHeight - visibleHeight));
+    }
+
+    /**
+     * Shows the part of the preview under the view, stretched to the zoom.
+     */
+    private void layoutPreview() {
+        Image preview = previewView.getImage();
+        if (preview == null) return;
+        double ratio = preview.getWidth() / sourceWidth;
+        double left = Math.max(0, originX);
+        double top = Math.max(0, originY);
+        double right = Math.min(sourceWidth, originX + getWidth() / scale);
+        double bottom = Math.min(sourceHeight, originY + getHeight() / scale);
+        previewView.setPreserveRatio(false);
+        previewView.setViewport(new Rectangle2D(left * ratio, top * ratio, (right - left) * ratio, (bottom - top) * ratio));
+        previewView.setFitWidth((right - left) * scale);
+        previewView.setFitHeight((bottom - top) * scale);
+        previewView.relocate((left - originX) * scale, (top - originY) * scale);
+    }
+
+    /**
+     * Shows the decoded tiles under the view and queues the decodes of the missing ones.
+     * No tiles are used while the preview has enough detail for the zoom.
+     */
+    private void layoutTiles() {
+        tileLayer.getChildren().clear();
+        Image preview = previewView.getImage();
+        if (preview != null && preview.getWidth() >= sourceWidth * scale) {
+            visibleTiles = Set.of();
+            return;
+        }
+        // Power-of-two levels let tiles be reused across small zoom changes
+        int subsampling = Integer.highestOneBit(Math.max(1, (int) (1 / scale)));
+        int span = TILE_SIZE * subsampling;
+        int firstColumn = (int) (Math.max(0, originX) / span);
+        int firstRow = (int) (Math.max(0, originY) / span);
+        int lastColumn = (int) ((Math.min(sourceWidth, originX + getWidth() / scale) - 1) / span);
+        int lastRow = (int) ((Math.min(sourceHeight, originY + getHeight() / scale) - 1) / span);
+        Set<TileKey> visible = new HashSet<>();
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int column = firstColumn; column <= lastColumn; column++) {
+                TileKey key = new TileKey(subsampling, column, row);
+                visible.add(key);
+                Image tile = tiles.get(key);
+                if (tile == null) continue;
+                ImageView tileView = new ImageView(tile);
+                tileView.setSmooth(true);
+                tileView.setFitWidth(Math.min(span, sourceWidth - column * span) * scale);
+                tileView.setFitHeight(Math.min(span, sourceHeight - row * span) * scale);
+                tileView.relocate((column * span - originX) * scale, (row * span - originY) * scale);
+                tileLayer.getChildren().add(tileView);
+            }
+        }
+        visibleTiles = visible;
+        for (TileKey key : visible) {
+            if (!tiles.containsKey(key)) {
+                queueTile(key);
+            }
+        }
+    }
+
+    /**
+     * Queues the decode of a tile, skipped if it has been panned or zoomed away by the time it
+     * runs.
+     *
+     * @param key the tile
+     */
+    private void queueTile(TileKey key) {
+        if (decoder.isShutdown() || !pending.add(key)) return;
+        File file = this.file;
+        decoder.execute(() -> {
+            try {
+                if (!visibleTiles.contains(key)) return;
+                int span = TILE_SIZE * key.subsampling();
+                java.awt.Rectangle region = new java.awt.Rectangle(key.column() * span, key.row() * span, span, span);
+                BufferedImage decoded = ImageDecoder.decodeRegion(file, region, key.subsampling());
+                if (decoded != null) {
+                    Image tile = ThumbnailCache.toImage(decoded);
+                    Platform.runLater(() -> {
+                        if (file != this.file) return;
+                        tiles.put(key, tile);
+                        requestLayout();
+                    });
+                }
+            } catch (IOException e) {
+                System.out.println("Could not decode a tile of " + file + ": " + e.getMessage());
+            } finally {
+                pending.remove(key);
+            }
+        });
+    }
+
+    /**
+     * Records the size of the original once it has been read.
+     *
+     * @param file the image file the size was read from
+     * @param size the width and height of the original
+     */
+    private void showSize(File file, Dimension size) {
+        if (file != this.file) return;
+        sourceWidth = size.width;
+        sourceHeight = size.height;
+        requestLayout();
+    }
+
+    /**
+     * Replaces the preview with a better one.
+     *
+     * @param file  the image file the preview was decoded from
+     * @param image the new preview
+     */
+    private void showPreview(File file, Image image) {
+        if (file != this.file) return;
+        previewView.setImage(image);
+        requestLayout();
+    }
+
+    /**
+     * Zooms around the pointer when the mouse wheel is turned.
+     *
+     * @param event the scroll event
+     */
+    private void handleScroll(ScrollEvent event) {
+        if (sourceWidth == 0 || event.getDeltaY() == 0) return;
+        double fitScale = Math.min(getWidth() / sourceWidth, getHeight() / sourceHeight);
+        double newScale = event.getDeltaY() > 0 ? scale * ZOOM_STEP : scale / ZOOM_STEP;
+        newScale = Math.max(fitScale, Math.min(MAX_SCALE, newScale));
+        // Keep the point of the original under the pointer where it is
+        originX += event.getX() / scale - event.getX() / newScale;
+        originY += event.getY() / scale - event.getY() / newScale;
+        scale = newScale;
+        adjusted = true;
+        requestLayout();
+        event.consume();
+    }
+
+    /**
+     * Starts a drag.
+     *
+     * @param event the mouse event
+     */
+    private void handleMousePressed(MouseEvent event) {
+        dragX = event.getX();
+        dragY = event.getY();
+    }
+
+    /**
+     * Pans the image with the pointer.
+     *
+     * @param event the mouse event
+     */
+    private void handleMouseDragged(MouseEvent event) {
+        if (sourceWidth == 0) return;
+        originX -= (event.getX() - dragX) / scale;
+        originY -= (event.getY() - dragY) / scale;
+        dragX = event.getX();
+        dragY = event.getY();
+        adjusted = true;
+        requestLayout();
+        event.consume();
+    }
+}
@@ -1,7 +1,10 @@
 package view;
 
+import app.ContentHasher;
 import app.Photos;
 import app.model.Album;
+import app.model.Photo;
+import javafx.application.Platform;
 import javafx.fxml.FXML;
 import javafx.scene.control.*;
 import javafx.stage.Stage;
@@ -11,6 +14,8 @@ import javafx.scene.Scene;
 import app.model.User;
 
 import java.io.IOException;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 
 
@@ -153,6 +158,59 @@ public class UserHomeController {
         app.switchToLoginView((Stage) albumList.getScene().getWindow());
     }
 
+    /**
+     * Handles the action of finding photos whose files have the same content.
+     * The files are hashed in the background, then the groups of copies are listed.
+     */
+    @FXML
+    public void handleFindDuplicates() {
+        List<Photo> photos = user.getAllPhotos();
+        List<String> paths = photos.stream().map(Photo::getPath).toList();
+        ContentHasher hasher = app.getContentHasher();
+        statusLabel.setText("Checking " + photos.size() + " photos for duplicates...");
+        Thread hashThread = new Thread(() -> {
+            try {
+                Map<String, String> digests = hasher.hashAll(paths);
+                Platform.runLater(() -> {
+                    for (Photo photo : photos) {
+                        photo.setContentHash(digests.get(photo.getPath()));
+                    }
+                    showDuplicates(user.getDuplicatePhotos());
+                });
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "duplicate-finder");
+        hashThread.setDaemon(true);
+        hashThread.start();
+    }
+
+    /**
+     * Reports groups of photos whose files have the same content.
+     *
+     * @param duplicates the photos of each content hash shared by more than one photo
+     */
+    private void showDuplicates(Map<String, List<Photo>> duplicates) {
+        int copies = duplicates.values().stream().mapToInt(group -> group.size() - 1).sum();
+        statusLabel.setText(duplicates.isEmpty() ? "No duplicate photos found"
+                : copies + " duplicate photos found in " + duplicates.size() + " groups");
+        if (duplicates.isEmpty()) return;
+        StringBuilder report = new StringBuilder();
+        for (List<Photo> group : duplicates.values()) {
+            for (Photo photo : group) {
+                report.append(photo.getPath()).append('\n');
+            }
+            report.append('\n');
+        }
+        TextArea text = new TextArea(report.toString());
+        text.setEditable(false);
+        Alert alert = new Alert(Alert.AlertType.INFORMATION);
+        alert.setTitle("Duplicate Photos");
+        alert.setHeaderText("These photos have the same content:");
+        alert.getDialogPane().setContent(text);
+        alert.showAndWait();
+    }
+
     /**
      * Handles the action to view the user's tag types.
      * Loads and displays the tag types dialog.
@@ -0,0 +1,204 @@
+package app;
+
+import app.model.*;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.time.LocalDateTime;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for {@link ChangeJournal}: changes recorded against a user and replayed onto the
+ * user's last snapshot must give back the same user.
+ * @author Reuben Thomas, Ryan Zaken
+ */
+class ChangeJournalTest {
+
+  /** A directory for the journal files of a test. */
+  @TempDir
+  File dir;
+
+  /**
+   * Makes a series of changes covering every kind of user record.
+   *
+   * @param user the user to change
+   */
+  private static void makeChanges(User user) {
+    user.addTagType("mood", true);
+    Album trip = user.addAlbum("Trip");
+    Photo beach = new Photo("/photos/beach.jpg", LocalDateTime.of(2024, 7, 1, 10, 30));
+    beach.addTag(new Tag(user.getTagType("location"), "nice"));
+    trip.addPhoto(beach);
+    Photo city = new Photo("/photos/city.jpg", LocalDateTime.of(2024, 7, 2, 9, 0));
+    trip.addPhoto(city);
+    user.getAlbum("Old").addPhoto(city);
+    beach.setCaption("Sunset");
+    city.setDateTaken(LocalDateTime.of(2024, 7, 2, 8, 15, 30, 500));
+    Tag mood = new Tag(user.getTagType("mood"), "calm");
+    mood.getValues().add("happy");
+    beach.addTag(mood);
+    city.addTag(new Tag(user.getTagType("people"), "ann"));
+    city.removeTag(new Tag(user.getTagType("people"), "ann"));
+    user.renameAlbum("Trip", "Summer");
+    user.getAlbum("Old").removePhoto(user.getAlbum("Old").getPhoto("/photos/old.jpg"));
+    user.deleteAlbum("Empty");
+    user.removeTagType("people");
+  }
+
+  /**
+   * Builds the user as it was at its last snapshot.
+   *
+   * @return the user
+   */
+  private static User snapshotUser() {
+    User user = new User("alice");
+    user.addAlbum("Old").addPhoto(new Photo("/photos/old.jpg", LocalDateTime.of(2020, 1, 1, 0, 0)));
+    user.addAlbum("Empty");
+    return user;
+  }
+
+  /**
+   * Records the changes of {@link #makeChanges(User)} to a journal file.
+   *
+   * @param live the user to change, which ends up in the changed state
+   * @return the journal file
+   * @throws IOException if the journal cannot be written
+   */
+  private File recordChanges(User live) throws IOException {
+    ChangeJournal journal = new ChangeJournal();
+    live.setChangeListener(journal);
+    makeChanges(live);
+    File journalFile = new File(dir, "alice.journal");
+    ChangeJournal.append(journalFile, journal.drainUserRecords().get("alice"));
+    return journalFile;
+  }
+
+  @Test
+  void replayRestoresRecordedChanges() throws IOException {
+    User live = snapshotUser();
+    File journalFile = recordChanges(live);
+
+    User restored = snapshotUser();
+    int records = ChangeJournal.replayUser(journalFile, restored);
+    assertTrue(records > 0);
+    assertSameState(live, restored);
+  }
+
+  @Test
+  void replayingAdditionsTwiceSkipsAppliedRecords() throws IOException {
+    ChangeJournal journal = new ChangeJournal();
+    User live = snapshotUser();
+    live.setChangeListener(journal);
+    Album trip = live.addAlbum("Trip");
+    Photo beach = new Photo("/photos/beach.jpg", LocalDateTime.of(2024, 7, 1, 10, 30));
+    trip.addPhoto(beach);
+    live.getAlbum("Old").addPhoto(beach);
+    beach.addTag(new Tag(live.getTagType("location"), "nice"));
+    File journalFile = new File(dir, "alice.journal");
+    ChangeJournal.append(journalFile, journal.drainUserRecords().get("alice"));
+
+    // A crash after the snapshot was rewritten but before its journal was removed
+    User restored = snapshotUser();
+    ChangeJournal.replayUser(journalFile, restored);
+    ChangeJournal.replayUser(journalFile, restored);
+    assertSameState(live, restored);
+    assertEquals(2, restored.getAllPhotos().size());
+  }
+
+  @Test
+  void recordCutShortByCrashIsIgnored() throws IOException {
+    User live = snapshotUser();
+    File journalFile = recordChanges(live);
+    User complete = snapshotUser();
+    int records = ChangeJournal.replayUser(journalFile, complete);
+
+    try (RandomAccessFile file = new RandomAccessFile(journalFile, "rw")) {
+      file.setLength(file.length() - 3);
+    }
+    User restored = snapshotUser();
+    assertEquals(records - 1, ChangeJournal.replayUser(journalFile, restored));
+  }
+
+  @Test
+  void recordsAppendedAfterCutShortRecordSurviveReload() throws IOException {
+    ChangeJournal journal = new ChangeJournal();
+    User live = snapshotUser();
+    live.setChangeListener(journal);
+    live.addAlbum("Trip");
+    File journalFile = new File(dir, "alice.journal");
+    ChangeJournal.append(journalFile, journal.drainUserRecords().get("alice"));
+    try (RandomAccessFile file = new RandomAccessFile(journalFile, "rw")) {
+      file.setLength(file.length() - 3);
+    }
+
+    User reloaded = snapshotUser();
+    assertEquals(0, ChangeJournal.replayUser(journalFile, reloaded));
+    reloaded.setChangeListener(journal);
+    reloaded.addAlbum("Later");
+    ChangeJournal.append(journalFile, journal.drainUserRecords().get("alice"));
+
+    User restored = snapshotUser();
+    assertEquals(1, ChangeJournal.replayUser(journalFile, restored));
+    assertNotNull(restored.getAlbum("Later"));
+    assertNull(restored.getAlbum("Trip"));
+  }
+
+  @Test
+  void captionLongerThanModifiedUtf8AllowsIsReplayed() throws IOException {
+    ChangeJournal journal = new ChangeJournal();
+    User live = snapshotUser();
+    live.setChangeListener(journal);
+    Photo old = live.getAlbum("Old").getPhoto("/photos/old.jpg");
+    old.setCaption("é".repeat(40_000));
+    live.addAlbum("Trip");
+    File journalFile = new File(dir, "alice.journal");
+    ChangeJournal.append(journalFile, journal.drainUserRecords().get("alice"));
+
+    User restored = snapshotUser();
+    assertEquals(2, ChangeJournal.replayUser(journalFile, restored));
+    assertSameState(live, restored);
+  }
+
+  @Test
+  void directoryReplayAddsAndDeletesUsers() throws IOException {
+    ChangeJournal journal = new ChangeJournal();
+    UserList live = new UserList();
+    live.setChangeListener(journal);
+    live.addUser("alice");
+    live.addUser("bob");
+    live.deleteUser("alice");
+    File journalFile = new File(dir, "users.journal");
+    ChangeJournal.append(journalFile, journal.drainDirectoryRecords());
+
+    UserList restored = new UserList();
+    assertEquals(3, ChangeJournal.replayDirectory(journalFile, restored));
+    assertEquals(Set.of("bob"), restored.getAllUsernames());
+  }
+
+  /**
+   * Asserts that two users have the same tag types, albums, photos, captions and tags.
+   *
+   * @param expected the user with the expected state
+   * @param actual   the user to check
+   */
+  private static void assertSameState(User expected, User actual) {
+    assertEquals(expected.getAllTagTypes(), actual.getAllTagTypes());
+    assertEquals(expected.getAlbumNames(), actual.getAlbumNames());
+    for (Album album : expected.getAlbums()) {
+      Album actualAlbum = actual.getAlbum(album.getName());
+      assertEquals(album.getPhotoCount(), actualAlbum.getPhotoCount(), album.getName());
+      for (Photo photo : album.getPhotos()) {
+        Photo actualPhoto = actualAlbum.getPhoto(photo.getPath());
+        assertNotNull(actualPhoto, photo.getPath());
+        assertEquals(photo.getCaption(), actualPhoto.getCaption());
+        assertEquals(photo.getDateTaken(), actualPhoto.getDateTaken());
+        assertEquals(photo.getTags(), actualPhoto.getTags());
+      }
+    }
+  }
+}
@@ -0,0 +1,104 @@
+package app;
+
+import app.model.Photo;
+import app.model.User;
+import app.model.UserList;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for {@link ContentHasher}, the file version cache it shares with
+ * {@link PerceptualHasher}, and the duplicate report built on it.
+ * @author Reuben Thomas, Ryan Zaken
+ */
+class ContentHasherTest {
+
+  /** A folder for the files and the cache of a test. */
+  @TempDir
+  File dir;
+
+  @Test
+  void copiesHaveTheSameDigest() throws Exception {
+    File a = new File(dir, "a.jpg");
+    File b = new File(dir, "b.jpg");
+    File c = new File(dir, "c.jpg");
+    Files.writeString(a.toPath(), "photo");
+    Files.writeString(b.toPath(), "photo");
+    Files.writeString(c.toPath(), "another photo");
+    try (ContentHasher hasher = new ContentHasher(new File(dir, "hashes.cache"), 2)) {
+      Map<String, String> digests = hasher.hashAll(List.of(a.getPath(), b.getPath(), c.getPath(),
+              new File(dir, "missing.jpg").getPath()));
+      assertEquals(3, digests.size());
+      assertEquals(digests.get(a.getPath()), digests.get(b.getPath()));
+      assertNotEquals(digests.get(a.getPath()), digests.get(c.getPath()));
+    }
+  }
+
+  @Test
+  void cachedDigestIsKeptUntilTheFileChanges() throws IOException {
+    File cacheFile = new File(dir, "hashes.cache");
+    File a = new File(dir, "a.jpg");
+    Files.writeString(a.toPath(), "photo");
+    String digest;
+    try (ContentHasher hasher = new ContentHasher(cacheFile, 1)) {
+      digest = hasher.hash(a);
+    }
+    assertTrue(cacheFile.exists());
+
+    // Change the content but not the version, so only a cached digest gives the old value
+    long lastModified = a.lastModified();
+    Files.writeString(a.toPath(), "PHOTO");
+    assertTrue(a.setLastModified(lastModified));
+    try (ContentHasher hasher = new ContentHasher(cacheFile, 1)) {
+      assertEquals(digest, hasher.hash(a));
+      assertTrue(a.setLastModified(lastModified + 1000));
+      assertNotEquals(digest, hasher.hash(a));
+    }
+  }
+
+  @Test
+  void damagedCacheIsIgnored() throws IOException {
+    File cacheFile = new File(dir, "hashes.cache");
+    Files.writeString(cacheFile.toPath(), "not a cache");
+    File a = new File(dir, "a.jpg");
+    Files.writeString(a.toPath(), "photo");
+    try (ContentHasher hasher = new ContentHasher(cacheFile, 1)) {
+      assertEquals(64, hasher.hash(a).length());
+    }
+  }
+
+  @Test
+  void duplicateReportHashesEveryUsersPhotos() throws Exception {
+    File a = new File(dir, "a.jpg");
+    File b = new File(dir, "b.jpg");
+    File c = new File(dir, "c.jpg");
+    Files.writeString(a.toPath(), "photo");
+    Files.writeString(b.toPath(), "photo");
+    Files.writeString(c.toPath(), "another photo");
+    UserList userList = new UserList();
+    User alice = userList.addUser("alice");
+    User bob = userList.addUser("bob");
+    LocalDateTime taken = LocalDateTime.of(2024, 7, 1, 10, 30);
+    alice.addAlbum("Trip").addPhoto(new Photo(a.getPath(), taken));
+    bob.addAlbum("Trip").addPhoto(new Photo(b.getPath(), taken));
+    bob.getAlbum("Trip").addPhoto(new Photo(c.getPath(), taken));
+
+    try (ContentHasher hasher = new ContentHasher(new File(dir, "hashes.cache"), 2)) {
+      Map<String, Map<String, List<Photo>>> duplicates = userList.getDuplicatePhotos(hasher::hashAll);
+      assertEquals(1, duplicates.size());
+      Map<String, List<Photo>> byUser = duplicates.get(hasher.hash(a));
+      assertEquals(Set.of("alice", "bob"), byUser.keySet());
+      assertEquals(b.getPath(), byUser.get("bob").get(0).getPath());
+    }
+  }
+}
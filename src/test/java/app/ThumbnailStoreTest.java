@@ -0,0 +1,202 @@
+package app;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for {@link ThumbnailStore}.
+ * @author Reuben Thomas, Ryan Zaken
+ */
+class ThumbnailStoreTest {
+
+  /** A folder for the store of a test. */
+  @TempDir
+  File dir;
+
+  /** A folder for the original files of a test. */
+  @TempDir
+  File originals;
+
+  /**
+   * Creates an original file.
+   *
+   * @param name the file name
+   * @return the file
+   * @throws IOException if the file cannot be written
+   */
+  private File original(String name) throws IOException {
+    File file = new File(originals, name);
+    Files.writeString(file.toPath(), name);
+    return file;
+  }
+
+  /**
+   * Makes distinct thumbnail bytes for a photo.
+   *
+   * @param seed   the seed of the bytes
+   * @param length the number of bytes
+   * @return the bytes
+   */
+  private static byte[] thumbnail(int seed, int length) {
+    byte[] bytes = new byte[length];
+    new Random(seed).nextBytes(bytes);
+    return bytes;
+  }
+
+  /**
+   * Stores a thumbnail for an original file.
+   *
+   * @param store   the store
+   * @param file    the original file
+   * @param encoded the thumbnail
+   * @throws IOException if the store cannot be written
+   */
+  private static void put(ThumbnailStore store, File file, byte[] encoded) throws IOException {
+    store.put(file.getPath(), file.length(), file.lastModified(), encoded);
+  }
+
+  @Test
+  void thumbnailsSurviveReopening() throws IOException {
+    File a = original("a.jpg");
+    File b = original("b.jpg");
+    try (ThumbnailStore store = new ThumbnailStore(dir, 50)) {
+      put(store, a, thumbnail(1, 500));
+      put(store, b, thumbnail(2, 700));
+    }
+    try (ThumbnailStore store = new ThumbnailStore(dir, 50)) {
+      assertArrayEquals(thumbnail(1, 500), store.get(a));
+      assertArrayEquals(thumbnail(2, 700), store.get(b));
+    }
+  }
+
+  @Test
+  void changedOriginalIsStale() throws IOException {
+    File a = original("a.jpg");
+    try (ThumbnailStore store = new ThumbnailStore(dir, 50)) {
+      put(store, a, thumbnail(1, 500));
+      Files.writeString(a.toPath(), "a longer version of the photo");
+      assertNull(store.get(a));
+    }
+  }
+
+  @Test
+  void thumbnailsStraddlingMapWindowsAreRead() throws IOException {
+    List<File> files = new ArrayList<>();
+    try (ThumbnailStore store = new ThumbnailStore(dir, 50, 1000)) {
+      for (int i = 0; i < 20; i++) {
+        File file = original(i + ".jpg");
+        files.add(file);
+        put(store, file, thumbnail(i, 150 + 97 * i));
+        // Read as the pack grows, so the last window is remapped when it is too short
+        assertArrayEquals(thumbnail(i, 150 + 97 * i), store.get(file));
+      }
+      for (int i = 0; i < files.size(); i++) {
+        assertArrayEquals(thumbnail(i, 150 + 97 * i), store.get(files.get(i)));
+      }
+    }
+  }
+
+  @Test
+  void compactionKeepsLiveThumbnailsAndDropsOldPack() throws IOException {
+    File a = original("a.jpg");
+    File b = original("b.jpg");
+    try (ThumbnailStore store = new ThumbnailStore(dir, 50)) {
+      // Overwrite a thumbnail until the stale bytes exceed the compaction threshold
+      for (int i = 0; i < 12; i++) {
+        put(store, a, thumbnail(i, 100_000));
+      }
+      put(store, b, thumbnail(100, 800));
+    }
+    long packBytesBefore = packFiles().get(0).length();
+    try (ThumbnailStore store = new ThumbnailStore(dir, 50)) {
+      assertArrayEquals(thumbnail(11, 100_000), store.get(a));
+      assertArrayEquals(thumbnail(100, 800), store.get(b));
+    }
+    List<File> packs = packFiles();
+    assertEquals(1, packs.size(), packs.toString());
+    assertEquals(100_800, packs.get(0).length());
+    assertTrue(packs.get(0).length() < packBytesBefore);
+  }
+
+  @Test
+  void compactionCutShortByCrashKeepsOldPack() throws IOException {
+    File a = original("a.jpg");
+    try (ThumbnailStore store = new ThumbnailStore(dir, 50)) {
+      put(store, a, thumbnail(1, 5000));
+    }
+    File oldPack = packFiles().get(0);
+    // A crash after the next generation's pack was written but before the index was replaced
+    File newPack = new File(dir, oldPack.getName().replaceFirst("\\.\\d+\\.", ".99."));
+    Files.write(newPack.toPath(), thumbnail(2, 5000));
+    try (ThumbnailStore store = new ThumbnailStore(dir, 50)) {
+      assertArrayEquals(thumbnail(1, 5000), store.get(a));
+    }
+    assertEquals(List.of(oldPack), packFiles());
+  }
+
+  @Test
+  void entriesAppendedAfterEntryCutShortByCrashSurviveReopening() throws IOException {
+    File a = original("a.jpg");
+    File b = original("b.jpg");
+    File c = original("c.jpg");
+    try (ThumbnailStore store = new ThumbnailStore(dir, 50)) {
+      put(store, a, thumbnail(1, 500));
+      put(store, b, thumbnail(2, 700));
+    }
+    try (RandomAccessFile index = new RandomAccessFile(new File(dir, "thumbnails.idx"), "rw")) {
+      index.setLength(index.length() - 3);
+    }
+    try (ThumbnailStore store = new ThumbnailStore(dir, 50)) {
+      assertArrayEquals(thumbnail(1, 500), store.get(a));
+      assertNull(store.get(b));
+      put(store, c, thumbnail(3, 900));
+    }
+    try (ThumbnailStore store = new ThumbnailStore(dir, 50)) {
+      assertArrayEquals(thumbnail(1, 500), store.get(a));
+      assertArrayEquals(thumbnail(3, 900), store.get(c));
+    }
+  }
+
+  @Test
+  void indexOfAnotherPackIsNeverServed() throws IOException {
+    File a = original("a.jpg");
+    try (ThumbnailStore store = new ThumbnailStore(dir, 50)) {
+      put(store, a, thumbnail(1, 5000));
+    }
+    File index = new File(dir, "thumbnails.idx");
+    File savedIndex = new File(originals, "saved.idx");
+    Files.copy(index.toPath(), savedIndex.toPath());
+    // Start again from scratch, then put back the index of the first pack
+    Files.delete(index.toPath());
+    try (ThumbnailStore store = new ThumbnailStore(dir, 50)) {
+      assertNull(store.get(a));
+      put(store, a, thumbnail(2, 5000));
+    }
+    Files.copy(savedIndex.toPath(), index.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    try (ThumbnailStore store = new ThumbnailStore(dir, 50)) {
+      byte[] encoded = store.get(a);
+      assertFalse(encoded != null && Arrays.equals(thumbnail(2, 5000), encoded));
+    }
+  }
+
+  /**
+   * Lists the pack files in the store folder.
+   *
+   * @return the pack files, sorted by name
+   */
+  private List<File> packFiles() {
+    File[] files = dir.listFiles((d, name) -> name.endsWith(".pack"));
+    List<File> packs = new ArrayList<>(Arrays.asList(files));
+    packs.sort(Comparator.comparing(File::getName));
+    return packs;
+  }
+}
@@ -0,0 +1,89 @@
+package app.model;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for {@link BkTree}: searches must find exactly the photos a comparison with every
+ * hash finds.
+ * @author Reuben Thomas, Ryan Zaken
+ */
+class BkTreeTest {
+
+  /**
+   * Makes a photo without reading a file.
+   *
+   * @param i the number of the photo
+   * @return the photo
+   */
+  private static Photo photo(int i) {
+    return new Photo("/photos/" + i + ".jpg", LocalDateTime.of(2024, 1, 1, 0, 0));
+  }
+
+  @Test
+  void searchMatchesBruteForce() {
+    Random random = new Random(20);
+    BkTree tree = new BkTree();
+    Map<Photo, Long> hashes = new LinkedHashMap<>();
+    long[] bursts = new long[20];
+    for (int i = 0; i < bursts.length; i++) {
+      bursts[i] = random.nextLong();
+    }
+    for (int i = 0; i < 2000; i++) {
+      // Shots of a few scenes, a few bits apart, as near-duplicates are
+      long hash = bursts[random.nextInt(bursts.length)];
+      for (int flips = random.nextInt(8); flips > 0; flips--) {
+        hash ^= 1L << random.nextInt(64);
+      }
+      Photo photo = photo(i);
+      hashes.put(photo, hash);
+      tree.add(hash, photo);
+    }
+    for (int query = 0; query < 50; query++) {
+      long hash = query % 2 == 0 ? bursts[query % bursts.length] : random.nextLong();
+      for (int maxDistance : new int[] {0, 3, 10}) {
+        Set<Photo> expected = new HashSet<>();
+        for (Map.Entry<Photo, Long> entry : hashes.entrySet()) {
+          if (Long.bitCount(entry.getValue() ^ hash) <= maxDistance) expected.add(entry.getKey());
+        }
+        List<BkTree.Match> matches = tree.search(hash, maxDistance);
+        Set<Photo> found = new HashSet<>();
+        int previous = 0;
+        for (BkTree.Match match : matches) {
+          assertEquals(Long.bitCount(hashes.get(match.photo()) ^ hash), match.distance());
+          assertTrue(match.distance() >= previous, "Matches are not nearest first");
+          previous = match.distance();
+          found.add(match.photo());
+        }
+        assertEquals(expected.size(), matches.size());
+        assertEquals(expected, found);
+      }
+    }
+  }
+
+  @Test
+  void removedPhotoIsNotFoundButRoutesToItsChildren() {
+    BkTree tree = new BkTree();
+    Photo root = photo(0);
+    Photo near = photo(1);
+    Photo same = photo(2);
+    tree.add(0L, root);
+    tree.add(0b11L, near);
+    tree.add(0L, same);
+    tree.remove(0L, root);
+    tree.remove(0L, root);
+
+    assertEquals(List.of(same), tree.search(0L, 0).stream().map(BkTree.Match::photo).toList());
+    tree.remove(0L, same);
+    assertEquals(List.of(near), tree.search(0b1L, 1).stream().map(BkTree.Match::photo).toList());
+  }
+
+  @Test
+  void emptyTreeFindsNothing() {
+    assertTrue(new BkTree().search(42L, 64).isEmpty());
+  }
+}
@@ -0,0 +1,119 @@
+package app.model;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for {@link CaptionIndex}: phrase searches must find the photos whose captions hold
+ * the words one after another, and follow captions as they change.
+ * @author Reuben Thomas, Ryan Zaken
+ */
+class CaptionIndexTest {
+
+  /**
+   * Adds a captioned photo to an album.
+   *
+   * @param album   the album
+   * @param i       the number of the photo
+   * @param caption the caption
+   * @return the photo
+   */
+  private static Photo addPhoto(Album album, int i, String caption) {
+    Photo photo = new Photo("/photos/" + i + ".jpg", LocalDateTime.of(2024, 1, 1, 0, 0).plusMinutes(i));
+    photo.setCaption(caption);
+    album.addPhoto(photo);
+    return photo;
+  }
+
+  /**
+   * Searches for the photos whose captions hold a phrase.
+   *
+   * @param user   the user
+   * @param phrase the phrase
+   * @return the paths of the photos found
+   */
+  private static Set<String> search(User user, String phrase) {
+    Set<String> paths = new HashSet<>();
+    for (Photo photo : user.search(PhotoQuery.captionPhrase(phrase))) {
+      paths.add(photo.getPath());
+    }
+    return paths;
+  }
+
+  @Test
+  void tokenizeFoldsCaseAndDropsPunctuation() {
+    assertEquals(List.of("sunset", "beach", "2024"), CaptionIndex.tokenize("  Sunset,beach! (2024)"));
+    assertEquals(List.of(), CaptionIndex.tokenize(null));
+    assertEquals(List.of(), CaptionIndex.tokenize("-- !"));
+  }
+
+  @Test
+  void phraseNeedsWordsInOrder() {
+    User user = new User("alice");
+    Album album = user.addAlbum("Trip");
+    addPhoto(album, 0, "Sunset at the beach");
+    addPhoto(album, 1, "Beach at sunset");
+    addPhoto(album, 2, "The sunset, the beach and the sunset beach");
+    addPhoto(album, 3, "No words of note");
+
+    assertEquals(Set.of("/photos/2.jpg"), search(user, "sunset beach"));
+    assertEquals(Set.of("/photos/1.jpg"), search(user, "BEACH, at"));
+    assertEquals(Set.of("/photos/0.jpg", "/photos/1.jpg", "/photos/2.jpg"), search(user, "sunset"));
+    assertEquals(Set.of(), search(user, "sunset sunset"));
+    assertEquals(Set.of(), search(user, "mountain"));
+    assertThrows(IllegalArgumentException.class, () -> PhotoQuery.captionPhrase(" ,; "));
+  }
+
+  @Test
+  void phrasesMatchBruteForce() {
+    String[] vocabulary = {"red", "boat", "sea", "dog", "red", "sky"};
+    Random random = new Random(25);
+    User user = new User("alice");
+    Album album = user.addAlbum("Library");
+    List<Photo> photos = new ArrayList<>();
+    for (int i = 0; i < 300; i++) {
+      StringBuilder caption = new StringBuilder();
+      for (int w = random.nextInt(8); w > 0; w--) {
+        caption.append(vocabulary[random.nextInt(vocabulary.length)]).append(random.nextBoolean() ? " " : ", ");
+      }
+      photos.add(addPhoto(album, i, caption.toString()));
+    }
+    for (int query = 0; query < 100; query++) {
+      List<String> words = new ArrayList<>();
+      for (int w = 1 + random.nextInt(3); w > 0; w--) {
+        words.add(vocabulary[random.nextInt(vocabulary.length)]);
+      }
+      Set<String> expected = new HashSet<>();
+      for (Photo photo : photos) {
+        if (Collections.indexOfSubList(CaptionIndex.tokenize(photo.getCaption()), words) >= 0) {
+          expected.add(photo.getPath());
+        }
+      }
+      assertEquals(expected, search(user, String.join(" ", words)), words.toString());
+    }
+  }
+
+  @Test
+  void indexFollowsCaptionsAndAlbums() {
+    User user = new User("alice");
+    Album trip = user.addAlbum("Trip");
+    Album best = user.addAlbum("Best");
+    Photo photo = addPhoto(trip, 0, "Old harbour");
+    best.addPhoto(photo);
+    assertEquals(Set.of("/photos/0.jpg"), search(user, "old harbour"));
+
+    photo.setCaption("New harbour");
+    assertEquals(Set.of(), search(user, "old harbour"));
+    assertEquals(Set.of("/photos/0.jpg"), search(user, "new harbour"));
+
+    // The photo stays indexed while it is in any album
+    trip.removePhoto(photo);
+    assertEquals(Set.of("/photos/0.jpg"), search(user, "harbour"));
+    best.removePhoto(photo);
+    assertEquals(Set.of(), search(user, "harbour"));
+  }
+}
@@ -0,0 +1,110 @@
+package app.model;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.LocalDateTime;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for {@link Exif}: offsets read from a file must never make parsing fail.
+ * @author Reuben Thomas, Ryan Zaken
+ */
+class ExifTest {
+
+  /** A folder for the photo files of a test. */
+  @TempDir
+  File dir;
+
+  /**
+   * Writes a JPEG file holding only an EXIF segment.
+   *
+   * @param name the file name
+   * @param tiff the TIFF data of the EXIF segment
+   * @return the file
+   * @throws IOException if the file cannot be written
+   */
+  private File writeJpeg(String name, byte[] tiff) throws IOException {
+    ByteBuffer jpeg = ByteBuffer.allocate(12 + tiff.length);
+    jpeg.putShort((short) 0xFFD8).putShort((short) 0xFFE1).putShort((short) (8 + tiff.length));
+    jpeg.put("Exif\0\0".getBytes(StandardCharsets.US_ASCII)).put(tiff);
+    File file = new File(dir, name);
+    Files.write(file.toPath(), jpeg.array());
+    return file;
+  }
+
+  /**
+   * Starts big-endian TIFF data with its header.
+   *
+   * @param length the length of the TIFF data
+   * @param ifd0   the offset of IFD0
+   * @return the TIFF data, positioned after the header
+   */
+  private static ByteBuffer tiff(int length, int ifd0) {
+    ByteBuffer tiff = ByteBuffer.allocate(length);
+    tiff.putShort((short) 0x4D4D).putShort((short) 42).putInt(ifd0);
+    return tiff;
+  }
+
+  /**
+   * Puts an IFD entry.
+   *
+   * @param tiff  the TIFF data
+   * @param tag   the tag
+   * @param type  the type of the value
+   * @param count the number of values
+   * @param value the value, or the offset of the values
+   */
+  private static void putEntry(ByteBuffer tiff, int tag, int type, int count, int value) {
+    tiff.putShort((short) tag).putShort((short) type).putInt(count).putInt(value);
+  }
+
+  @Test
+  void ifdOffsetNearIntegerLimitIsIgnored() throws IOException {
+    File file = writeJpeg("huge-ifd.jpg", tiff(28, 0x7FFFFFFF).array());
+    assertEquals(40, file.length());
+
+    Exif exif = Exif.readQuietly(file);
+    assertNotNull(exif);
+    assertNull(exif.getDateTimeOriginal());
+    Photo photo = assertDoesNotThrow(() -> new Photo(file.getPath()));
+    assertNotNull(photo.getDateTaken());
+  }
+
+  @Test
+  void dateAndThumbnailOffsetsNearIntegerLimitAreIgnored() throws IOException {
+    ByteBuffer tiff = tiff(64, 8);
+    tiff.putShort((short) 1);
+    putEntry(tiff, 0x9003, 2, 20, 0x7FFFFFF0);
+    tiff.putInt(26);
+    tiff.putShort((short) 2);
+    putEntry(tiff, 0x0201, 4, 1, 0x7FFFFF00);
+    putEntry(tiff, 0x0202, 4, 1, 0x1000);
+    tiff.putInt(0);
+    File file = writeJpeg("huge-values.jpg", tiff.array());
+
+    Exif exif = Exif.readQuietly(file);
+    assertNotNull(exif);
+    assertNull(exif.getDateTimeOriginal());
+    assertNull(exif.getThumbnail());
+  }
+
+  @Test
+  void dateWithinTheSegmentIsRead() throws IOException {
+    ByteBuffer tiff = tiff(48, 8);
+    tiff.putShort((short) 1);
+    putEntry(tiff, 0x9003, 2, 20, 26);
+    tiff.putInt(0);
+    tiff.put("2024:07:01 10:30:00\0".getBytes(StandardCharsets.US_ASCII));
+    File file = writeJpeg("dated.jpg", tiff.array());
+
+    assertEquals(LocalDateTime.of(2024, 7, 1, 10, 30), Exif.readQuietly(file).getDateTimeOriginal());
+    assertEquals(LocalDateTime.of(2024, 7, 1, 10, 30), new Photo(file.getPath()).getDateTaken());
+  }
+}
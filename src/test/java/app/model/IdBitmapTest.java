@@ -0,0 +1,146 @@
+package app.model;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for {@link IdBitmap}: every operation must agree with a sorted set of the same IDs,
+ * across array chunks, bitmap chunks and the conversions between them.
+ * @author Reuben Thomas, Ryan Zaken
+ */
+class IdBitmapTest {
+
+  /**
+   * Builds random IDs over a few chunks, some sparse enough to stay arrays and some dense
+   * enough to become bitmaps.
+   *
+   * @param random the source of the IDs
+   * @return the IDs
+   */
+  private static TreeSet<Integer> randomIds(Random random) {
+    TreeSet<Integer> ids = new TreeSet<>();
+    for (int chunk = 0; chunk < 6; chunk++) {
+      int base = random.nextInt(40) << 16;
+      int count = random.nextBoolean() ? random.nextInt(IdBitmap.ARRAY_MAX / 4) : IdBitmap.ARRAY_MAX + random.nextInt(20_000);
+      for (int i = 0; i < count; i++) {
+        ids.add(base + random.nextInt(1 << 16));
+      }
+    }
+    return ids;
+  }
+
+  /**
+   * Builds a bitmap by adding IDs one at a time, in random order.
+   *
+   * @param ids    the IDs
+   * @param random the source of the order
+   * @return the bitmap
+   */
+  private static IdBitmap added(Set<Integer> ids, Random random) {
+    List<Integer> shuffled = new ArrayList<>(ids);
+    Collections.shuffle(shuffled, random);
+    IdBitmap bitmap = new IdBitmap();
+    shuffled.forEach(bitmap::add);
+    return bitmap;
+  }
+
+  /**
+   * Lists the IDs of a bitmap.
+   *
+   * @param bitmap the bitmap
+   * @return the IDs, in the order the bitmap gives them
+   */
+  private static List<Integer> toList(IdBitmap bitmap) {
+    List<Integer> ids = new ArrayList<>();
+    bitmap.forEach(ids::add);
+    return ids;
+  }
+
+  /**
+   * Asserts that a bitmap holds exactly a set of IDs, in ascending order.
+   *
+   * @param expected the IDs
+   * @param actual   the bitmap
+   */
+  private static void assertIds(TreeSet<Integer> expected, IdBitmap actual) {
+    assertEquals(new ArrayList<>(expected), toList(actual));
+    assertEquals(expected.size(), actual.cardinality());
+    assertEquals(expected.isEmpty(), actual.isEmpty());
+  }
+
+  @Test
+  void setAlgebraMatchesSortedSets() {
+    Random random = new Random(22);
+    for (int round = 0; round < 10; round++) {
+      TreeSet<Integer> a = randomIds(random);
+      TreeSet<Integer> b = randomIds(random);
+      IdBitmap bitmapA = added(a, random);
+      int[] idsB = b.stream().mapToInt(Integer::intValue).toArray();
+      IdBitmap bitmapB = IdBitmap.of(idsB, idsB.length);
+      assertIds(a, bitmapA);
+      assertIds(b, bitmapB);
+
+      TreeSet<Integer> and = new TreeSet<>(a);
+      and.retainAll(b);
+      TreeSet<Integer> or = new TreeSet<>(a);
+      or.addAll(b);
+      TreeSet<Integer> andNot = new TreeSet<>(a);
+      andNot.removeAll(b);
+      assertIds(and, IdBitmap.and(bitmapA, bitmapB));
+      assertIds(and, IdBitmap.and(bitmapB, bitmapA));
+      assertIds(or, IdBitmap.or(bitmapA, bitmapB));
+      assertIds(andNot, IdBitmap.andNot(bitmapA, bitmapB));
+      // The operands are left alone
+      assertIds(a, bitmapA);
+      assertIds(b, bitmapB);
+    }
+  }
+
+  @Test
+  void chunkSurvivesGrowingPastAndShrinkingBelowTheArrayLimit() {
+    TreeSet<Integer> expected = new TreeSet<>();
+    IdBitmap bitmap = new IdBitmap();
+    int base = 3 << 16;
+    for (int i = 0; i < IdBitmap.ARRAY_MAX + 10; i++) {
+      bitmap.add(base + i * 7 % (1 << 16));
+      expected.add(base + i * 7 % (1 << 16));
+    }
+    assertIds(expected, bitmap);
+    for (int i = 0; i < 100; i++) {
+      int id = base + i * 7;
+      assertTrue(bitmap.remove(id));
+      assertFalse(bitmap.remove(id));
+      expected.remove(id);
+    }
+    assertIds(expected, bitmap);
+    for (int id : expected) {
+      assertTrue(bitmap.contains(id));
+    }
+    assertFalse(bitmap.contains(base + 7));
+    assertFalse(bitmap.contains(base + (1 << 16)));
+  }
+
+  @Test
+  void removingEveryIdEmptiesTheBitmap() {
+    Random random = new Random(7);
+    TreeSet<Integer> ids = randomIds(random);
+    IdBitmap bitmap = added(ids, random);
+    for (int id : ids) {
+      assertTrue(bitmap.remove(id));
+    }
+    assertIds(new TreeSet<>(), bitmap);
+    assertFalse(bitmap.remove(ids.first()));
+    bitmap.add(ids.last());
+    assertIds(new TreeSet<>(Set.of(ids.last())), bitmap);
+  }
+
+  @Test
+  void idsGivenWithDuplicatesAreBuiltOnce() {
+    // The last ID is beyond the count taken
+    int[] ids = {5, 70_000, 5, 1 << 20, 70_000, 0};
+    assertIds(new TreeSet<>(List.of(5, 70_000, 1 << 20)), IdBitmap.of(ids, 5));
+  }
+}
@@ -0,0 +1,308 @@
+package app.model;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.Callable;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for {@link ModelCodec}.
+ * @author Reuben Thomas, Ryan Zaken
+ */
+class ModelCodecTest {
+
+  /**
+   * The number of photos in the synthetic catalog of the comparison with Java serialization.
+   * Run with {@code -Dcodec.benchmark.photos=1000000} for the full-size catalog.
+   */
+  private static final int BENCHMARK_PHOTOS = Integer.getInteger("codec.benchmark.photos", 20_000);
+
+  /**
+   * Builds a user with shared photos, captions and single- and multi-value tags.
+   *
+   * @return the user
+   */
+  private static User sampleUser() {
+    User user = new User("alice");
+    user.addTagType("mood", false);
+    Album trip = user.addAlbum("Trip");
+    Album best = user.addAlbum("Best of");
+    Photo beach = new Photo("/photos/trip/beach.jpg", LocalDateTime.of(2024, 7, 1, 10, 30, 15, 500));
+    beach.setCaption("Sunset on the beach");
+    beach.addTag(new Tag(user.getTagType("location"), "Nice"));
+    Tag people = new Tag(user.getTagType("people"), "Ann");
+    people.getValues().add("bob");
+    beach.addTag(people);
+    Photo city = new Photo("/photos/trip/city.jpg", LocalDateTime.of(2024, 7, 2, 9, 0));
+    city.addTag(new Tag(user.getTagType("mood"), "busy"));
+    trip.addPhoto(beach);
+    trip.addPhoto(city);
+    best.addPhoto(beach);
+    return user;
+  }
+
+  @Test
+  void userSurvivesRoundTrip() throws IOException {
+    User user = sampleUser();
+    byte[] data = ModelCodec.encodeUser(user);
+    assertTrue(ModelCodec.isEncoded(data));
+
+    User decoded = ModelCodec.decodeUser(data);
+    assertEquals("alice", decoded.getUsername());
+    assertEquals(user.getAllTagTypes(), decoded.getAllTagTypes());
+    assertEquals(user.getAlbumNames(), decoded.getAlbumNames());
+    for (Album album : user.getAlbums()) {
+      Album decodedAlbum = decoded.getAlbum(album.getName());
+      assertEquals(album.getPhotoCount(), decodedAlbum.getPhotoCount());
+      for (Photo photo : album.getPhotos()) {
+        Photo decodedPhoto = decodedAlbum.getPhoto(photo.getPath());
+        assertNotNull(decodedPhoto, photo.getPath());
+        assertEquals(photo.getCaption(), decodedPhoto.getCaption());
+        assertEquals(photo.getDateTaken(), decodedPhoto.getDateTaken());
+        assertEquals(photo.getTags(), decodedPhoto.getTags());
+      }
+    }
+    // A photo in two albums is still a single instance after decoding
+    assertSame(decoded.getAlbum("Trip").getPhoto("/photos/trip/beach.jpg"),
+            decoded.getAlbum("Best of").getPhoto("/photos/trip/beach.jpg"));
+  }
+
+  @Test
+  void usernamesSurviveRoundTrip() throws IOException {
+    List<String> usernames = List.of("admin", "stock", "ünïcode");
+    assertEquals(usernames, ModelCodec.decodeUsernames(ModelCodec.encodeUsernames(usernames)));
+  }
+
+  @Test
+  void truncatedOrCorruptDataFailsWithIOException() {
+    byte[] data = ModelCodec.encodeUser(sampleUser());
+    for (int length = 0; length < data.length; length++) {
+      byte[] truncated = Arrays.copyOf(data, length);
+      assertDecodesOrThrowsIOException(truncated);
+    }
+    Random random = new Random(42);
+    for (int round = 0; round < 2000; round++) {
+      byte[] corrupt = data.clone();
+      int position = 4 + random.nextInt(corrupt.length - 4);
+      corrupt[position] = (byte) random.nextInt(256);
+      assertDecodesOrThrowsIOException(corrupt);
+    }
+  }
+
+  @Test
+  void corruptStringTableFailsWithIOException() {
+    // A string table claiming far more strings than there are bytes
+    Bytes bytes = new Bytes().header().varInt(Integer.MAX_VALUE);
+    assertThrows(IOException.class, () -> ModelCodec.decodeUser(bytes.toByteArray()));
+    // A string sharing a longer prefix than the previous string has
+    Bytes prefix = new Bytes().header().varInt(1).varInt(5).string("x");
+    assertThrows(IOException.class, () -> ModelCodec.decodeUser(prefix.toByteArray()));
+  }
+
+  @Test
+  void tagWithoutValuesIsRejected() {
+    Bytes bytes = new Bytes().header()
+            .varInt(3).varInt(0).string("u").varInt(0).string("location").varInt(0).string("/p.jpg")
+            .varInt(1)                        // username
+            .varInt(1).varInt(2).varInt(0)    // one tag type
+            .varInt(1)                        // one photo
+            .varInt(3).varInt(0).varInt(0).varInt(0)
+            .varInt(1).varInt(2).varInt(0)    // one tag of type "location"...
+            .varInt(0)                        // ...with no values
+            .varInt(0);                       // no albums
+    IOException e = assertThrows(IOException.class, () -> ModelCodec.decodeUser(bytes.toByteArray()));
+    assertTrue(e.getMessage().contains("no values"), e.getMessage());
+  }
+
+  @Test
+  void encodingIsSmallerThanJavaSerialization() throws Exception {
+    User user = syntheticCatalog(BENCHMARK_PHOTOS);
+    byte[] serialized = serialize(user);
+    byte[] encoded = ModelCodec.encodeUser(user);
+    User decoded = ModelCodec.decodeUser(encoded);
+    assertEquals(user.getAllPhotos().size(), deserialize(serialized).getAllPhotos().size());
+    assertEquals(user.getAllPhotos().size(), decoded.getAllPhotos().size());
+
+    long serializeNanos = fastest(() -> serialize(user));
+    long deserializeNanos = fastest(() -> deserialize(serialized));
+    long encodeNanos = fastest(() -> ModelCodec.encodeUser(user));
+    long decodeNanos = fastest(() -> ModelCodec.decodeUser(encoded));
+    // Both formats rebuild the search indexes once the photos are read, which is the same work
+    long indexNanos = fastest(() -> {
+      decoded.relink();
+      return decoded;
+    });
+    System.out.printf("%d photos: serialization %d bytes, save %d ms, load %d ms; codec %d bytes, save %d ms, "
+                    + "load %d ms; index rebuild %d ms of each load (%.1fx smaller, %.1fx faster save, "
+                    + "%.1fx faster load, %.1fx without the index rebuild)%n",
+            BENCHMARK_PHOTOS, serialized.length, serializeNanos / 1_000_000, deserializeNanos / 1_000_000,
+            encoded.length, encodeNanos / 1_000_000, decodeNanos / 1_000_000, indexNanos / 1_000_000,
+            (double) serialized.length / encoded.length, (double) serializeNanos / encodeNanos,
+            (double) deserializeNanos / decodeNanos,
+            (double) Math.max(1, deserializeNanos - indexNanos) / Math.max(1, decodeNanos - indexNanos));
+    assertTrue(serialized.length >= 3L * encoded.length,
+            "Encoded catalog is only " + (double) serialized.length / encoded.length + "x smaller");
+  }
+
+  /**
+   * Times a task over a few rounds, so the first rounds warm up the JIT compiler.
+   *
+   * @param task the task
+   * @return the time of the fastest round, in nanoseconds
+   * @throws Exception if the task fails
+   */
+  private static long fastest(Callable<?> task) throws Exception {
+    long fastest = Long.MAX_VALUE;
+    for (int round = 0; round < 5; round++) {
+      long start = System.nanoTime();
+      task.call();
+      fastest = Math.min(fastest, System.nanoTime() - start);
+    }
+    return fastest;
+  }
+
+  /**
+   * Builds a catalog laid out like a real library: photos in dated folders, a few albums each,
+   * some captioned and most tagged with a place and people.
+   *
+   * @param photoCount the number of photos
+   * @return the user owning the catalog
+   */
+  private static User syntheticCatalog(int photoCount) {
+    Random random = new Random(3);
+    String[] places = {"Paris", "Rome", "Lisbon", "Home", "Beach house", "Mountains", "Berlin", "Office"};
+    String[] people = {"ann", "bob", "cara", "dan", "eve", "finn", "gus", "hana", "ivy", "jon"};
+    String[] words = {"sunset", "dinner", "birthday", "hike", "beach", "snow", "party", "city", "dog", "view"};
+    User user = new User("alice");
+    List<Album> albums = new ArrayList<>();
+    for (int i = 0; i < Math.max(1, photoCount / 2000); i++) {
+      albums.add(user.addAlbum("Album " + i));
+    }
+    Album favourites = user.addAlbum("Favourites");
+    LocalDateTime start = LocalDateTime.of(2010, 1, 1, 0, 0);
+    for (int i = 0; i < photoCount; i++) {
+      LocalDateTime taken = start.plusMinutes(i * 7L + random.nextInt(5)).plusSeconds(random.nextInt(60));
+      String path = String.format("/home/alice/Pictures/%d/%02d-%02d/IMG_%06d.jpg",
+              taken.getYear(), taken.getMonthValue(), taken.getDayOfMonth(), i);
+      Photo photo = new Photo(path, taken);
+      if (random.nextInt(10) < 3) {
+        photo.setCaption(words[random.nextInt(words.length)] + " with " + people[random.nextInt(people.length)]);
+      }
+      if (random.nextInt(10) < 8) photo.addTag(new Tag(user.getTagType("location"), places[random.nextInt(places.length)]));
+      if (random.nextBoolean()) {
+        Tag tagged = new Tag(user.getTagType("people"), people[random.nextInt(people.length)]);
+        for (int p = random.nextInt(3); p > 0; p--) {
+          String person = people[random.nextInt(people.length)];
+          if (!tagged.getValues().contains(person)) tagged.getValues().add(person);
+        }
+        photo.addTag(tagged);
+      }
+      albums.get(i * albums.size() / photoCount).addPhoto(photo);
+      if (random.nextInt(20) == 0) favourites.addPhoto(photo);
+    }
+    return user;
+  }
+
+  /**
+   * Writes a user with Java serialization, the format the codec replaced.
+   *
+   * @param user the user
+   * @return the serialized user
+   * @throws IOException if the user cannot be serialized
+   */
+  private static byte[] serialize(User user) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+      out.writeObject(user);
+    }
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Reads a user written with Java serialization.
+   *
+   * @param data the serialized user
+   * @return the user
+   * @throws Exception if the user cannot be deserialized
+   */
+  private static User deserialize(byte[] data) throws Exception {
+    try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data))) {
+      return (User) in.readObject();
+    }
+  }
+
+  /**
+   * Decodes data, failing the test if decoding throws anything but an IOException.
+   *
+   * @param data the data to decode
+   */
+  private static void assertDecodesOrThrowsIOException(byte[] data) {
+    try {
+      ModelCodec.decodeUser(data);
+    } catch (IOException expected) {
+      // Corrupt data must be reported this way, so callers can fall back to other formats
+    } catch (RuntimeException e) {
+      fail("Decoding corrupt data threw " + e, e);
+    }
+  }
+
+  /**
+   * Writes data in the codec's format by hand.
+   */
+  private static class Bytes {
+    /** The bytes written. */
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    /**
+     * Writes the magic bytes and version 1.
+     *
+     * @return this writer
+     */
+    Bytes header() {
+      out.writeBytes(new byte[] {'P', 'H', 'O', 'T'});
+      return varInt(1);
+    }
+
+    /**
+     * Writes a varint.
+     *
+     * @param value the value
+     * @return this writer
+     */
+    Bytes varInt(int value) {
+      while ((value & ~0x7F) != 0) {
+        out.write((value & 0x7F) | 0x80);
+        value >>>= 7;
+      }
+      out.write(value);
+      return this;
+    }
+
+    /**
+     * Writes a string as its UTF-8 length and bytes.
+     *
+     * @param s the string
+     * @return this writer
+     */
+    Bytes string(String s) {
+      byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+      varInt(bytes.length);
+      out.writeBytes(bytes);
+      return this;
+    }
+
+    /**
+     * Gets the bytes written.
+     *
+     * @return the bytes
+     */
+    byte[] toByteArray() {
+      return out.toByteArray();
+    }
+  }
+}
@@ -0,0 +1,217 @@
+package app.model;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.function.Predicate;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for {@link PhotoQuery}: whatever plan the indexes lead to, and whether the result
+ * comes from the search cache, a search must find exactly the photos that checking every
+ * photo against the query finds.
+ * @author Reuben Thomas, Ryan Zaken
+ */
+class PhotoQueryTest {
+
+  /**
+   * The words captions are made of.
+   */
+  private static final String[] WORDS = {"beach", "sunset", "dog", "city", "night", "snow"};
+
+  /**
+   * The values of the tags.
+   */
+  private static final String[] VALUES = {"paris", "rome", "ann", "bob", "cara"};
+
+  /**
+   * The names of the albums.
+   */
+  private static final String[] ALBUMS = {"Trip", "Family", "Best"};
+
+  /**
+   * The time the first photo was taken.
+   */
+  private static final LocalDateTime START = LocalDateTime.of(2024, 1, 1, 0, 0);
+
+  /**
+   * A query together with the check it makes of a single photo.
+   *
+   * @param query the query
+   * @param check whether a photo matches the query
+   */
+  private record Case(PhotoQuery query, Predicate<Photo> check) {
+  }
+
+  /** The user searched. */
+  private final User user = new User("alice");
+
+  /** The source of the library, the queries and the changes. */
+  private final Random random = new Random(21);
+
+  /** The number of photos created so far. */
+  private int photoCount;
+
+  /**
+   * Makes a random tag.
+   *
+   * @return the tag
+   */
+  private Tag randomTag() {
+    String type = random.nextBoolean() ? "location" : "person";
+    return new Tag(user.getTagType(type), VALUES[random.nextInt(VALUES.length)]);
+  }
+
+  /**
+   * Makes a random caption.
+   *
+   * @return the caption
+   */
+  private String randomCaption() {
+    StringBuilder caption = new StringBuilder();
+    for (int w = random.nextInt(5); w > 0; w--) {
+      caption.append(WORDS[random.nextInt(WORDS.length)]).append(random.nextBoolean() ? " " : "! ");
+    }
+    return caption.toString();
+  }
+
+  /**
+   * Adds a new random photo to a random album.
+   */
+  private void addRandomPhoto() {
+    Photo photo = new Photo("/photos/" + photoCount + ".jpg", START.plusHours(random.nextInt(24 * 60)));
+    photoCount++;
+    photo.setCaption(randomCaption());
+    for (int t = random.nextInt(3); t > 0; t--) {
+      Tag tag = randomTag();
+      if (!photo.hasTag(tag)) photo.addTag(tag);
+    }
+    user.getAlbum(ALBUMS[random.nextInt(ALBUMS.length)]).addPhoto(photo);
+  }
+
+  /**
+   * Builds a random query of at most some depth.
+   *
+   * @param depth the most levels of AND, OR and NOT above the predicates
+   * @return the query and its check
+   */
+  private Case randomCase(int depth) {
+    int choice = random.nextInt(depth > 0 ? 8 : 5);
+    switch (choice) {
+      case 0 -> {
+        Tag tag = randomTag();
+        return new Case(PhotoQuery.tag(tag), photo -> photo.hasTag(tag));
+      }
+      case 1 -> {
+        LocalDateTime start = START.plusHours(random.nextInt(24 * 60));
+        LocalDateTime end = start.plusHours(random.nextInt(24 * 30));
+        return new Case(PhotoQuery.dateRange(start, end),
+                photo -> photo.getDateTaken().isAfter(start) && photo.getDateTaken().isBefore(end));
+      }
+      case 2 -> {
+        String name = ALBUMS[random.nextInt(ALBUMS.length)];
+        return new Case(PhotoQuery.inAlbum(name), photo -> user.getAlbum(name).hasPhoto(photo));
+      }
+      case 3 -> {
+        String text = WORDS[random.nextInt(WORDS.length)].substring(1, 3).toUpperCase();
+        return new Case(PhotoQuery.captionContains(text),
+                photo -> photo.getCaption().toLowerCase().contains(text.toLowerCase()));
+      }
+      case 4 -> {
+        List<String> words = new ArrayList<>();
+        for (int w = 1 + random.nextInt(2); w > 0; w--) {
+          words.add(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return new Case(PhotoQuery.captionPhrase(String.join(" ", words)),
+                photo -> Collections.indexOfSubList(CaptionIndex.tokenize(photo.getCaption()), words) >= 0);
+      }
+      case 5 -> {
+        Case operand = randomCase(depth - 1);
+        return new Case(PhotoQuery.not(operand.query()), operand.check().negate());
+      }
+      default -> {
+        List<PhotoQuery> queries = new ArrayList<>();
+        Predicate<Photo> check = null;
+        boolean and = choice == 6;
+        for (int i = 2 + random.nextInt(2); i > 0; i--) {
+          Case operand = randomCase(depth - 1);
+          queries.add(operand.query());
+          check = check == null ? operand.check() : and ? check.and(operand.check()) : check.or(operand.check());
+        }
+        return new Case(and ? PhotoQuery.and(queries) : PhotoQuery.or(queries), check);
+      }
+    }
+  }
+
+  /**
+   * Asserts that a search finds exactly the photos matching a query's check.
+   *
+   * @param testCase the query and its check
+   */
+  private void assertSearch(Case testCase) {
+    Set<Photo> expected = new HashSet<>();
+    for (Photo photo : user.getAllPhotos()) {
+      if (testCase.check().test(photo)) expected.add(photo);
+    }
+    List<Photo> found = user.search(testCase.query());
+    assertEquals(expected.size(), found.size(), testCase.query().toString());
+    assertEquals(expected, new HashSet<>(found), testCase.query().toString());
+  }
+
+  /**
+   * Creates the user's tag types and albums and a library of random photos.
+   *
+   * @param photos the number of photos
+   */
+  private void createLibrary(int photos) {
+    user.addTagType("person", true);
+    for (String name : ALBUMS) {
+      user.addAlbum(name);
+    }
+    for (int i = 0; i < photos; i++) {
+      addRandomPhoto();
+    }
+  }
+
+  @Test
+  void searchesMatchCheckingEveryPhoto() {
+    createLibrary(600);
+    for (int i = 0; i < 300; i++) {
+      assertSearch(randomCase(3));
+    }
+  }
+
+  @Test
+  void cachedResultsFollowChangesToTheLibrary() {
+    createLibrary(200);
+    List<Case> cases = new ArrayList<>();
+    for (int i = 0; i < 60; i++) {
+      cases.add(randomCase(2));
+    }
+    for (int change = 0; change < 150; change++) {
+      List<Photo> photos = user.getAllPhotos();
+      Photo photo = photos.get(random.nextInt(photos.size()));
+      switch (random.nextInt(5)) {
+        case 0 -> {
+          Tag tag = randomTag();
+          if (photo.hasTag(tag)) photo.removeTag(tag);
+          else photo.addTag(tag);
+        }
+        case 1 -> photo.setCaption(randomCaption());
+        case 2 -> addRandomPhoto();
+        case 3 -> user.getAlbum(ALBUMS[random.nextInt(ALBUMS.length)]).removePhoto(photo);
+        default -> {
+          Album album = user.getAlbum(ALBUMS[random.nextInt(ALBUMS.length)]);
+          if (!album.hasPhoto(photo)) album.addPhoto(photo);
+        }
+      }
+      // Every search is run before and after each change, so most are answered from the cache
+      for (Case testCase : cases) {
+        assertSearch(testCase);
+      }
+    }
+    assertTrue(user.getSearchCache().getHitCount() > 0);
+  }
+}
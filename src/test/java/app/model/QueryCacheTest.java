@@ -0,0 +1,101 @@
+package app.model;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for {@link QueryCache}: a change drops only the results it can change.
+ * @author Reuben Thomas, Ryan Zaken
+ */
+class QueryCacheTest {
+
+  /**
+   * Makes a photo without reading a file.
+   *
+   * @param name the file name
+   * @return the photo
+   */
+  private static Photo photo(String name) {
+    return new Photo("/photos/" + name, LocalDateTime.of(2024, 7, 1, 10, 30));
+  }
+
+  /**
+   * Runs a search and tells whether the cache answered it.
+   *
+   * @param user  the user searched
+   * @param query the query
+   * @return true if the result came from the cache, false if it was evaluated
+   */
+  private static boolean isCached(User user, PhotoQuery query) {
+    long hits = user.getSearchCache().getHitCount();
+    user.search(query);
+    return user.getSearchCache().getHitCount() > hits;
+  }
+
+  @Test
+  void photoEnteringTheLibraryKeepsResultsOnOtherTagsAndAlbums() {
+    User user = new User("alice");
+    Album trip = user.addAlbum("Trip");
+    Album family = user.addAlbum("Family");
+    Tag paris = new Tag(user.getTagType("location"), "paris");
+    Tag rome = new Tag(user.getTagType("location"), "rome");
+    Photo first = photo("first.jpg");
+    first.addTag(paris);
+    family.addPhoto(first);
+
+    PhotoQuery onParis = PhotoQuery.tag(paris);
+    PhotoQuery inFamily = PhotoQuery.inAlbum("Family");
+    PhotoQuery notParis = PhotoQuery.not(onParis);
+    PhotoQuery inJuly = PhotoQuery.dateRange(LocalDateTime.of(2024, 7, 1, 0, 0), LocalDateTime.of(2024, 8, 1, 0, 0));
+    List.of(onParis, inFamily, notParis, inJuly).forEach(user::search);
+
+    Photo second = photo("second.jpg");
+    second.addTag(rome);
+    trip.addPhoto(second);
+
+    assertTrue(isCached(user, onParis));
+    assertTrue(isCached(user, inFamily));
+    assertFalse(isCached(user, notParis));
+    assertFalse(isCached(user, inJuly));
+    assertEquals(List.of(second), user.search(notParis));
+    assertEquals(2, user.search(inJuly).size());
+
+    // Leaving the library drops the results on the photo's tags
+    user.search(PhotoQuery.tag(rome));
+    trip.removePhoto(second);
+    assertTrue(user.search(PhotoQuery.tag(rome)).isEmpty());
+    assertTrue(isCached(user, inFamily));
+  }
+
+  @Test
+  void changedDateTakenMovesPhotoBetweenDateRanges() {
+    User user = new User("alice");
+    Photo photo = photo("first.jpg");
+    user.addAlbum("Trip").addPhoto(photo);
+    PhotoQuery inJuly = PhotoQuery.dateRange(LocalDateTime.of(2024, 7, 1, 0, 0), LocalDateTime.of(2024, 8, 1, 0, 0));
+    PhotoQuery inMay = PhotoQuery.dateRange(LocalDateTime.of(2024, 5, 1, 0, 0), LocalDateTime.of(2024, 6, 1, 0, 0));
+    assertEquals(List.of(photo), user.search(inJuly));
+    assertTrue(user.search(inMay).isEmpty());
+
+    photo.setDateTaken(LocalDateTime.of(2024, 5, 20, 12, 0));
+    assertTrue(user.search(inJuly).isEmpty());
+    assertEquals(List.of(photo), user.search(inMay));
+    assertEquals(List.of(photo), user.getPhotosInDateRange(LocalDateTime.of(2024, 5, 1, 0, 0), LocalDateTime.of(2024, 6, 1, 0, 0)));
+  }
+
+  @Test
+  void tagOfUnknownTypeMatchesNothing() {
+    User user = new User("alice");
+    Photo photo = photo("first.jpg");
+    user.addAlbum("Trip").addPhoto(photo);
+    Tag unknown = new Tag(user.getTagType("no such type"), "paris");
+
+    assertTrue(user.search(PhotoQuery.tag(unknown)).isEmpty());
+    assertEquals(List.of(photo), user.search(PhotoQuery.not(PhotoQuery.tag(unknown))));
+    assertNotEquals(unknown, new Tag(user.getTagType("location"), "paris"));
+  }
+}
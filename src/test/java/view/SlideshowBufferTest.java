@@ -0,0 +1,102 @@
+package view;
+
+import app.model.Photo;
+import javafx.scene.image.Image;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for {@link SlideshowBuffer}.
+ * @author Reuben Thomas, Ryan Zaken
+ */
+class SlideshowBufferTest {
+
+    /**
+     * The width and height of the viewport.
+     */
+    private static final int VIEWPORT = 40;
+
+    /** A folder for the photo files. */
+    @TempDir
+    File dir;
+
+    /**
+     * Creates photos with small image files.
+     *
+     * @param count the number of photos
+     * @return the photos
+     * @throws IOException if the files cannot be written
+     */
+    private List<Photo> createPhotos(int count) throws IOException {
+        List<Photo> photos = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            File file = new File(dir, "photo" + i + ".png");
+            ImageIO.write(new BufferedImage(200, 150, BufferedImage.TYPE_INT_RGB), "png", file);
+            photos.add(new Photo(file.getPath(), LocalDateTime.of(2024, 1, 1, 0, 0).plusMinutes(i)));
+        }
+        return photos;
+    }
+
+    /**
+     * Waits for the background decodes to buffer a set of photos.
+     *
+     * @param buffer  the buffer
+     * @param indexes the indexes of the photos expected to be buffered
+     * @throws InterruptedException if the wait is interrupted
+     */
+    private static void awaitBuffered(SlideshowBuffer buffer, int... indexes) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        for (int index : indexes) {
+            while (!buffer.isBuffered(index)) {
+                assertTrue(System.currentTimeMillis() < deadline, "Photo " + index + " was never buffered");
+                Thread.sleep(5);
+            }
+        }
+    }
+
+    @Test
+    void windowWrappingAroundTheEndIsHeldWhole() throws Exception {
+        SlideshowBuffer buffer = new SlideshowBuffer(createPhotos(10), VIEWPORT, VIEWPORT, 3, Long.MAX_VALUE);
+        assertEquals(7, buffer.getCapacity());
+        buffer.moveTo(0);
+        // Photos 7, 8 and 9 wrap around before photo 0 and must not displace 0, 1 and 2
+        awaitBuffered(buffer, 0, 1, 2, 3, 7, 8, 9);
+        Thread.sleep(50);
+        for (int index : new int[] {0, 1, 2, 3, 7, 8, 9}) {
+            assertTrue(buffer.isBuffered(index), "Photo " + index + " was evicted");
+        }
+        buffer.close();
+    }
+
+    @Test
+    void steppingForwardSpendsTheWindowAhead() throws Exception {
+        SlideshowBuffer buffer = new SlideshowBuffer(createPhotos(10), VIEWPORT, VIEWPORT, 3, Long.MAX_VALUE);
+        buffer.moveTo(0);
+        buffer.moveTo(1);
+        awaitBuffered(buffer, 1, 2, 3, 4, 5, 6, 0);
+        assertFalse(buffer.isBuffered(8));
+        assertFalse(buffer.isBuffered(9));
+        buffer.close();
+    }
+
+    @Test
+    void imagesAreDecodedAtViewportSizeWithinBudget() throws Exception {
+        long imageBytes = (long) VIEWPORT * VIEWPORT * 4;
+        SlideshowBuffer buffer = new SlideshowBuffer(createPhotos(10), VIEWPORT, VIEWPORT, 3, 3 * imageBytes);
+        assertEquals(3, buffer.getCapacity());
+        Image image = buffer.moveTo(5);
+        assertTrue(image.getWidth() <= VIEWPORT && image.getHeight() <= VIEWPORT);
+        awaitBuffered(buffer, 4, 5, 6);
+        buffer.close();
+    }
+}
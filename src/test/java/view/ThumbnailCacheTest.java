@@ -0,0 +1,142 @@
+package view;
+
+import javafx.scene.image.Image;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for {@link ThumbnailCache}: thumbnails for a large search result are decoded at the
+ * requested size and stay within the cache's byte budget and a fixed heap ceiling.
+ * @author Reuben Thomas, Ryan Zaken
+ */
+class ThumbnailCacheTest {
+
+    /**
+     * The number of search results.
+     */
+    private static final int RESULTS = 5_000;
+
+    /**
+     * The width of the original photos.
+     */
+    private static final int ORIGINAL_WIDTH = 800;
+
+    /**
+     * The height of the original photos.
+     */
+    private static final int ORIGINAL_HEIGHT = 600;
+
+    /**
+     * The byte budget of the cache under test.
+     */
+    private static final long BUDGET_BYTES = 4L * 1024 * 1024;
+
+    /**
+     * The most the heap may grow while every thumbnail is held. Decoding the originals at full
+     * size would need {@code RESULTS * ORIGINAL_WIDTH * ORIGINAL_HEIGHT * 4} bytes, over 9 GB.
+     */
+    private static final long HEAP_CEILING_BYTES = 96L * 1024 * 1024;
+
+    /** A folder for the photo files. */
+    @TempDir
+    File dir;
+
+    @Test
+    void fiveThousandResultThumbnailsStayWithinBudget() throws Exception {
+        List<File> files = createResultFiles();
+        ThumbnailCache cache = new ThumbnailCache(BUDGET_BYTES);
+        long baseline = usedHeap();
+
+        // Load every thumbnail as the result list's loader threads would, and hold them all,
+        // which is more than a list showing a screenful of cells ever does
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<Image>> futures = new ArrayList<>();
+        for (File file : files) {
+            futures.add(executor.submit(() -> {
+                Image image = cache.get(file.getPath(), ThumbnailCache.THUMBNAIL_SIZE, ThumbnailCache.THUMBNAIL_SIZE);
+                assertTrue(cache.getUsedBytes() <= BUDGET_BYTES, cache.toString());
+                return image;
+            }));
+        }
+        List<Image> thumbnails = new ArrayList<>();
+        for (Future<Image> future : futures) {
+            thumbnails.add(future.get());
+        }
+        executor.shutdown();
+
+        for (Image thumbnail : thumbnails) {
+            assertFalse(thumbnail.isError());
+            assertTrue(thumbnail.getWidth() <= ThumbnailCache.THUMBNAIL_SIZE, "width " + thumbnail.getWidth());
+            assertTrue(thumbnail.getHeight() <= ThumbnailCache.THUMBNAIL_SIZE, "height " + thumbnail.getHeight());
+        }
+        assertTrue(cache.getUsedBytes() <= BUDGET_BYTES, cache.toString());
+        assertTrue(cache.getEvictionCount() > 0, cache.toString());
+        long growth = usedHeap() - baseline;
+        assertTrue(growth < HEAP_CEILING_BYTES, "Heap grew by " + growth / 1024 / 1024 + " MB");
+        assertEquals(RESULTS, thumbnails.size());
+    }
+
+    /**
+     * Creates the files of the search results: a few distinct originals, each linked under
+     * many names, so every result is a separate cache entry without filling the disk.
+     *
+     * @return the result files
+     * @throws IOException if the files cannot be written
+     */
+    private List<File> createResultFiles() throws IOException {
+        List<File> originals = new ArrayList<>();
+        Random random = new Random(13);
+        for (int i = 0; i < 8; i++) {
+            BufferedImage image = new BufferedImage(ORIGINAL_WIDTH, ORIGINAL_HEIGHT, BufferedImage.TYPE_INT_RGB);
+            Graphics2D graphics = image.createGraphics();
+            graphics.setPaint(new GradientPaint(0, 0, new Color(random.nextInt()), ORIGINAL_WIDTH, ORIGINAL_HEIGHT,
+                    new Color(random.nextInt())));
+            graphics.fillRect(0, 0, ORIGINAL_WIDTH, ORIGINAL_HEIGHT);
+            for (int r = 0; r < 40; r++) {
+                graphics.setColor(new Color(random.nextInt()));
+                graphics.fillOval(random.nextInt(ORIGINAL_WIDTH), random.nextInt(ORIGINAL_HEIGHT), 80, 60);
+            }
+            graphics.dispose();
+            File original = new File(dir, "original" + i + ".jpg");
+            ImageIO.write(image, "jpg", original);
+            originals.add(original);
+        }
+        List<File> files = new ArrayList<>(RESULTS);
+        for (int i = 0; i < RESULTS; i++) {
+            File file = new File(dir, "result" + i + ".jpg");
+            Files.createLink(file.toPath(), originals.get(i % originals.size()).toPath());
+            files.add(file);
+        }
+        return files;
+    }
+
+    /**
+     * Measures the heap in use after collecting garbage.
+     *
+     * @return the used heap in bytes
+     */
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}